@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.misterpereira.android.kiteplayer.dropbox.DropboxSyncService;
+import com.misterpereira.android.kiteplayer.model.MusicProvider;
+import com.misterpereira.android.kiteplayer.utils.CloseableHelper;
+import com.misterpereira.android.kiteplayer.utils.ImmutableFileLRUCache;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fi.iki.elonen.NanoHTTPD;
+import rx.Observable;
+
+/**
+ * Serves cached songs and album art to cast receivers over the local network.
+ * <p>
+ * Songs that aren't cached are streamed through the song cache: they're downloaded once into
+ * it and served from the growing file, so replays and seeks come from the device. Songs are
+ * served with byte range support.
+ * <p>
+ * The server listens on a port picked by the system, so it can't clash with other apps.
+ * Connections are kept alive between requests and handled by a bounded pool of workers,
+ * connections beyond what the pool and its queue can take are dropped. A server found dead is
+ * restarted without cutting the connections still being served.
+ */
+class CachedDataServer extends NanoHTTPD {
+
+    private static final String TAG = LogHelper.makeLogTag(CachedDataServer.class);
+
+    private static final String MIME_TYPE_PNG = "image/png";
+    private static final String MIME_TYPE_AUDIO_MPEG = "audio/mpeg";
+
+    public static final String ALBUM_ART_PATH = "/albumart";
+    public static final String SONG_FILE_PATH = "/songfile";
+    public static final String SONG_STREAM_PATH = "/songstream";
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    // Connections served at once, each receiver keeps about two open (audio and art)
+    private static final int MAX_WORKERS = 8;
+    private static final int MAX_QUEUED_CONNECTIONS = 16;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private final Context mApplicationContext;
+    private final MusicProvider mMusicProvider;
+    // Only files of the song cache are served by path
+    @Nullable
+    private final ImmutableFileLRUCache mCachedSongs;
+
+    private final ThreadPoolExecutor mExecutor;
+    // Accepted connection being handed to the runner, only touched on the listening thread
+    private Socket mAcceptedSocket;
+    private volatile boolean mRestarting;
+
+    private final AtomicLong mConnectionCount = new AtomicLong();
+    private final AtomicInteger mOpenCount = new AtomicInteger();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mServeNanos = new AtomicLong();
+    private final AtomicLong mMaxServeNanos = new AtomicLong();
+    private final AtomicInteger mRestartCount = new AtomicInteger();
+
+    public CachedDataServer(Context ctx, MusicProvider musicProvider) {
+        this(ctx.getApplicationContext(), musicProvider,
+                ((KiteApplication) ctx.getApplicationContext()).getComponent().cachedSongs());
+    }
+
+    CachedDataServer(Context applicationContext, MusicProvider musicProvider,
+                     @Nullable ImmutableFileLRUCache cachedSongs) {
+
+        // Bound to a port free now, kept across restarts so URLs handed out stay valid
+        super(findFreePort());
+        mApplicationContext = applicationContext;
+        mMusicProvider = musicProvider;
+        mCachedSongs = cachedSongs;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_CONNECTIONS),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "CachedDataServer #" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        setAsyncRunner(new PooledAsyncRunner());
+    }
+
+    /**
+     * Starts the server again on the same port if it died, keeping the connections still open.
+     *
+     * @throws IOException if the port can't be bound anymore
+     */
+    public synchronized void ensureRunning() throws IOException {
+        if (isAlive()) {
+            return;
+        }
+
+        LogHelper.w(TAG, "ensureRunning - Local server appears to be dead. Restarting...");
+        mRestartCount.incrementAndGet();
+
+        mRestarting = true;
+        try {
+            stop();
+        } finally {
+            mRestarting = false;
+        }
+        start();
+    }
+
+    private static int findFreePort() {
+        ServerSocket socket = null;
+        try {
+            socket = new ServerSocket(0);
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "findFreePort - Unable to find a free port");
+            // Any free port once started
+            return 0;
+        } finally {
+            CloseableHelper.closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (!mRestarting) {
+            LogHelper.d(TAG, "stop - connections=", mConnectionCount.get(),
+                    " rejected=", mRejectedCount.get(), " requests=", mRequestCount.get(),
+                    " errors=", mErrorCount.get());
+        }
+    }
+
+    @Override
+    public synchronized void registerConnection(Socket socket) {
+        super.registerConnection(socket);
+        mConnectionCount.incrementAndGet();
+        mOpenCount.incrementAndGet();
+        mAcceptedSocket = socket;
+    }
+
+    @Override
+    public synchronized void unRegisterConnection(Socket socket) {
+        super.unRegisterConnection(socket);
+        mOpenCount.decrementAndGet();
+    }
+
+    @Override
+    public synchronized void closeAllConnections() {
+        // Connections being served outlive a restart
+        if (!mRestarting) {
+            super.closeAllConnections();
+        }
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+
+        long start = System.nanoTime();
+        mRequestCount.incrementAndGet();
+
+        String uri = session.getUri();
+        try {
+            if (uri.startsWith(ALBUM_ART_PATH)) {
+                return serveAlbumArt(uri.substring(ALBUM_ART_PATH.length()));
+            } else if (uri.startsWith(SONG_FILE_PATH)) {
+                return serveSongFile(session, uri.substring(SONG_FILE_PATH.length()));
+            } else if (uri.startsWith(SONG_STREAM_PATH)) {
+                return serveSongStream(session, uri.substring(SONG_STREAM_PATH.length() + 1));
+            } else {
+                mErrorCount.incrementAndGet();
+                return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, (String) null);
+            }
+        } catch (FileNotFoundException e) {
+            LogHelper.e(TAG,e,"serve - Failed to serve uri=",uri);
+            mErrorCount.incrementAndGet();
+            return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, (String) null);
+        } catch (IOException | RuntimeException e) {
+            LogHelper.e(TAG,e,"serve - Failed to serve uri=",uri);
+            mErrorCount.incrementAndGet();
+            return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
+        } finally {
+            // NanoHTTPD keeps the headers of a kept alive connection between requests, a
+            // range asked for once must not apply to the requests that follow
+            session.getHeaders().remove("range");
+            recordServeTime(System.nanoTime() - start);
+        }
+    }
+
+    private Response serveSongFile(IHTTPSession session, String filePath) throws IOException {
+
+        LogHelper.d(TAG, "serveSongFile - Request received for filePath=",filePath);
+
+        File songFile = new File(filePath);
+
+        if (mCachedSongs == null || !mCachedSongs.isInCache(songFile)) {
+            LogHelper.w(TAG, "serveSongFile - Refusing filePath=", filePath);
+            throw new FileNotFoundException("Not a cached song " + filePath);
+        }
+
+        // On Android this looks the extension up in the same table as MimeTypeMap
+        String mimeType = URLConnection.guessContentTypeFromName(songFile.getName());
+
+        Response r = serveRange(session,
+                mimeType != null ? mimeType : MIME_TYPE_AUDIO_MPEG,
+                new FileInputStream(songFile), songFile.length());
+
+        LogHelper.d(TAG, "serveSongFile - Serving filePath=",filePath,
+                " with mimeType=", mimeType);
+
+        return r;
+    }
+
+    private Response serveSongStream(IHTTPSession session, String musicId) throws IOException {
+
+        LogHelper.d(TAG, "serveSongStream - Request received for musicId=", musicId);
+
+        DropboxSyncService.SongStream stream = mMusicProvider
+                .openSongStream(musicId)
+                .toBlocking()
+                .firstOrDefault(null);
+
+        if (stream == null) {
+            throw new FileNotFoundException("Unable to stream musicId=" + musicId);
+        }
+
+        String mimeType = session.getParms().get("mimeType");
+
+        return serveRange(session,
+                !TextUtils.isEmpty(mimeType) ? mimeType : MIME_TYPE_AUDIO_MPEG,
+                stream.data, stream.length);
+    }
+
+    /**
+     * Serves the data, or the part of it asked for by the request's range header. Only single
+     * ranges are supported, as media players use.
+     */
+    private Response serveRange(IHTTPSession session, String mimeType, InputStream data,
+                                long length) throws IOException {
+
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+
+        String range = session.getHeaders().get("range");
+        Matcher matcher = range != null ? RANGE_PATTERN.matcher(range.trim()) : null;
+
+        if (matcher != null && matcher.matches() &&
+                !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+
+            if (matcher.group(1).isEmpty()) {
+                // Suffix range, the last bytes
+                start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+            } else {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+            }
+
+            if (start >= length || start > end) {
+                data.close();
+                Response r = new Response(
+                        Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, (String) null);
+                r.addHeader("Content-Range", "bytes */" + length);
+                return r;
+            }
+
+            partial = true;
+        }
+
+        long count = end - start + 1;
+
+        if (start > 0) {
+            long skipped = 0;
+            while (skipped < start) {
+                long n = data.skip(start - skipped);
+                if (n <= 0) {
+                    data.close();
+                    throw new IOException("Unable to skip to offset " + start);
+                }
+                skipped += n;
+            }
+        }
+
+        Response r = new Response(
+                partial ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
+                mimeType, new BoundedInputStream(data, count));
+
+        r.addHeader("Accept-Ranges", "bytes");
+        // Also what NanoHTTPD sends, instead of what the stream has available right now
+        r.addHeader("Content-Length", Long.toString(count));
+        if (partial) {
+            r.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+
+        return r;
+    }
+
+    private Response serveAlbumArt(String albumArtPath) throws IOException {
+
+        LogHelper.d(TAG, "serveAlbumArt - Request received for albumArtPath=",albumArtPath);
+
+        String musicId = albumArtPath.substring(1);
+
+        // Original images are streamed as stored, without being decoded
+        InputStream albumArt = mMusicProvider
+                .getAlbumArt(musicId)
+                .onErrorResumeNext(Observable.empty())
+                .toBlocking()
+                .firstOrDefault(null);
+
+        if (albumArt == null) {
+
+            LogHelper.w(TAG, "serveAlbumArt - No album art found for albumArtPath=",
+                    albumArtPath,", falling back to default art.");
+
+            albumArt = mApplicationContext.getResources().openRawResource(R.drawable.ic_album_art);
+        }
+
+        String mimeType = URLConnection.guessContentTypeFromStream(albumArt);
+
+        Response r = new Response(
+                Response.Status.OK, mimeType != null ? mimeType : MIME_TYPE_PNG, albumArt);
+
+        LogHelper.d(TAG, "serveAlbumArt - Serving albumArtPath=",albumArtPath);
+
+        return r;
+    }
+
+    @Nullable
+    public String getBaseUrl() {
+
+        WifiManager wifiManager =
+                (WifiManager) mApplicationContext.getSystemService(
+                        Context.WIFI_SERVICE);
+
+        int ipAddress = wifiManager.getConnectionInfo().getIpAddress();
+
+        // Convert little-endian to big-endianif needed
+        if (ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN)) {
+            ipAddress = Integer.reverseBytes(ipAddress);
+        }
+
+        byte[] ipByteArray = BigInteger.valueOf(ipAddress).toByteArray();
+
+        String ipAddressString;
+        try {
+            ipAddressString = InetAddress.getByAddress(ipByteArray).getHostAddress();
+        } catch (UnknownHostException ex) {
+            LogHelper.e(TAG, ex, "getBaseUrl - Unable to get host address.");
+            ipAddressString = null;
+        }
+
+        return "http://"+ipAddressString+":"+getListeningPort();
+    }
+
+    public void dump(PrintWriter writer) {
+        long requests = mRequestCount.get();
+        writer.println("Cast server on port " + getListeningPort() +
+                ", alive=" + isAlive() + ", restarts=" + mRestartCount.get() + ":");
+        writer.println("  connections=" + mConnectionCount.get() +
+                " open=" + mOpenCount.get() +
+                " queued=" + mExecutor.getQueue().size() +
+                " rejected=" + mRejectedCount.get());
+        writer.println("  requests=" + requests +
+                " errors=" + mErrorCount.get() +
+                " avgServeMs=" + (requests > 0 ? mServeNanos.get() / requests / 1000000 : 0) +
+                " maxServeMs=" + mMaxServeNanos.get() / 1000000);
+    }
+
+    private void recordServeTime(long nanos) {
+        mServeNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = mMaxServeNanos.get();
+        } while (nanos > max && !mMaxServeNanos.compareAndSet(max, nanos));
+    }
+
+    /**
+     * Stops after the given number of bytes. Reports them all as available, the underlying
+     * stream may have to wait for them.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long count) {
+            super(in);
+            mRemaining = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mRemaining);
+        }
+    }
+
+    /**
+     * Runs each connection on the worker pool for as long as it's kept alive. NanoHTTPD closes
+     * idle connections after its socket timeout, so they don't hold on to workers.
+     */
+    private class PooledAsyncRunner implements AsyncRunner {
+
+        @Override
+        public void exec(Runnable code) {
+            // NanoHTTPD registers each connection right before handing it over
+            Socket socket = mAcceptedSocket;
+            mAcceptedSocket = null;
+            try {
+                mExecutor.execute(code);
+            } catch (RejectedExecutionException e) {
+                LogHelper.w(TAG, "exec - Too many connections, dropping one");
+                mRejectedCount.incrementAndGet();
+                if (socket != null) {
+                    CloseableHelper.closeQuietly(socket);
+                    unRegisterConnection(socket);
+                }
+            }
+        }
+    }
+}
@@ -24,17 +24,10 @@
 package com.misterpereira.android.kiteplayer;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.media.session.PlaybackState;
 import android.net.Uri;
-import android.net.wifi.WifiManager;
-import android.support.annotation.Nullable;
 import android.text.TextUtils;
-import android.webkit.MimeTypeMap;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
-import com.bumptech.glide.signature.StringSignature;
 import com.google.android.gms.cast.MediaInfo;
 import com.google.android.gms.cast.MediaMetadata;
 import com.google.android.gms.cast.MediaStatus;
@@ -44,7 +37,6 @@ import com.google.android.libraries.cast.companionlibrary.cast.callbacks.VideoCa
 import com.google.android.libraries.cast.companionlibrary.cast.exceptions.CastException;
 import com.google.android.libraries.cast.companionlibrary.cast.exceptions.NoConnectionException;
 import com.google.android.libraries.cast.companionlibrary.cast.exceptions.TransientNetworkDisconnectionException;
-import com.misterpereira.android.kiteplayer.model.AlbumArtLoader;
 import com.misterpereira.android.kiteplayer.model.MusicProvider;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
@@ -52,25 +44,16 @@ import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.net.InetAddress;
+import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.UnknownHostException;
-import java.nio.ByteOrder;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import fi.iki.elonen.NanoHTTPD;
 import rx.Observable;
+import rx.Scheduler;
 import rx.exceptions.OnErrorThrowable;
-import rx.schedulers.Schedulers;
 
 import static android.media.session.MediaSession.QueueItem;
 
@@ -84,19 +67,27 @@ public class CastPlayback implements Playback {
     private static final String MIME_TYPE_AUDIO_MPEG = "audio/mpeg";
     private static final String ITEM_ID = "itemId";
 
+    // Upcoming tracks kept resolved, so the receiver can be handed the next one right away
+    private static final int MAX_PREPARED_MEDIA = 3;
+
     private final MusicProvider mMusicProvider;
+    private final Scheduler mPlaybackScheduler;
+    private final Scheduler mIoScheduler;
+    private final Scheduler.Worker mPlaybackWorker;
+
+    // Cast callbacks arrive on the main thread, they're handled with the rest of playback
     private final VideoCastConsumerImpl mCastConsumer = new VideoCastConsumerImpl() {
 
         @Override
         public void onRemoteMediaPlayerMetadataUpdated() {
             LogHelper.d(TAG, "onRemoteMediaPlayerMetadataUpdated");
-            updateMetadata();
+            mPlaybackWorker.schedule(CastPlayback.this::updateMetadata);
         }
 
         @Override
         public void onRemoteMediaPlayerStatusUpdated() {
             LogHelper.d(TAG, "onRemoteMediaPlayerStatusUpdated");
-            updatePlaybackState();
+            mPlaybackWorker.schedule(CastPlayback.this::updatePlaybackState);
         }
     };
 
@@ -108,11 +99,31 @@ public class CastPlayback implements Playback {
     private volatile int mCurrentPosition;
     private volatile String mCurrentMediaId;
 
-    private final CachedDataServer mHttpServer;
+    private final Context mApplicationContext;
+    // Replaced only if the port of a dead server can't be bound again
+    private volatile CachedDataServer mHttpServer;
+
+    // Media ready to load by mediaId, least recently prepared first
+    private final Map<String, MediaInfo> mPreparedMedia =
+            new LinkedHashMap<String, MediaInfo>(MAX_PREPARED_MEDIA + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MediaInfo> eldest) {
+                    return size() > MAX_PREPARED_MEDIA;
+                }
+            };
 
-    public CastPlayback(MusicProvider musicProvider, Context ctx) {
+    /**
+     * @param playbackScheduler scheduler of the thread all playback state changes happen on
+     * @param ioScheduler scheduler tracks are resolved and loaded on
+     */
+    public CastPlayback(MusicProvider musicProvider, Context ctx,
+                        Scheduler playbackScheduler, Scheduler ioScheduler) {
         this.mMusicProvider = musicProvider;
-        this.mHttpServer = new CachedDataServer(8080,ctx);
+        this.mPlaybackScheduler = playbackScheduler;
+        this.mIoScheduler = ioScheduler;
+        this.mPlaybackWorker = playbackScheduler.createWorker();
+        this.mApplicationContext = ctx.getApplicationContext();
+        this.mHttpServer = new CachedDataServer(ctx, musicProvider);
     }
 
     @Override
@@ -135,6 +146,16 @@ public class CastPlayback implements Playback {
             mCallback.onPlaybackStatusChanged(mState);
         }
         mHttpServer.stop();
+        synchronized (mPreparedMedia) {
+            mPreparedMedia.clear();
+        }
+    }
+
+    /**
+     * Prints the local server's request metrics.
+     */
+    public void dump(PrintWriter writer) {
+        mHttpServer.dump(writer);
     }
 
     @Override
@@ -163,8 +184,8 @@ public class CastPlayback implements Playback {
     @Override
     public void play(QueueItem item) {
         loadMedia(item.getDescription().getMediaId(), true)
-                .subscribeOn(Schedulers.io())
-                .observeOn(Schedulers.immediate())
+                .subscribeOn(mIoScheduler)
+                .observeOn(mPlaybackScheduler)
                 .subscribe(
                         mediaInfo -> {},
                         e -> {
@@ -181,6 +202,40 @@ public class CastPlayback implements Playback {
                         });
     }
 
+    /**
+     * Resolves the item ahead of time, refreshing its lease and starting its download into
+     * the song cache, so loading it on the receiver once the current track ends takes no
+     * round trip and its first bytes are served from the device.
+     */
+    @Override
+    public void prepareNext(QueueItem item) {
+
+        if (item == null) {
+            return;
+        }
+
+        String mediaId = item.getDescription().getMediaId();
+        synchronized (mPreparedMedia) {
+            if (mPreparedMedia.containsKey(mediaId)) {
+                return;
+            }
+        }
+
+        mMusicProvider.cacheSong(MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+
+        resolveMedia(mediaId)
+                .subscribeOn(mIoScheduler)
+                .subscribe(
+                        media -> {
+                            LogHelper.d(TAG, "prepareNext - Prepared mediaId=", mediaId);
+                            synchronized (mPreparedMedia) {
+                                mPreparedMedia.put(mediaId, media);
+                            }
+                        },
+                        e -> LogHelper.w(TAG, e, "prepareNext - Unable to prepare mediaId=",
+                                mediaId));
+    }
+
     @Override
     public void pause() {
         try {
@@ -189,8 +244,8 @@ public class CastPlayback implements Playback {
                 mCurrentPosition = (int) mCastManager.getCurrentMediaPosition();
             } else {
                 loadMedia(mCurrentMediaId, false)
-                        .subscribeOn(Schedulers.io())
-                        .observeOn(Schedulers.immediate())
+                        .subscribeOn(mIoScheduler)
+                        .observeOn(mPlaybackScheduler)
                         .subscribe(
                                 mediaInfo -> {},
                                 e -> {
@@ -224,8 +279,8 @@ public class CastPlayback implements Playback {
             } else {
                 mCurrentPosition = position;
                 loadMedia(mCurrentMediaId, false)
-                        .subscribeOn(Schedulers.io())
-                        .observeOn(Schedulers.immediate())
+                        .subscribeOn(mIoScheduler)
+                        .observeOn(mPlaybackScheduler)
                         .subscribe(
                                 mediaInfo -> {},
                                 e -> {
@@ -280,66 +335,153 @@ public class CastPlayback implements Playback {
     }
 
     private Observable<MediaInfo> loadMedia(String mediaId, boolean autoPlay) {
-        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
 
-        Observable<android.media.MediaMetadata> playableObservable =
-                mMusicProvider
-                        .getMusicForPlayback(musicId)
-                        .single()
-                        .cache();
-
-        Observable<android.media.MediaMetadata> metadataObservable =
-                mMusicProvider
-                        .getMusicMetadata(musicId)
-                        .single()
-                        .timeout(500, TimeUnit.MILLISECONDS);
-
-
-        return playableObservable
-                .zipWith(metadataObservable, (playable, metadata) -> {
-                    return new android.media.MediaMetadata.Builder(metadata)
-                            .putString(
-                                    MusicProvider.CUSTOM_METADATA_TRACK_SOURCE,
-                                    playable.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE))
-                            .build();
+        return Observable
+                .defer(() -> {
+                    MediaInfo prepared;
+                    synchronized (mPreparedMedia) {
+                        prepared = mPreparedMedia.remove(mediaId);
+                    }
+
+                    // Prepared media points to the server as it was, it may have moved since
+                    return prepared != null && isServedByHttpServer(prepared) ?
+                            Observable.just(prepared) : resolveMedia(mediaId);
                 })
-                .onErrorResumeNext(playableObservable)
+                .map(media -> {
+                    if (!TextUtils.equals(mediaId, mCurrentMediaId)) {
+                        mCurrentMediaId = mediaId;
+                        mCurrentPosition = 0;
+                    }
+                    try {
+                        mCastManager.loadMedia(media, autoPlay, mCurrentPosition,
+                                media.getCustomData());
+                    } catch (Exception e) {
+                        throw OnErrorThrowable.from(e);
+                    }
+
+                    if (autoPlay) {
+                        updateRemoteTags(mediaId, media);
+                    }
+
+                    return media;
+                });
+    }
+
+    /**
+     * Looks up the track and makes sure it can be played, then converts it for the receiver.
+     * Only the tags already indexed are used, album art is referenced by the local server's URL
+     * so nothing is decoded here. Nothing is looked up before subscription.
+     */
+    private Observable<MediaInfo> resolveMedia(String mediaId) {
+        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+
+        return Observable
+                .defer(() -> mMusicProvider.getMusicForPlayback(musicId))
+                .single()
                 .map(track -> {
 
-                    if (!mHttpServer.isAlive()) {
-                        LogHelper.w(TAG, "Local server appears to be dead. Attempting restart...");
-                        mHttpServer.stop();
-                        try {
-                            mHttpServer.start();
-                        } catch (IOException e) {
-                            throw OnErrorThrowable.from(e);
-                        }
+                    CachedDataServer httpServer;
+                    try {
+                        httpServer = ensureHttpServer();
+                    } catch (IOException e) {
+                        throw OnErrorThrowable.from(e);
                     }
 
                     if (track == null) {
                         throw new IllegalArgumentException("Invalid mediaId " + mediaId);
                     }
-                    if (!TextUtils.equals(mediaId, mCurrentMediaId)) {
-                        mCurrentMediaId = mediaId;
-                        mCurrentPosition = 0;
-                    }
                     JSONObject customData = new JSONObject();
                     try {
                         customData.put(ITEM_ID, mediaId);
                     } catch (JSONException e) {
                         throw OnErrorThrowable.from(e);
                     }
-                    MediaInfo media = toCastMediaMetadata(track, customData, mHttpServer);
-                    try {
-                        mCastManager.loadMedia(media, autoPlay, mCurrentPosition, customData);
-                    } catch (Exception e) {
-                        throw OnErrorThrowable.from(e);
-                    }
-
-                    return media;
+                    return toCastMediaMetadata(track, customData, httpServer);
                 });
     }
 
+    /**
+     * @return the local server, started again if it died. A server whose port was taken in
+     * the meantime is replaced by one on a new port
+     */
+    private synchronized CachedDataServer ensureHttpServer() throws IOException {
+        try {
+            mHttpServer.ensureRunning();
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "ensureHttpServer - Port taken, starting a new server");
+            mHttpServer.stop();
+            CachedDataServer httpServer = new CachedDataServer(mApplicationContext, mMusicProvider);
+            httpServer.start();
+            mHttpServer = httpServer;
+        }
+        return mHttpServer;
+    }
+
+    /**
+     * Reads the tags of a track that may have been loaded before they were indexed, and hands
+     * the receiver the richer metadata once they're in.
+     */
+    private void updateRemoteTags(String mediaId, MediaInfo loaded) {
+        mMusicProvider
+                .getMusicTags(MediaIDHelper.extractMusicIDFromMediaID(mediaId))
+                .first()
+                .map(track -> toCastMetadata(track, mHttpServer))
+                .filter(metadata -> !hasSameTags(metadata, loaded.getMetadata()))
+                .map(metadata -> new MediaInfo.Builder(loaded.getContentId())
+                        .setContentType(loaded.getContentType())
+                        .setStreamType(loaded.getStreamType())
+                        .setMetadata(metadata)
+                        .setCustomData(loaded.getCustomData())
+                        .build())
+                .subscribeOn(mIoScheduler)
+                .observeOn(mPlaybackScheduler)
+                .subscribe(
+                        media -> onRemoteTagsChanged(mediaId, media),
+                        e -> LogHelper.w(TAG, e, "updateRemoteTags - Unable to read tags of mediaId=",
+                                mediaId));
+    }
+
+    private void onRemoteTagsChanged(String mediaId, MediaInfo media) {
+        if (!TextUtils.equals(mediaId, mCurrentMediaId)) {
+            return;
+        }
+
+        // Used the next time the track is loaded
+        synchronized (mPreparedMedia) {
+            mPreparedMedia.put(mediaId, media);
+        }
+
+        // The receiver can't change the metadata of what it plays, the track is loaded again
+        // unless that would interrupt the music
+        if (mState != PlaybackState.STATE_BUFFERING) {
+            return;
+        }
+
+        LogHelper.d(TAG, "onRemoteTagsChanged - Reloading mediaId=", mediaId);
+        try {
+            mCastManager.loadMedia(media, true, mCurrentPosition, media.getCustomData());
+        } catch (TransientNetworkDisconnectionException | NoConnectionException e) {
+            LogHelper.w(TAG, e, "onRemoteTagsChanged - Unable to reload media");
+        }
+    }
+
+    private static boolean hasSameTags(MediaMetadata metadata, MediaMetadata other) {
+        return other != null &&
+                TextUtils.equals(metadata.getString(MediaMetadata.KEY_TITLE),
+                        other.getString(MediaMetadata.KEY_TITLE)) &&
+                TextUtils.equals(metadata.getString(MediaMetadata.KEY_SUBTITLE),
+                        other.getString(MediaMetadata.KEY_SUBTITLE)) &&
+                TextUtils.equals(metadata.getString(MediaMetadata.KEY_ALBUM_ARTIST),
+                        other.getString(MediaMetadata.KEY_ALBUM_ARTIST)) &&
+                TextUtils.equals(metadata.getString(MediaMetadata.KEY_ALBUM_TITLE),
+                        other.getString(MediaMetadata.KEY_ALBUM_TITLE));
+    }
+
+    private boolean isServedByHttpServer(MediaInfo media) {
+        return mHttpServer.isAlive() &&
+                media.getContentId().startsWith(mHttpServer.getBaseUrl() + "/");
+    }
+
     /**
      * Helper method to convert a {@link android.media.MediaMetadata} to a
      * {@link com.google.android.gms.cast.MediaInfo} used for sending media to the receiver app.
@@ -352,6 +494,40 @@ public class CastPlayback implements Playback {
                                                  JSONObject customData,
                                                  CachedDataServer httpServer) {
 
+        MediaMetadata mediaMetadata = toCastMetadata(track, httpServer);
+
+        String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+        String mimeType = track.getString(MusicProvider.CUSTOM_METADATA_MIMETYPE);
+
+        if (!httpServer.isAlive()) {
+            LogHelper.e(TAG, "toCastMediaMetadata - Local server appears to be dead.");
+        }
+
+        try {
+            @SuppressWarnings("UnusedAssignment") URL remoteSource = new URL(source);
+
+            // Streamed through the local server, which caches it on the way
+            source = httpServer.getBaseUrl() + CachedDataServer.SONG_STREAM_PATH + "/" +
+                    track.getString(android.media.MediaMetadata.METADATA_KEY_MEDIA_ID) +
+                    (mimeType != null ? "?mimeType=" + Uri.encode(mimeType) : "");
+        } catch (MalformedURLException e) {
+            source = httpServer.getBaseUrl() + CachedDataServer.SONG_FILE_PATH + source;
+        }
+
+        return new MediaInfo.Builder(source)
+                .setContentType(mimeType != null?mimeType:MIME_TYPE_AUDIO_MPEG)
+                .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
+                .setMetadata(mediaMetadata)
+                .setCustomData(customData)
+                .build();
+    }
+
+    /**
+     * @return the receiver's metadata of the track, its album art served by the local server
+     */
+    private static MediaMetadata toCastMetadata(android.media.MediaMetadata track,
+                                                CachedDataServer httpServer) {
+
         MediaMetadata mediaMetadata = new MediaMetadata(MediaMetadata.MEDIA_TYPE_MUSIC_TRACK);
         mediaMetadata.putString(MediaMetadata.KEY_TITLE,
                 track.getDescription().getTitle() == null ? "" :
@@ -364,13 +540,11 @@ public class CastPlayback implements Playback {
         mediaMetadata.putString(MediaMetadata.KEY_ALBUM_TITLE,
                 track.getString(android.media.MediaMetadata.METADATA_KEY_ALBUM));
 
-        AlbumArtLoader.Key cachedImageKey = new AlbumArtLoader.Key(track);
-
         if (httpServer.isAlive()) {
             WebImage image = new WebImage(
                     new Uri.Builder().encodedPath(
                             httpServer.getBaseUrl() + CachedDataServer.ALBUM_ART_PATH +
-                                    "/" + cachedImageKey.toString())
+                                    "/" + track.getString(android.media.MediaMetadata.METADATA_KEY_MEDIA_ID))
                             .build());
             // First image is used by the receiver for showing the audio album art.
             mediaMetadata.addImage(image);
@@ -379,25 +553,7 @@ public class CastPlayback implements Playback {
             mediaMetadata.addImage(image);
         }
 
-        String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
-
-        try {
-            @SuppressWarnings("UnusedAssignment") URL remoteSource = new URL(source);
-        } catch (MalformedURLException e) {
-            if (!httpServer.isAlive()) {
-                LogHelper.e(TAG, "toCastMediaMetadata - Local server appears to be dead.");
-            }
-            source = httpServer.getBaseUrl() + CachedDataServer.SONG_FILE_PATH + source;
-
-        }
-
-        String mimeType = track.getString(MusicProvider.CUSTOM_METADATA_MIMETYPE);
-        return new MediaInfo.Builder(source)
-                .setContentType(mimeType != null?mimeType:MIME_TYPE_AUDIO_MPEG)
-                .setStreamType(MediaInfo.STREAM_TYPE_BUFFERED)
-                .setMetadata(mediaMetadata)
-                .setCustomData(customData)
-                .build();
+        return mediaMetadata;
     }
 
     private void updateMetadata() {
@@ -468,133 +624,4 @@ public class CastPlayback implements Playback {
                 break;
         }
     }
-
-    private static class CachedDataServer extends NanoHTTPD {
-
-        private static final String TAG = LogHelper.makeLogTag(CachedDataServer.class);
-        private static final String MIME_TYPE_PNG = "image/png";
-        private static final int[] IMAGE_SIZE_CAST = new int[]{384,384};
-
-        public static final String ALBUM_ART_PATH = "/albumart";
-        public static final String SONG_FILE_PATH = "/songfile";
-
-        private final Context mApplicationContext;
-
-        public CachedDataServer(int port, Context ctx) {
-
-            super(port);
-            mApplicationContext = ctx.getApplicationContext();
-        }
-
-        @Override
-        public Response serve(IHTTPSession session) {
-
-            String uri = session.getUri();
-            try {
-                if (uri.startsWith(ALBUM_ART_PATH)) {
-                    return serveAlbumArt(uri.substring(ALBUM_ART_PATH.length()));
-                } else if (uri.startsWith(SONG_FILE_PATH)) {
-                    return serveSongFile(uri.substring(SONG_FILE_PATH.length()));
-                } else {
-                    return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, (String) null);
-                }
-            } catch (FileNotFoundException e) {
-                LogHelper.e(TAG,e,"serve - Failed to serve uri=",uri);
-                return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, (String) null);
-            } catch (ExecutionException | InterruptedException e) {
-                LogHelper.e(TAG,e,"serve - Failed to serve uri=",uri);
-                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.getMessage());
-            }
-        }
-
-        private Response serveSongFile(String filePath) throws FileNotFoundException {
-
-            LogHelper.d(TAG, "serveSongFile - Request received for filePath=",filePath);
-
-            File songFile = new File(filePath);
-
-            MimeTypeMap mtm = MimeTypeMap.getSingleton();
-            String extension = MimeTypeMap.getFileExtensionFromUrl(filePath);
-            String mimeType = mtm.getMimeTypeFromExtension(extension);
-
-            Response r = new Response(
-                    Response.Status.OK,
-                    !TextUtils.isEmpty(mimeType)?mimeType:MIME_TYPE_AUDIO_MPEG,
-                    new FileInputStream(songFile));
-
-            LogHelper.d(TAG, "serveSongFile - Serving filePath=",filePath,
-                    " with mimeType=", mimeType);
-
-            return r;
-        }
-
-        private Response serveAlbumArt(String albumArtPath) throws ExecutionException, InterruptedException {
-
-            LogHelper.d(TAG, "serveAlbumArt - Request received for albumArtPath=",albumArtPath);
-
-            String cacheSignature = albumArtPath.substring(1);
-            Bitmap albumArt;
-
-            try {
-                albumArt = Glide
-                        .with(mApplicationContext)
-                        .load(new android.media.MediaMetadata.Builder().build())
-                        .asBitmap()
-                        .signature(new StringSignature(cacheSignature))
-                        .diskCacheStrategy(DiskCacheStrategy.ALL)
-                        .into(IMAGE_SIZE_CAST[0],IMAGE_SIZE_CAST[1])
-                        .get();
-            } catch (InterruptedException | ExecutionException e) {
-
-                LogHelper.w(TAG, e, "serveAlbumArt - No album art found for albumArtPath=",
-                        albumArtPath,", falling back to default art.");
-
-                albumArt = Glide
-                        .with(mApplicationContext)
-                        .load(R.drawable.ic_album_art)
-                        .asBitmap()
-                        .into(IMAGE_SIZE_CAST[0],IMAGE_SIZE_CAST[1])
-                        .get();
-            }
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            albumArt.compress(Bitmap.CompressFormat.PNG, 0, bos);
-
-            Response r = new Response(
-                    Response.Status.OK, MIME_TYPE_PNG, new ByteArrayInputStream(bos.toByteArray()));
-
-            LogHelper.d(TAG, "serveAlbumArt - Serving albumArtPath=",albumArtPath);
-
-            return r;
-        }
-
-        @Nullable
-        public String getBaseUrl() {
-
-            WifiManager wifiManager =
-                    (WifiManager) mApplicationContext.getSystemService(
-                            Context.WIFI_SERVICE);
-
-            int ipAddress = wifiManager.getConnectionInfo().getIpAddress();
-
-            // Convert little-endian to big-endianif needed
-            if (ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN)) {
-                ipAddress = Integer.reverseBytes(ipAddress);
-            }
-
-            byte[] ipByteArray = BigInteger.valueOf(ipAddress).toByteArray();
-
-            String ipAddressString;
-            try {
-                ipAddressString = InetAddress.getByAddress(ipByteArray).getHostAddress();
-            } catch (UnknownHostException ex) {
-                LogHelper.e(TAG, ex, "getBaseUrl - Unable to get host address.");
-                ipAddressString = null;
-            }
-
-            return "http://"+ipAddressString+":"+getListeningPort();
-        }
-
-    }
-
 }
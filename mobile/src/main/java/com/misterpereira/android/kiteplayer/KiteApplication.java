@@ -9,14 +9,18 @@
 package com.misterpereira.android.kiteplayer;
 
 import android.app.Application;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.preference.PreferenceManager;
 
 import com.facebook.stetho.Stetho;
-import com.google.android.gms.analytics.Tracker;
+import com.google.android.libraries.cast.companionlibrary.cast.BaseCastManager;
 import com.google.android.libraries.cast.companionlibrary.cast.VideoCastManager;
 import com.misterpereira.android.kiteplayer.ui.FullScreenPlayerActivity;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 
-import javax.inject.Inject;
+import rx.functions.Action0;
 
 import static com.google.android.libraries.cast.companionlibrary.cast.BaseCastManager.FEATURE_DEBUGGING;
 import static com.google.android.libraries.cast.companionlibrary.cast.BaseCastManager.FEATURE_WIFI_RECONNECT;
@@ -28,24 +32,92 @@ public class KiteApplication extends Application {
 
     protected KiteApplicationComponent mApplicationComponent;
 
+    private volatile VideoCastManager mCastManager;
+
     @Override
     public void onCreate() {
         super.onCreate();
 
-        mApplicationComponent = DaggerKiteApplicationComponent.builder()
-                .kiteApplicationModule(new KiteApplicationModule(this))
-                .build();
-
-        VideoCastManager mCastManager = VideoCastManager.initialize(
-                this, this.getResources().getString(R.string.cast_application_id), FullScreenPlayerActivity.class, null);
+        trace("KiteApplication.onCreate", () -> {
+
+            mApplicationComponent = DaggerKiteApplicationComponent.builder()
+                    .kiteApplicationModule(new KiteApplicationModule(this))
+                    .build();
+
+            if (hasCastSession()) {
+                // The reconnection service may be restarted with the process and expects it
+                getCastManager();
+            } else {
+                // Browsers connecting on a cold start don't need Cast, it waits for the
+                // main thread to be idle
+                Looper.myQueue().addIdleHandler(() -> {
+                    getCastManager();
+                    return false;
+                });
+            }
+
+            if (BuildConfig.DEBUG) {
+                Stetho.initializeWithDefaults(this);
+            }
+        });
+
+        Thread warmUpThread = new Thread(this::warmUp, "StartupWarmUp");
+        warmUpThread.start();
+    }
 
-        mCastManager.enableFeatures(FEATURE_WIFI_RECONNECT | FEATURE_DEBUGGING);
+    public KiteApplicationComponent getComponent() { return this.mApplicationComponent; }
 
-        if (BuildConfig.DEBUG) {
-            Stetho.initializeWithDefaults(this);
+    /**
+     * @return the cast manager, initialized on first use. Must be called on the main thread
+     * unless a cast session is already known to exist
+     */
+    public VideoCastManager getCastManager() {
+        if (mCastManager == null) {
+            trace("initCastManager", () -> {
+                VideoCastManager castManager = VideoCastManager.initialize(
+                        this, getResources().getString(R.string.cast_application_id),
+                        FullScreenPlayerActivity.class, null);
+                castManager.enableFeatures(FEATURE_WIFI_RECONNECT | FEATURE_DEBUGGING);
+                mCastManager = castManager;
+            });
         }
+        return mCastManager;
+    }
 
+    private boolean hasCastSession() {
+        return PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(BaseCastManager.PREFS_KEY_SESSION_ID, null) != null;
     }
 
-    public KiteApplicationComponent getComponent() { return this.mApplicationComponent; }
+    /**
+     * Creates the singletons the first browser or screen will need, dependencies first, so
+     * they're ready or well underway when injected on the main thread.
+     * <p>
+     * Runs at default priority: the main thread blocks on the scoped providers this thread
+     * holds while creating them, and a background priority would make it wait longer.
+     */
+    private void warmUp() {
+        try {
+            // Dropbox session, song cache and album art store
+            trace("warmUp.musicProvider", mApplicationComponent::musicProvider);
+            // Opens the database, upgrading it if needed
+            trace("warmUp.database",
+                    () -> mApplicationComponent.dbHelper().getWritableDatabase());
+            trace("warmUp.gaTracker", mApplicationComponent::gaTracker);
+        } catch (RuntimeException e) {
+            // Whatever failed is created again when injected
+            LogHelper.e(TAG, e, "warmUp - Unable to create singletons");
+        }
+    }
+
+    private static void trace(String section, Action0 action) {
+        long start = SystemClock.elapsedRealtime();
+        Trace.beginSection(section);
+        try {
+            action.call();
+        } finally {
+            Trace.endSection();
+            LogHelper.d(TAG, section, " took ", SystemClock.elapsedRealtime() - start, "ms");
+        }
+    }
 }
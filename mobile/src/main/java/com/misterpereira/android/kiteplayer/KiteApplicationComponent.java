@@ -14,7 +14,10 @@ import android.support.annotation.Nullable;
 import com.dropbox.client2.DropboxAPI;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.google.android.gms.analytics.Tracker;
+import com.misterpereira.android.kiteplayer.database.DropboxDBHelper;
+import com.misterpereira.android.kiteplayer.model.AlbumArtCache;
 import com.misterpereira.android.kiteplayer.model.AlbumArtLoader;
+import com.misterpereira.android.kiteplayer.model.MusicProvider;
 import com.misterpereira.android.kiteplayer.ui.ActionBarCastActivity;
 import com.misterpereira.android.kiteplayer.ui.AuthActivity;
 import com.misterpereira.android.kiteplayer.ui.MediaBrowserFragment;
@@ -38,6 +41,9 @@ public interface KiteApplicationComponent {
     Application application();
     DropboxAPI<AndroidAuthSession> dropboxAPI();
     AlbumArtLoader albumArtLoader();
+    AlbumArtCache albumArtCache();
+    MusicProvider musicProvider();
+    DropboxDBHelper dbHelper();
 
     @Nullable
     ImmutableFileLRUCache cachedSongs();
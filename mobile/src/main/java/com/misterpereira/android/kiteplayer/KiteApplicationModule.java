@@ -24,27 +24,32 @@ import com.misterpereira.android.kiteplayer.utils.PrefUtils;
 import com.squareup.okhttp.OkHttpClient;
 
 import java.io.File;
+import java.util.concurrent.Executors;
 
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
 
 @Module
 public class KiteApplicationModule {
 
+    public static final String ALBUM_ART_STORE = "albumArtStore";
+    public static final String PLAYBACK_IO_SCHEDULER = "playbackIoScheduler";
+    public static final String PLAYING_QUEUE_DIR = "playingQueueDir";
+
+    // Threads resolving tracks for playback, bounded so rapid skipping can't pile them up
+    private static final int PLAYBACK_IO_THREADS = 4;
+
     private final KiteApplication mApplication;
     private final Context mApplicationContext;
-    private final Tracker mGATracker;
 
     public KiteApplicationModule(KiteApplication application) {
         mApplication = application;
         mApplicationContext = application.getApplicationContext();
-
-        // Eagerly initializes GA tracker
-        GoogleAnalytics analytics = GoogleAnalytics.getInstance(mApplicationContext);
-        // To enable debug logging use: adb shell setprop log.tag.GAv4 DEBUG
-        mGATracker = analytics.newTracker(R.xml.ga_tracker);
     }
 
     @Provides @Singleton
@@ -103,9 +108,60 @@ public class KiteApplicationModule {
         }
     }
 
+    @Provides
+    @Singleton
+    @Nullable
+    @Named(ALBUM_ART_STORE)
+    ImmutableFileLRUCache provideAlbumArtStore() {
+
+        File albumArtStoreDir = mApplicationContext.getExternalCacheDir();
+        if (albumArtStoreDir == null) {
+            albumArtStoreDir = mApplicationContext.getCacheDir();
+        }
+
+        albumArtStoreDir = new File(albumArtStoreDir.getPath() + File.separator + "albumart");
+
+        // Allocates 5% of user defined cache size to original album art images
+        int albumArtStoreSizeInMBs =
+                Math.max(1, Math.round(Integer.parseInt(PrefUtils.getCacheSize(mApplicationContext)) * 0.05f));
+
+        try {
+            final ImmutableFileLRUCache store =
+                    new ImmutableFileLRUCache(albumArtStoreDir.getPath(), albumArtStoreSizeInMBs * 1024 * 1024);
+
+            PrefUtils.registerOnCacheSizeChangeListener(mApplicationContext,
+                    newValue -> {
+                        // Allocates 5% of user defined cache size to original album art images
+                        int newAlbumArtStoreSizeInMBs =
+                                Math.max(1, Math.round(Integer.parseInt(newValue) * 0.05f));
+                        store.setSizeLimitInBytes(newAlbumArtStoreSizeInMBs * 1024 * 1024);
+                    });
+
+            return store;
+        } catch (ImmutableFileLRUCache.ImmutableFileLRUCacheException e) {
+            return null;
+        }
+    }
+
     @Provides @Singleton
     Tracker provideGATracker() {
-        return mGATracker;
+        // Created on first injection, usually by the startup warm up thread
+        GoogleAnalytics analytics = GoogleAnalytics.getInstance(mApplicationContext);
+        // To enable debug logging use: adb shell setprop log.tag.GAv4 DEBUG
+        return analytics.newTracker(R.xml.ga_tracker);
+    }
+
+    @Provides
+    @Singleton
+    @Named(PLAYBACK_IO_SCHEDULER)
+    Scheduler providePlaybackIoScheduler() {
+        return Schedulers.from(Executors.newFixedThreadPool(PLAYBACK_IO_THREADS));
+    }
+
+    @Provides
+    @Named(PLAYING_QUEUE_DIR)
+    File providePlayingQueueDir() {
+        return mApplicationContext.getFilesDir();
     }
 
 }
\ No newline at end of file
@@ -28,17 +28,23 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioManager;
+import android.media.MediaMetadata;
 import android.media.MediaPlayer;
 import android.media.session.PlaybackState;
 import android.net.wifi.WifiManager;
 import android.os.PowerManager;
 import android.text.TextUtils;
+import android.webkit.URLUtil;
 
 import com.misterpereira.android.kiteplayer.model.MusicProvider;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
+import com.misterpereira.android.kiteplayer.utils.PrefUtils;
 
-import rx.schedulers.Schedulers;
+import java.util.concurrent.TimeUnit;
+
+import rx.Scheduler;
+import rx.Subscription;
 
 import static android.media.MediaPlayer.OnCompletionListener;
 import static android.media.MediaPlayer.OnErrorListener;
@@ -47,7 +53,12 @@ import static android.media.MediaPlayer.OnSeekCompleteListener;
 import static android.media.session.MediaSession.QueueItem;
 
 /**
- * A class that implements local media playback using {@link android.media.MediaPlayer}
+ * A class that implements local media playback using {@link android.media.MediaPlayer}.
+ * The next queue item is prepared in a second MediaPlayer chained with
+ * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}, so consecutive tracks play without gaps.
+ * With crossfade enabled the next player is instead started by hand before the current one
+ * ends, and both volumes are ramped while they overlap. Volumes also apply the ReplayGain of
+ * each track.
  */
 public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeListener,
         OnCompletionListener, OnErrorListener, OnPreparedListener, OnSeekCompleteListener {
@@ -67,12 +78,19 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     // we have full audio focus
     private static final int AUDIO_FOCUSED  = 2;
 
+    // Interval between volume changes of a crossfade
+    private static final int FADE_STEP_MS = 50;
+
     private final MusicService mService;
     private final WifiManager.WifiLock mWifiLock;
     private int mState;
     private boolean mPlayOnFocusGain;
     private Callback mCallback;
     private final MusicProvider mMusicProvider;
+    private final PlaybackLatencyTracker mLatencyTracker;
+    private final Scheduler mPlaybackScheduler;
+    private final Scheduler mIoScheduler;
+    private final Scheduler.Worker mPlaybackWorker;
     private volatile boolean mAudioNoisyReceiverRegistered;
     private volatile int mCurrentPosition;
     private volatile String mCurrentMediaId;
@@ -81,6 +99,32 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private int mAudioFocus = AUDIO_NO_FOCUS_NO_DUCK;
     private final AudioManager mAudioManager;
     private MediaPlayer mMediaPlayer;
+    private boolean mMediaPlayerPrepared;
+    // Resolution of the track being started, dropped when another one is started
+    private Subscription mPlaySubscription;
+
+    // Gapless playback: player for the next item and the item it was handed over to
+    private MediaPlayer mNextMediaPlayer;
+    private boolean mNextMediaPlayerPrepared;
+    private boolean mNextMediaPlayerChained;
+    private volatile String mNextMediaId;
+    // Source of the next item resolved during a crossfade, waiting for the fading player
+    private String mNextSource;
+    private Subscription mNextSubscription;
+    private String mHandedOverMediaId;
+
+    // Crossfade: the previous item's player fading out while the current one fades in
+    private int mCrossfadeMs;
+    private Subscription mCrossfadeStartSubscription;
+    private Subscription mFadeSubscription;
+    private MediaPlayer mFadingMediaPlayer;
+    private int mFadeStep;
+    private int mFadeSteps;
+
+    // ReplayGain volumes of the current, next and fading items
+    private float mReplayGainVolume = VOLUME_NORMAL;
+    private float mNextReplayGainVolume = VOLUME_NORMAL;
+    private float mFadingReplayGainVolume = VOLUME_NORMAL;
 
     private final IntentFilter mAudioNoisyIntentFilter =
             new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
@@ -100,9 +144,20 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         }
     };
 
-    public LocalPlayback(MusicService service, MusicProvider musicProvider) {
+    /**
+     * @param playbackScheduler scheduler of the thread all player state changes happen on,
+     *                          which must have a looper for MediaPlayer callbacks
+     * @param ioScheduler scheduler tracks are resolved on
+     */
+    public LocalPlayback(MusicService service, MusicProvider musicProvider,
+                         PlaybackLatencyTracker latencyTracker,
+                         Scheduler playbackScheduler, Scheduler ioScheduler) {
         this.mService = service;
         this.mMusicProvider = musicProvider;
+        this.mLatencyTracker = latencyTracker;
+        this.mPlaybackScheduler = playbackScheduler;
+        this.mIoScheduler = ioScheduler;
+        this.mPlaybackWorker = playbackScheduler.createWorker();
         this.mAudioManager = (AudioManager) service.getSystemService(Context.AUDIO_SERVICE);
         // Create the Wifi lock (this does not acquire the lock, this just creates it)
         this.mWifiLock = ((WifiManager) service.getSystemService(Context.WIFI_SERVICE))
@@ -158,30 +213,86 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     @Override
     public void play(QueueItem item) {
+        String mediaId = item.getDescription().getMediaId();
+        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
+        mLatencyTracker.setMusicId(musicId);
+
         mPlayOnFocusGain = true;
+        mLatencyTracker.beginSpan(PlaybackLatencyTracker.SPAN_AUDIO_FOCUS);
         tryToGetAudioFocus();
+        mLatencyTracker.endSpan(PlaybackLatencyTracker.SPAN_AUDIO_FOCUS);
         registerAudioNoisyReceiver();
-        String mediaId = item.getDescription().getMediaId();
         boolean mediaHasChanged = !TextUtils.equals(mediaId, mCurrentMediaId);
+
+        if (mPlaySubscription != null) {
+            mPlaySubscription.unsubscribe();
+            mPlaySubscription = null;
+        }
         if (mediaHasChanged) {
             mCurrentPosition = 0;
             mCurrentMediaId = mediaId;
         }
 
-        if (mState == PlaybackState.STATE_PAUSED && !mediaHasChanged && mMediaPlayer != null) {
+        // The item is already playing if the previous one just handed over to it
+        boolean handedOver = TextUtils.equals(mediaId, mHandedOverMediaId);
+        mHandedOverMediaId = null;
+
+        if (!handedOver) {
+            finishCrossfade();
+        }
+
+        if ((mState == PlaybackState.STATE_PAUSED || handedOver) &&
+                !mediaHasChanged && mMediaPlayer != null) {
+            mLatencyTracker.setSource(PlaybackLatencyTracker.SOURCE_RESUMED);
+            configMediaPlayerState();
+        } else if (mediaHasChanged && mNextMediaPlayerPrepared &&
+                TextUtils.equals(mediaId, mNextMediaId)) {
+            // Skipping to the prepared item, swap players instead of preparing it again
+            LogHelper.d(TAG, "play - Swapping to prepared mediaId=", mediaId);
+            mLatencyTracker.setSource(PlaybackLatencyTracker.SOURCE_PRELOADED);
+
+            MediaPlayer previous = mMediaPlayer;
+            if (previous != null) {
+                previous.reset();
+            }
+
+            mMediaPlayer = mNextMediaPlayer;
+            mMediaPlayerPrepared = true;
+            mReplayGainVolume = mNextReplayGainVolume;
+            mNextMediaPlayer = previous;
+            mNextMediaPlayerPrepared = false;
+            mNextMediaPlayerChained = false;
+            mNextMediaId = null;
+
+            mState = PlaybackState.STATE_STOPPED;
+            if (!mWifiLock.isHeld()) {
+                mWifiLock.acquire();
+            }
             configMediaPlayerState();
         } else {
             mState = PlaybackState.STATE_STOPPED;
+            // Resetting the current player drops its chain, it's chained again once prepared
+            mMediaPlayerPrepared = false;
+            mNextMediaPlayerChained = false;
             relaxResources(false); // release everything except MediaPlayer
 
-            mMusicProvider.getMusicForPlayback(
-                    MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()))
+            mLatencyTracker.beginSpan(PlaybackLatencyTracker.SPAN_RESOLVE);
+
+            mPlaySubscription = mMusicProvider.getMusicForPlayback(musicId)
                     .single()
-                    .subscribeOn(Schedulers.io())
+                    .subscribeOn(mIoScheduler)
+                    .observeOn(mPlaybackScheduler)
                     .subscribe(track -> {
 
                         String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
 
+                        mLatencyTracker.endSpan(PlaybackLatencyTracker.SPAN_RESOLVE);
+                        mLatencyTracker.setSource(URLUtil.isNetworkUrl(source) ?
+                                PlaybackLatencyTracker.SOURCE_STREAM :
+                                PlaybackLatencyTracker.SOURCE_CACHE);
+
+                        mReplayGainVolume = getReplayGainVolume(track);
+
                         try {
                             createMediaPlayerIfNeeded();
 
@@ -195,6 +306,7 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                             // the onPrepared() method on this class, since we set the
                             // listener to 'this'). Until the media player is prepared,
                             // we *cannot* call start() on it!
+                            mLatencyTracker.beginSpan(PlaybackLatencyTracker.SPAN_PREPARE);
                             mMediaPlayer.prepareAsync();
 
                             // If we are streaming from the internet, we want to hold a
@@ -212,12 +324,81 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                                 mCallback.onError(ex.getMessage());
                             }
                         }
+                    }, error -> {
+                        LogHelper.e(TAG, error, "Unable to resolve song for mediaId=", mediaId);
+                        if (mCallback != null) {
+                            mCallback.onError(error.getMessage());
+                        }
                     });
         }
     }
 
+    @Override
+    public void prepareNext(QueueItem item) {
+
+        String mediaId = item != null ? item.getDescription().getMediaId() : null;
+
+        if (TextUtils.equals(mediaId, mNextMediaId)) {
+            return;
+        }
+
+        resetNextMediaPlayer();
+        mNextMediaId = mediaId;
+
+        if (mediaId == null) {
+            return;
+        }
+
+        LogHelper.d(TAG, "prepareNext - Preparing mediaId=", mediaId);
+
+        // Resolving the source early also refreshes expired download URLs ahead of time
+        mNextSubscription = mMusicProvider.getMusicForPlayback(
+                MediaIDHelper.extractMusicIDFromMediaID(mediaId))
+                .first()
+                .subscribeOn(mIoScheduler)
+                .observeOn(mPlaybackScheduler)
+                .subscribe(track -> {
+
+                    String source = track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+
+                    if (source == null || !TextUtils.equals(mediaId, mNextMediaId)) {
+                        return;
+                    }
+
+                    mNextReplayGainVolume = getReplayGainVolume(track);
+
+                    if (mNextMediaPlayer == null && mFadingMediaPlayer != null) {
+                        // Prepared by the fading player once the fade is over
+                        mNextSource = source;
+                    } else {
+                        prepareNextMediaPlayer(source);
+                    }
+                }, error -> LogHelper.w(TAG, error,
+                        "prepareNext - Failed resolving mediaId=", mediaId));
+    }
+
+    private void prepareNextMediaPlayer(String source) {
+        try {
+            if (mNextMediaPlayer == null) {
+                mNextMediaPlayer = createMediaPlayer();
+            }
+
+            mNextMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mNextMediaPlayer.setDataSource(source);
+            mNextMediaPlayer.prepareAsync();
+
+        } catch (Exception ex) {
+            // Not fatal, the item will be prepared when it's played
+            LogHelper.w(TAG, ex, "prepareNextMediaPlayer - Failed preparing mediaId=",
+                    mNextMediaId);
+            resetNextMediaPlayer();
+        }
+    }
+
     @Override
     public void pause() {
+        finishCrossfade();
+        cancelCrossfadeStart();
         if (mState == PlaybackState.STATE_PLAYING) {
             // Pause media player and cancel the 'foreground service' state.
             if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
@@ -238,6 +419,8 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void seekTo(int position) {
         LogHelper.d(TAG, "seekTo called with ", position);
+        finishCrossfade();
+        cancelCrossfadeStart();
 
         if (mMediaPlayer == null) {
             // If we do not have a current media player, simply update the current position
@@ -317,13 +500,8 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 pause();
             }
         } else {  // we have audio focus:
-            if (mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK) {
-                mMediaPlayer.setVolume(VOLUME_DUCK, VOLUME_DUCK); // we'll be relatively quiet
-            } else {
-                if (mMediaPlayer != null) {
-                    mMediaPlayer.setVolume(VOLUME_NORMAL, VOLUME_NORMAL); // we can be loud again
-                } // else do something for remote client.
-            }
+            // Quiet when ducking, loud again otherwise
+            applyVolumes();
             // If we were playing when we lost focus, we need to resume playing.
             if (mPlayOnFocusGain) {
                 if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
@@ -331,7 +509,9 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                         mCurrentPosition);
                     if (mCurrentPosition == mMediaPlayer.getCurrentPosition()) {
                         mMediaPlayer.start();
+                        mLatencyTracker.finishTrace();
                         mState = PlaybackState.STATE_PLAYING;
+                        scheduleCrossfade();
                     } else {
                         mMediaPlayer.seekTo(mCurrentPosition);
                         mState = PlaybackState.STATE_BUFFERING;
@@ -351,6 +531,11 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     @Override
     public void onAudioFocusChange(int focusChange) {
+        // Focus changes are delivered on the main thread
+        mPlaybackWorker.schedule(() -> handleAudioFocusChange(focusChange));
+    }
+
+    private void handleAudioFocusChange(int focusChange) {
         LogHelper.d(TAG, "onAudioFocusChange. focusChange=", focusChange);
         if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
             // We have gained focus:
@@ -388,7 +573,9 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         mCurrentPosition = mp.getCurrentPosition();
         if (mState == PlaybackState.STATE_BUFFERING) {
             mMediaPlayer.start();
+            mLatencyTracker.finishTrace();
             mState = PlaybackState.STATE_PLAYING;
+            scheduleCrossfade();
         }
         if (mCallback != null) {
             mCallback.onPlaybackStatusChanged(mState);
@@ -403,6 +590,35 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void onCompletion(MediaPlayer player) {
         LogHelper.d(TAG, "onCompletion from MediaPlayer");
+
+        if (player == mFadingMediaPlayer) {
+            // The previous item ended before its fade did
+            finishCrossfade();
+            scheduleCrossfade();
+            return;
+        }
+
+        if (player == mMediaPlayer && mNextMediaPlayerChained) {
+            // The next player already started on its own, it becomes the current one and
+            // the finished player is kept around to prepare the item after it
+            LogHelper.d(TAG, "onCompletion - Handing over to mediaId=", mNextMediaId);
+
+            mMediaPlayer = mNextMediaPlayer;
+            mMediaPlayerPrepared = true;
+            mReplayGainVolume = mNextReplayGainVolume;
+            mCurrentMediaId = mNextMediaId;
+            mHandedOverMediaId = mNextMediaId;
+            mCurrentPosition = 0;
+            mState = PlaybackState.STATE_PLAYING;
+
+            mNextMediaPlayer = player;
+            mNextMediaId = null;
+            resetNextMediaPlayer();
+        } else {
+            // A finished track played again, as with repeat one, starts from the beginning
+            mCurrentPosition = 0;
+        }
+
         // The media player finished playing the current song, so we go ahead
         // and start the next.
         if (mCallback != null) {
@@ -418,9 +634,18 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void onPrepared(MediaPlayer player) {
         LogHelper.d(TAG, "onPrepared from MediaPlayer");
-        // The media player is done preparing. That means we can start playing if we
-        // have audio focus.
-        configMediaPlayerState();
+
+        if (player == mNextMediaPlayer) {
+            mNextMediaPlayerPrepared = true;
+        } else {
+            mMediaPlayerPrepared = true;
+            mLatencyTracker.endSpan(PlaybackLatencyTracker.SPAN_PREPARE);
+            // The media player is done preparing. That means we can start playing if we
+            // have audio focus.
+            configMediaPlayerState();
+        }
+
+        chainNextMediaPlayer();
     }
 
     /**
@@ -432,6 +657,22 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (mp == mFadingMediaPlayer) {
+            // The previous item is cut short, the current one plays on at full volume
+            LogHelper.w(TAG, "Fading media player error: what=", what, ", extra=", extra);
+            finishCrossfade();
+            scheduleCrossfade();
+            return true;
+        }
+
+        if (mp == mNextMediaPlayer) {
+            // The next item gets another chance when it's played
+            LogHelper.w(TAG, "Next media player error: what=", what, ", extra=", extra);
+            mNextMediaId = null;
+            resetNextMediaPlayer();
+            return true;
+        }
+
         LogHelper.e(TAG, "Media player error: what=", what, ", extra=", extra);
         if (mCallback != null) {
             mCallback.onError("MediaPlayer error " + what + " (" + extra + ")");
@@ -447,25 +688,271 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private void createMediaPlayerIfNeeded() {
         LogHelper.d(TAG, "createMediaPlayerIfNeeded. needed? ", (mMediaPlayer==null));
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-
-            // Make sure the media player will acquire a wake-lock while
-            // playing. If we don't do that, the CPU might go to sleep while the
-            // song is playing, causing playback to stop.
-            mMediaPlayer.setWakeMode(mService.getApplicationContext(),
-                    PowerManager.PARTIAL_WAKE_LOCK);
-
-            // we want the media player to notify us when it's ready preparing,
-            // and when it's done playing:
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnSeekCompleteListener(this);
+            mMediaPlayer = createMediaPlayer();
         } else {
             mMediaPlayer.reset();
         }
     }
 
+    private MediaPlayer createMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+
+        // Make sure the media player will acquire a wake-lock while
+        // playing. If we don't do that, the CPU might go to sleep while the
+        // song is playing, causing playback to stop.
+        mediaPlayer.setWakeMode(mService.getApplicationContext(),
+                PowerManager.PARTIAL_WAKE_LOCK);
+
+        // we want the media player to notify us when it's ready preparing,
+        // and when it's done playing:
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnSeekCompleteListener(this);
+
+        return mediaPlayer;
+    }
+
+    /**
+     * Chains the next media player to the current one once both are prepared, so it starts
+     * as soon as the current one completes. With crossfade enabled the crossfade is scheduled
+     * instead.
+     */
+    private void chainNextMediaPlayer() {
+        if (mMediaPlayer == null || !mMediaPlayerPrepared ||
+                mNextMediaPlayer == null || !mNextMediaPlayerPrepared) {
+            return;
+        }
+
+        mCrossfadeMs = PrefUtils.getCrossfadeDuration(mService);
+        if (mCrossfadeMs > 0 && mMediaPlayer.getDuration() > 0) {
+            scheduleCrossfade();
+            return;
+        }
+
+        float volume = getFocusVolume() * mNextReplayGainVolume;
+        mNextMediaPlayer.setVolume(volume, volume);
+
+        try {
+            mMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+            mNextMediaPlayerChained = true;
+            LogHelper.d(TAG, "chainNextMediaPlayer - Chained mediaId=", mNextMediaId);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            LogHelper.w(TAG, e, "chainNextMediaPlayer - Failed chaining mediaId=", mNextMediaId);
+        }
+    }
+
+    /**
+     * Schedules the crossfade into the prepared next item, to start when the current one is
+     * the crossfade duration away from its end. It's rescheduled whenever playback starts
+     * again, as pausing or seeking cancels it.
+     */
+    private void scheduleCrossfade() {
+        cancelCrossfadeStart();
+
+        if (canCrossfade()) {
+            long delay = getRemainingTime() - getCrossfadeTime();
+            mCrossfadeStartSubscription = mPlaybackWorker.schedule(
+                    this::onCrossfadeDue, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onCrossfadeDue() {
+        mCrossfadeStartSubscription = null;
+
+        if (!canCrossfade()) {
+            return;
+        }
+
+        // The position is checked again, the player's clock may have drifted from ours
+        if (getRemainingTime() - getCrossfadeTime() > FADE_STEP_MS) {
+            scheduleCrossfade();
+        } else {
+            startCrossfade();
+        }
+    }
+
+    private boolean canCrossfade() {
+        return mCrossfadeMs > 0 && mFadingMediaPlayer == null &&
+                mState == PlaybackState.STATE_PLAYING &&
+                mMediaPlayer != null && mMediaPlayerPrepared && mMediaPlayer.getDuration() > 0 &&
+                mNextMediaPlayer != null && mNextMediaPlayerPrepared && !mNextMediaPlayerChained;
+    }
+
+    private long getRemainingTime() {
+        return mMediaPlayer.getDuration() - mMediaPlayer.getCurrentPosition();
+    }
+
+    /**
+     * @return crossfade duration for the current item, short tracks fade over half their length
+     */
+    private int getCrossfadeTime() {
+        return Math.min(mCrossfadeMs, mMediaPlayer.getDuration() / 2);
+    }
+
+    /**
+     * Starts the next player silent and makes it the current one, the previous player fades
+     * out as it fades in. Completion is reported right away, as the next item is now playing.
+     */
+    private void startCrossfade() {
+        LogHelper.d(TAG, "startCrossfade - Fading into mediaId=", mNextMediaId);
+
+        mFadingMediaPlayer = mMediaPlayer;
+        mFadingReplayGainVolume = mReplayGainVolume;
+        mFadeStep = 0;
+        mFadeSteps = Math.max(1, getCrossfadeTime() / FADE_STEP_MS);
+
+        mMediaPlayer = mNextMediaPlayer;
+        mMediaPlayerPrepared = true;
+        mReplayGainVolume = mNextReplayGainVolume;
+        mCurrentMediaId = mNextMediaId;
+        mHandedOverMediaId = mNextMediaId;
+        mCurrentPosition = 0;
+
+        // The item after this one waits for the fading player rather than getting its own
+        mNextMediaPlayer = null;
+        mNextMediaPlayerPrepared = false;
+        mNextMediaId = null;
+
+        applyVolumes();
+        mMediaPlayer.start();
+
+        mFadeSubscription = mPlaybackWorker.schedulePeriodically(
+                this::stepCrossfade, FADE_STEP_MS, FADE_STEP_MS, TimeUnit.MILLISECONDS);
+
+        if (mCallback != null) {
+            mCallback.onCompletion();
+        }
+    }
+
+    private void stepCrossfade() {
+        if (++mFadeStep < mFadeSteps) {
+            applyVolumes();
+        } else {
+            finishCrossfade();
+            scheduleCrossfade();
+        }
+    }
+
+    /**
+     * Ends the crossfade in progress, if any, stopping the previous item right away.
+     */
+    private void finishCrossfade() {
+        if (mFadeSubscription != null) {
+            mFadeSubscription.unsubscribe();
+            mFadeSubscription = null;
+        }
+
+        if (mFadingMediaPlayer == null) {
+            return;
+        }
+
+        MediaPlayer fading = mFadingMediaPlayer;
+        mFadingMediaPlayer = null;
+        fading.reset();
+
+        // Kept to prepare the item after the next one, unless another player took its place
+        if (mNextMediaPlayer == null) {
+            mNextMediaPlayer = fading;
+            if (mNextSource != null) {
+                String source = mNextSource;
+                mNextSource = null;
+                prepareNextMediaPlayer(source);
+            }
+        } else {
+            fading.release();
+        }
+
+        applyVolumes();
+    }
+
+    private void cancelCrossfadeStart() {
+        if (mCrossfadeStartSubscription != null) {
+            mCrossfadeStartSubscription.unsubscribe();
+            mCrossfadeStartSubscription = null;
+        }
+    }
+
+    private float getFocusVolume() {
+        return mAudioFocus == AUDIO_NO_FOCUS_CAN_DUCK ? VOLUME_DUCK : VOLUME_NORMAL;
+    }
+
+    /**
+     * Sets the volume of the players from the audio focus, the ReplayGain of their items and
+     * the crossfade in progress.
+     */
+    private void applyVolumes() {
+        float focusVolume = getFocusVolume();
+
+        if (mFadingMediaPlayer != null) {
+            float volume = focusVolume * mFadingReplayGainVolume *
+                    VolumeRamp.fadeOut(mFadeStep, mFadeSteps);
+            mFadingMediaPlayer.setVolume(volume, volume);
+        }
+
+        if (mMediaPlayer != null) {
+            float volume = focusVolume * mReplayGainVolume;
+            if (mFadingMediaPlayer != null) {
+                volume *= VolumeRamp.fadeIn(mFadeStep, mFadeSteps);
+            }
+            mMediaPlayer.setVolume(volume, volume);
+        }
+    }
+
+    /**
+     * @return volume level of the track for the ReplayGain setting, album gain falls back to
+     * track gain
+     */
+    private float getReplayGainVolume(MediaMetadata track) {
+        String mode = PrefUtils.getReplayGainMode(mService);
+        String gain = null;
+
+        if (PrefUtils.REPLAY_GAIN_ALBUM.equals(mode)) {
+            gain = track.getString(MusicProvider.CUSTOM_METADATA_REPLAY_GAIN_ALBUM);
+        }
+        if (gain == null && !PrefUtils.REPLAY_GAIN_OFF.equals(mode)) {
+            gain = track.getString(MusicProvider.CUSTOM_METADATA_REPLAY_GAIN_TRACK);
+        }
+
+        if (gain == null) {
+            return VOLUME_NORMAL;
+        }
+
+        try {
+            return VolumeRamp.gainToVolume(Float.parseFloat(gain));
+        } catch (NumberFormatException e) {
+            LogHelper.w(TAG, e, "getReplayGainVolume - Invalid gain=", gain);
+            return VOLUME_NORMAL;
+        }
+    }
+
+    /**
+     * Stops preparing the next item and unchains its player, keeping the player for reuse.
+     */
+    private void resetNextMediaPlayer() {
+        cancelCrossfadeStart();
+
+        if (mNextSubscription != null) {
+            mNextSubscription.unsubscribe();
+            mNextSubscription = null;
+        }
+
+        if (mNextMediaPlayerChained) {
+            try {
+                mMediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+                LogHelper.w(TAG, e, "resetNextMediaPlayer - Failed unchaining next media player");
+            }
+        }
+
+        if (mNextMediaPlayer != null) {
+            mNextMediaPlayer.reset();
+        }
+        mNextMediaPlayerPrepared = false;
+        mNextMediaPlayerChained = false;
+        mNextSource = null;
+    }
+
     /**
      * Releases resources used by the service for playback. This includes the
      * "foreground service" status, the wake locks and possibly the MediaPlayer.
@@ -479,10 +966,25 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         mService.stopForeground(true);
 
         // stop and release the Media Player, if it's available
+        if (releaseMediaPlayer) {
+            if (mPlaySubscription != null) {
+                mPlaySubscription.unsubscribe();
+                mPlaySubscription = null;
+            }
+            finishCrossfade();
+            resetNextMediaPlayer();
+            mNextMediaId = null;
+            if (mNextMediaPlayer != null) {
+                mNextMediaPlayer.release();
+                mNextMediaPlayer = null;
+            }
+        }
+
         if (releaseMediaPlayer && mMediaPlayer != null) {
             mMediaPlayer.reset();
             mMediaPlayer.release();
             mMediaPlayer = null;
+            mMediaPlayerPrepared = false;
         }
 
         // we can also release the Wifi lock, if we're holding it
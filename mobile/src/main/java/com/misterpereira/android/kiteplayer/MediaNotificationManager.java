@@ -38,26 +38,31 @@ import android.media.MediaMetadata;
 import android.media.session.MediaController;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.misterpereira.android.kiteplayer.model.AlbumArtCache;
 import com.misterpereira.android.kiteplayer.ui.MusicPlayerActivity;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.ResourceHelper;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.schedulers.Schedulers;
 
-import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.LARGE_ALBUM_ART_DIMENSIONS;
-
 /**
  * Keeps track of a notification and updates it automatically for a given
  * MediaSession. Maintaining a visible notification (usually) guarantees that the music service
  * won't be killed during playback.
+ * <p>
+ * All work happens on the main thread. Album art is loaded once per track and the builder is
+ * kept while the actions stay the same. Bursts of session changes are coalesced into at most
+ * one update per {@link #MIN_UPDATE_INTERVAL_MS}, and updates that wouldn't change what the
+ * notification shows are skipped.
  */
 public class MediaNotificationManager extends BroadcastReceiver {
     private static final String TAG = LogHelper.makeLogTag(MediaNotificationManager.class);
@@ -65,6 +70,16 @@ public class MediaNotificationManager extends BroadcastReceiver {
     private static final int NOTIFICATION_ID = 412;
     private static final int REQUEST_CODE = 100;
 
+    private static final long MIN_UPDATE_INTERVAL_MS = 250;
+    // Chronometer drift tolerated before the position is updated again
+    private static final long POSITION_TOLERANCE_MS = 1000;
+
+    // Actions shown by the notification
+    private static final int ACTIONS_PREVIOUS = 1;
+    private static final int ACTIONS_PAUSE = 1 << 1;
+    private static final int ACTIONS_NEXT = 1 << 2;
+    private static final int ACTIONS_STOP_CASTING = 1 << 3;
+
     public static final String ACTION_PAUSE = "com.misterpereira.android.kiteplayer.pause";
     public static final String ACTION_PLAY = "com.misterpereira.android.kiteplayer.play";
     public static final String ACTION_PREV = "com.misterpereira.android.kiteplayer.prev";
@@ -88,10 +103,42 @@ public class MediaNotificationManager extends BroadcastReceiver {
 
     private final PendingIntent mStopCastIntent;
 
+    private final Notification.Action mPauseAction;
+    private final Notification.Action mPlayAction;
+    private final Notification.Action mPreviousAction;
+    private final Notification.Action mNextAction;
+    private final Notification.Action mStopCastAction;
+
     private final int mNotificationColor;
 
+    private final AlbumArtCache mAlbumArtCache;
+
+    private final Scheduler.Worker mMainWorker = AndroidSchedulers.mainThread().createWorker();
+
     private boolean mStarted = false;
 
+    // Pending update and the time of the last one
+    private Subscription mUpdateSubscription;
+    private long mLastUpdateTime;
+
+    // Album art of the current track, loaded once per track
+    private String mArtMediaId;
+    private Bitmap mArt;
+    private Subscription mArtSubscription;
+
+    private PendingIntent mContentIntent;
+    private String mContentIntentMediaId;
+
+    // Builder kept while the actions stay the same, and what it last rendered
+    private Notification.Builder mBuilder;
+    private int mBuilderActions;
+    private CharSequence mRenderedTitle;
+    private CharSequence mRenderedSubtitle;
+    private Bitmap mRenderedArt;
+    private String mRenderedCastName;
+    private boolean mRenderedPlaying;
+    private long mRenderedWhen;
+
     public MediaNotificationManager(MusicService service) {
         mService = service;
         updateSessionToken();
@@ -102,6 +149,10 @@ public class MediaNotificationManager extends BroadcastReceiver {
         mNotificationManager = (NotificationManager) mService
                 .getSystemService(Context.NOTIFICATION_SERVICE);
 
+        mAlbumArtCache = ((KiteApplication) mService.getApplication())
+                .getComponent()
+                .albumArtCache();
+
         String pkg = mService.getPackageName();
         mPauseIntent = PendingIntent.getBroadcast(mService, REQUEST_CODE,
                 new Intent(ACTION_PAUSE).setPackage(pkg), PendingIntent.FLAG_CANCEL_CURRENT);
@@ -115,6 +166,17 @@ public class MediaNotificationManager extends BroadcastReceiver {
                 new Intent(ACTION_STOP_CASTING).setPackage(pkg),
                 PendingIntent.FLAG_CANCEL_CURRENT);
 
+        mPauseAction = new Notification.Action(R.drawable.kite_ic_pause_white_24dp,
+                mService.getString(R.string.label_pause), mPauseIntent);
+        mPlayAction = new Notification.Action(R.drawable.kite_ic_play_arrow_white_24dp,
+                mService.getString(R.string.label_play), mPlayIntent);
+        mPreviousAction = new Notification.Action(R.drawable.ic_skip_previous_white_24dp,
+                mService.getString(R.string.label_previous), mPreviousIntent);
+        mNextAction = new Notification.Action(R.drawable.ic_skip_next_white_24dp,
+                mService.getString(R.string.label_next), mNextIntent);
+        mStopCastAction = new Notification.Action(R.drawable.ic_close_black_24dp,
+                mService.getString(R.string.stop_casting), mStopCastIntent);
+
         // Cancel all notifications to handle the case where the Service was killed and
         // restarted by the system.
         mNotificationManager.cancelAll();
@@ -126,30 +188,30 @@ public class MediaNotificationManager extends BroadcastReceiver {
      * destroyed before {@link #stopNotification} is called.
      */
     public void startNotification() {
-        if (!mStarted) {
+        mMainWorker.schedule(() -> {
+            if (mStarted) {
+                return;
+            }
+
             mMetadata = mController.getMetadata();
             mPlaybackState = mController.getPlaybackState();
 
-            // The notification must be updated after setting started to true
-            createNotification()
-                    .subscribeOn(Schedulers.io())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(notification -> {
-                        if (notification != null) {
-                            mController.registerCallback(mCb);
-                            IntentFilter filter = new IntentFilter();
-                            filter.addAction(ACTION_NEXT);
-                            filter.addAction(ACTION_PAUSE);
-                            filter.addAction(ACTION_PLAY);
-                            filter.addAction(ACTION_PREV);
-                            filter.addAction(ACTION_STOP_CASTING);
-                            mService.registerReceiver(this, filter);
-
-                            mService.startForeground(NOTIFICATION_ID, notification);
-                            mStarted = true;
-                        }
-                    });
-        }
+            Notification notification = renderNotification();
+            if (notification != null) {
+                mController.registerCallback(mCb);
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(ACTION_NEXT);
+                filter.addAction(ACTION_PAUSE);
+                filter.addAction(ACTION_PLAY);
+                filter.addAction(ACTION_PREV);
+                filter.addAction(ACTION_STOP_CASTING);
+                mService.registerReceiver(this, filter);
+
+                mService.startForeground(NOTIFICATION_ID, notification);
+                mLastUpdateTime = SystemClock.elapsedRealtime();
+                mStarted = true;
+            }
+        });
     }
 
     /**
@@ -160,6 +222,17 @@ public class MediaNotificationManager extends BroadcastReceiver {
         if (mStarted) {
             mStarted = false;
             mController.unregisterCallback(mCb);
+            if (mUpdateSubscription != null) {
+                mUpdateSubscription.unsubscribe();
+                mUpdateSubscription = null;
+            }
+            if (mArtSubscription != null) {
+                mArtSubscription.unsubscribe();
+                mArtSubscription = null;
+            }
+            // Rendered from scratch when started again
+            mArtMediaId = null;
+            mBuilder = null;
             try {
                 mNotificationManager.cancel(NOTIFICATION_ID);
                 mService.unregisterReceiver(this);
@@ -238,13 +311,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
                     state.getState() == PlaybackState.STATE_NONE) {
                 stopNotification();
             } else {
-                createNotification()
-                        .subscribeOn(Schedulers.io())
-                        .subscribe(notification -> {
-                            if (notification != null) {
-                                mNotificationManager.notify(NOTIFICATION_ID, notification);
-                            }
-                        });
+                requestUpdate();
             }
         }
 
@@ -252,13 +319,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         public void onMetadataChanged(MediaMetadata metadata) {
             mMetadata = metadata;
             LogHelper.d(TAG, "Received new metadata ", metadata);
-            createNotification()
-                    .subscribeOn(Schedulers.io())
-                    .subscribe(notification -> {
-                        if (notification != null) {
-                            mNotificationManager.notify(NOTIFICATION_ID, notification);
-                        }
-                    });
+            requestUpdate();
         }
 
         @Override
@@ -269,119 +330,196 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
     };
 
-    private Observable<Notification> createNotification() {
+    /**
+     * Updates the notification once the minimum interval since the last update has passed.
+     * Changes arriving in the meantime are rendered by the same update.
+     */
+    private void requestUpdate() {
+        if (!mStarted || mUpdateSubscription != null) {
+            return;
+        }
 
-        return Observable.create(subscriber -> {
-            LogHelper.d(TAG, "updateNotificationMetadata. mMetadata=", mMetadata);
-            if (mMetadata == null || mPlaybackState == null) {
-                subscriber.onNext(null);
-                subscriber.onCompleted();
-                return;
-            }
+        long delay = mLastUpdateTime + MIN_UPDATE_INTERVAL_MS - SystemClock.elapsedRealtime();
+        mUpdateSubscription = mMainWorker.schedule(
+                this::updateNotification, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
 
-            Notification.Builder notificationBuilder = new Notification.Builder(mService);
-            int playPauseButtonPosition = 0;
+    private void updateNotification() {
+        mUpdateSubscription = null;
+        if (!mStarted) {
+            return;
+        }
 
-            // If skip to previous action is enabled
-            if ((mPlaybackState.getActions() & PlaybackState.ACTION_SKIP_TO_PREVIOUS) != 0) {
-                notificationBuilder.addAction(R.drawable.ic_skip_previous_white_24dp,
-                        mService.getString(R.string.label_previous), mPreviousIntent);
+        Notification notification = renderNotification();
+        if (notification != null) {
+            mNotificationManager.notify(NOTIFICATION_ID, notification);
+            mLastUpdateTime = SystemClock.elapsedRealtime();
+        }
+    }
 
-                // If there is a "skip to previous" button, the play/pause button will
-                // be the second one. We need to keep track of it, because the MediaStyle notification
-                // requires to specify the index of the buttons (actions) that should be visible
-                // when in compact view.
-                playPauseButtonPosition = 1;
-            }
+    /**
+     * @return the notification for the current metadata and playback state, or null if there's
+     * nothing to show or it would look the same as the one already shown
+     */
+    private Notification renderNotification() {
+        LogHelper.d(TAG, "renderNotification. mMetadata=", mMetadata);
+        if (mMetadata == null || mPlaybackState == null) {
+            return null;
+        }
 
-            addPlayPauseAction(notificationBuilder);
+        MediaDescription description = mMetadata.getDescription();
+        loadAlbumArt(mMetadata);
 
-            // If skip to next action is enabled
-            if ((mPlaybackState.getActions() & PlaybackState.ACTION_SKIP_TO_NEXT) != 0) {
-                notificationBuilder.addAction(R.drawable.ic_skip_next_white_24dp,
-                        mService.getString(R.string.label_next), mNextIntent);
-            }
+        String castName = null;
+        if (mController != null && mController.getExtras() != null) {
+            castName = mController.getExtras().getString(MusicService.EXTRA_CONNECTED_CAST);
+        }
 
-            MediaDescription description = mMetadata.getDescription();
+        boolean playing = mPlaybackState.getState() == PlaybackState.STATE_PLAYING;
+        long when = playing && mPlaybackState.getPosition() >= 0 ?
+                System.currentTimeMillis() - getCurrentPosition(mPlaybackState) : 0;
 
-            Bitmap art = null;
-            try {
+        int actions = 0;
+        if ((mPlaybackState.getActions() & PlaybackState.ACTION_SKIP_TO_PREVIOUS) != 0) {
+            actions |= ACTIONS_PREVIOUS;
+        }
+        if (playing) {
+            actions |= ACTIONS_PAUSE;
+        }
+        if ((mPlaybackState.getActions() & PlaybackState.ACTION_SKIP_TO_NEXT) != 0) {
+            actions |= ACTIONS_NEXT;
+        }
+        if (castName != null) {
+            actions |= ACTIONS_STOP_CASTING;
+        }
 
-                art = Glide
-                        .with(mService)
-                        .load(mMetadata)
-                        .asBitmap()
-                        .diskCacheStrategy(DiskCacheStrategy.ALL)
-                        .into(LARGE_ALBUM_ART_DIMENSIONS[0], LARGE_ALBUM_ART_DIMENSIONS[1])
-                        .get();
+        if (mBuilder != null && actions == mBuilderActions &&
+                TextUtils.equals(description.getTitle(), mRenderedTitle) &&
+                TextUtils.equals(description.getSubtitle(), mRenderedSubtitle) &&
+                mArt == mRenderedArt &&
+                TextUtils.equals(castName, mRenderedCastName) &&
+                playing == mRenderedPlaying &&
+                Math.abs(when - mRenderedWhen) < POSITION_TOLERANCE_MS) {
+            LogHelper.d(TAG, "renderNotification. Nothing changed");
+            return null;
+        }
 
-            } catch (InterruptedException | ExecutionException e) {
-                LogHelper.w(TAG, e, "Unable to load notification icon.");
-            }
+        // Actions can't be removed from a builder, a new one is needed when they change
+        if (mBuilder == null || actions != mBuilderActions) {
+            mBuilder = createBuilder(actions);
+            mBuilderActions = actions;
+        }
 
+        String mediaId = description.getMediaId();
+        if (mContentIntent == null || !TextUtils.equals(mediaId, mContentIntentMediaId)) {
+            mContentIntent = createContentIntent(description);
+            mContentIntentMediaId = mediaId;
+        }
 
-            notificationBuilder
-                    .setStyle(new Notification.MediaStyle()
-                            .setShowActionsInCompactView(
-                                    new int[]{playPauseButtonPosition})  // show only play/pause in compact view
-                            .setMediaSession(mSessionToken))
-                    .setColor(mNotificationColor)
-                    .setSmallIcon(R.drawable.ic_notification)
-                    .setVisibility(Notification.VISIBILITY_PUBLIC)
-                    .setUsesChronometer(true)
-                    .setContentIntent(createContentIntent(description))
-                    .setContentTitle(description.getTitle())
-                    .setContentText(description.getSubtitle())
-                    .setLargeIcon(art);
-
-            if (mController != null && mController.getExtras() != null) {
-                String castName = mController.getExtras().getString(MusicService.EXTRA_CONNECTED_CAST);
-                if (castName != null) {
-                    String castInfo = mService.getResources()
-                            .getString(R.string.casting_to_device, castName);
-                    notificationBuilder.setSubText(castInfo);
-                    notificationBuilder.addAction(R.drawable.ic_close_black_24dp,
-                            mService.getString(R.string.stop_casting), mStopCastIntent);
-                }
-            }
+        mBuilder
+                .setContentIntent(mContentIntent)
+                .setContentTitle(description.getTitle())
+                .setContentText(description.getSubtitle())
+                .setLargeIcon(mArt)
+                .setSubText(castName != null ?
+                        mService.getResources().getString(R.string.casting_to_device, castName) :
+                        null);
+
+        setNotificationPlaybackState(mBuilder, playing, when);
+
+        mRenderedTitle = description.getTitle();
+        mRenderedSubtitle = description.getSubtitle();
+        mRenderedArt = mArt;
+        mRenderedCastName = castName;
+        mRenderedPlaying = playing;
+        mRenderedWhen = when;
+
+        return mBuilder.build();
+    }
 
-            setNotificationPlaybackState(notificationBuilder);
+    private Notification.Builder createBuilder(int actions) {
+        Notification.Builder builder = new Notification.Builder(mService);
+        int playPauseButtonPosition = 0;
 
-            subscriber.onNext(notificationBuilder.build());
-            subscriber.onCompleted();
-        });
-    }
+        if ((actions & ACTIONS_PREVIOUS) != 0) {
+            builder.addAction(mPreviousAction);
 
-    private void addPlayPauseAction(Notification.Builder builder) {
-        LogHelper.d(TAG, "updatePlayPauseAction");
-        String label;
-        int icon;
-        PendingIntent intent;
-        if (mPlaybackState.getState() == PlaybackState.STATE_PLAYING) {
-            label = mService.getString(R.string.label_pause);
-            icon = R.drawable.kite_ic_pause_white_24dp;
-            intent = mPauseIntent;
-        } else {
-            label = mService.getString(R.string.label_play);
-            icon = R.drawable.kite_ic_play_arrow_white_24dp;
-            intent = mPlayIntent;
+            // If there is a "skip to previous" button, the play/pause button will
+            // be the second one. We need to keep track of it, because the MediaStyle notification
+            // requires to specify the index of the buttons (actions) that should be visible
+            // when in compact view.
+            playPauseButtonPosition = 1;
+        }
+
+        builder.addAction((actions & ACTIONS_PAUSE) != 0 ? mPauseAction : mPlayAction);
+
+        if ((actions & ACTIONS_NEXT) != 0) {
+            builder.addAction(mNextAction);
+        }
+
+        if ((actions & ACTIONS_STOP_CASTING) != 0) {
+            builder.addAction(mStopCastAction);
         }
-        builder.addAction(new Notification.Action(icon, label, intent));
+
+        return builder
+                .setStyle(new Notification.MediaStyle()
+                        .setShowActionsInCompactView(
+                                new int[]{playPauseButtonPosition})  // show only play/pause in compact view
+                        .setMediaSession(mSessionToken))
+                .setColor(mNotificationColor)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setVisibility(Notification.VISIBILITY_PUBLIC);
     }
 
-    private void setNotificationPlaybackState(Notification.Builder builder) {
-        LogHelper.d(TAG, "updateNotificationPlaybackState. mPlaybackState=", mPlaybackState);
-        if (mPlaybackState == null || !mStarted) {
-            LogHelper.d(TAG, "updateNotificationPlaybackState. cancelling notification!");
-            mService.stopForeground(true);
+    /**
+     * Loads the album art of the track if it isn't the one already loaded. The notification
+     * is shown without art until it's decoded, then updated.
+     */
+    private void loadAlbumArt(MediaMetadata metadata) {
+        String mediaId = metadata.getDescription().getMediaId();
+        if (TextUtils.equals(mediaId, mArtMediaId)) {
             return;
         }
-        if (mPlaybackState.getState() == PlaybackState.STATE_PLAYING
-                && mPlaybackState.getPosition() >= 0) {
+
+        if (mArtSubscription != null) {
+            mArtSubscription.unsubscribe();
+            mArtSubscription = null;
+        }
+
+        mArtMediaId = mediaId;
+        mArt = mAlbumArtCache.peekAlbumArt(metadata, AlbumArtCache.BUCKET_MEDIUM);
+
+        if (mArt == null) {
+            mArtSubscription = mAlbumArtCache
+                    .getAlbumArt(metadata, AlbumArtCache.BUCKET_MEDIUM)
+                    .subscribeOn(Schedulers.io())
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(art -> {
+                        if (TextUtils.equals(mediaId, mArtMediaId)) {
+                            mArt = art;
+                            requestUpdate();
+                        }
+                    }, error -> LogHelper.w(TAG, error,
+                            "loadAlbumArt - Unable to load album art for mediaId=", mediaId));
+        }
+    }
+
+    /**
+     * @return the position the state's reported one has advanced to since it was updated
+     */
+    private static long getCurrentPosition(PlaybackState state) {
+        long elapsed = SystemClock.elapsedRealtime() - state.getLastPositionUpdateTime();
+        return state.getPosition() + (long) (elapsed * state.getPlaybackSpeed());
+    }
+
+    private void setNotificationPlaybackState(Notification.Builder builder, boolean playing,
+                                              long when) {
+        LogHelper.d(TAG, "updateNotificationPlaybackState. mPlaybackState=", mPlaybackState);
+        if (when > 0) {
             LogHelper.d(TAG, "updateNotificationPlaybackState. updating playback position to ",
-                    (System.currentTimeMillis() - mPlaybackState.getPosition()) / 1000, " seconds");
+                    (System.currentTimeMillis() - when) / 1000, " seconds");
             builder
-                .setWhen(System.currentTimeMillis() - mPlaybackState.getPosition())
+                .setWhen(when)
                 .setShowWhen(true)
                 .setUsesChronometer(true);
         } else {
@@ -393,7 +531,7 @@ public class MediaNotificationManager extends BroadcastReceiver {
         }
 
         // Make sure that the notification can be dismissed by the user when we are not playing:
-        builder.setOngoing(mPlaybackState.getState() == PlaybackState.STATE_PLAYING);
+        builder.setOngoing(playing);
     }
 
 }
@@ -29,6 +29,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.browse.MediaBrowser;
 import android.media.browse.MediaBrowser.MediaItem;
@@ -36,7 +37,11 @@ import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
+import android.os.Process;
 import android.os.SystemClock;
 import android.service.media.MediaBrowserService;
 import android.support.annotation.NonNull;
@@ -48,6 +53,8 @@ import com.google.android.gms.analytics.Tracker;
 import com.google.android.gms.cast.ApplicationMetadata;
 import com.google.android.libraries.cast.companionlibrary.cast.VideoCastManager;
 import com.google.android.libraries.cast.companionlibrary.cast.callbacks.VideoCastConsumerImpl;
+import com.misterpereira.android.kiteplayer.dropbox.SyncEvent;
+import com.misterpereira.android.kiteplayer.model.AlbumArtCache;
 import com.misterpereira.android.kiteplayer.model.MusicProvider;
 import com.misterpereira.android.kiteplayer.ui.NowPlayingActivity;
 import com.misterpereira.android.kiteplayer.utils.CarHelper;
@@ -57,17 +64,25 @@ import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
 import com.misterpereira.android.kiteplayer.utils.QueueHelper;
 import com.misterpereira.android.kiteplayer.utils.WearHelper;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 
+import dagger.Lazy;
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
 import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
 
 
 /**
@@ -130,6 +145,9 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
 
     // Extra on MediaSession that contains the Cast device name currently connected to
     public static final String EXTRA_CONNECTED_CAST = "com.misterpereira.android.kiteplayer.CAST_NAME";
+
+    // Extra on MediaSession of debug builds that contains the playback start latency percentiles
+    public static final String EXTRA_PLAYBACK_LATENCY = "com.misterpereira.android.kiteplayer.PLAYBACK_LATENCY";
     // The action of the incoming Intent indicating that it contains a command
     // to be executed (see {@link #onStartCommand})
     public static final String ACTION_CMD = "com.misterpereira.android.kiteplayer.ACTION_CMD";
@@ -146,20 +164,25 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     private static final String TAG = LogHelper.makeLogTag(MusicService.class);
     // Action to thumbs up a media item
     private static final String CUSTOM_ACTION_THUMBS_UP = "com.misterpereira.android.kiteplayer.THUMBS_UP";
+    // Actions to toggle shuffle and to cycle through repeat modes
+    private static final String CUSTOM_ACTION_SHUFFLE = "com.misterpereira.android.kiteplayer.SHUFFLE";
+    private static final String CUSTOM_ACTION_REPEAT = "com.misterpereira.android.kiteplayer.REPEAT";
     // Delay stopSelf by using a handler.
     private static final int STOP_DELAY = 30000;
+    // Number of tracks added to the playing queue at a time while it's being built
+    private static final int QUEUE_PAGE_SIZE = 100;
+    // Folders listed recently enough to be told about synchronization changes
+    private static final int MAX_LOADED_FOLDERS = 64;
 
     // Song catalog manager
     private MediaSession mSession;
     // "Now playing" queue:
-    private final List<MediaSession.QueueItem> mPlayingQueue =
-            Collections.synchronizedList(new ArrayList<>());
-    private int mCurrentIndexOnQueue;
+    private volatile PlayingQueue mPlayingQueue = PlayingQueue.empty();
     private MediaNotificationManager mMediaNotificationManager;
     // Indicates whether the service was started.
     private boolean mServiceStarted;
     private Bundle mSessionExtras;
-    private final DelayedStopHandler mDelayedStopHandler = new DelayedStopHandler(this);
+    private DelayedStopHandler mDelayedStopHandler;
     private Playback mPlayback;
     private MediaRouter mMediaRouter;
     private PackageValidator mPackageValidator;
@@ -167,11 +190,51 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     @Inject
     MusicProvider mMusicProvider;
 
+    // Created by the startup warm up, browsers connecting on a cold start don't wait for it
+    @Inject
+    Lazy<Tracker> mGATracker;
+
+    @Inject
+    PlayingQueueStore mQueueStore;
+
+    @Inject
+    @Named(KiteApplicationModule.PLAYBACK_IO_SCHEDULER)
+    Scheduler mIoScheduler;
+
     @Inject
-    Tracker mGATracker;
+    PlaybackLatencyTracker mLatencyTracker;
+    // Latency traces already published to the session extras
+    private int mPublishedTraceCount;
+
+    // Session callbacks, player events and queue updates are all serialized on this thread
+    private HandlerThread mPlaybackThread;
+    private Handler mPlaybackHandler;
+    private Scheduler mPlaybackScheduler;
 
     private VideoCastManager mCastManager;
+    // Registers the cast consumer once the main thread is idle
+    private final MessageQueue.IdleHandler mCastRegistration = this::registerCastConsumer;
     private Subscription mQueueSubscription;
+    private Subscription mQueueWindowSubscription;
+
+    // Music ids of the tracks whose metadata should be published to the session
+    private final PublishSubject<String> mMetadataRequests = PublishSubject.create();
+    private Subscription mMetadataSubscription;
+
+    // Media ids of the folders listed by onLoadChildren, by folder key
+    private final Map<String, String> mLoadedFolders =
+            new LinkedHashMap<String, String>(MAX_LOADED_FOLDERS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_LOADED_FOLDERS;
+                }
+            };
+    private Subscription mSyncEventsSubscription;
+
+    // Playback state waiting to be published, with the error it should carry
+    private final Runnable mPublishPlaybackState = this::publishPlaybackState;
+    private boolean mPlaybackStateUpdatePending;
+    private String mPendingPlaybackError;
 
     private boolean mIsConnectedToCar;
     private BroadcastReceiver mCarConnectionReceiver;
@@ -189,10 +252,11 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             mSessionExtras.putString(EXTRA_CONNECTED_CAST, mCastManager.getDeviceName());
             mSession.setExtras(mSessionExtras);
             // Now we can switch to CastPlayback
-            Playback playback = new CastPlayback(mMusicProvider,getApplicationContext());
+            Playback playback = new CastPlayback(mMusicProvider, getApplicationContext(),
+                    mPlaybackScheduler, mIoScheduler);
             mMediaRouter.setMediaSession(mSession);
-            switchToPlayer(playback, true);
-            mGATracker.send(
+            mPlaybackHandler.post(() -> switchToPlayer(playback, true));
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("GoogleCast")
                             .setAction("Connect")
@@ -204,10 +268,11 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             LogHelper.d(TAG, "onDisconnected");
             mSessionExtras.remove(EXTRA_CONNECTED_CAST);
             mSession.setExtras(mSessionExtras);
-            Playback playback = new LocalPlayback(MusicService.this, mMusicProvider);
+            Playback playback = new LocalPlayback(MusicService.this, mMusicProvider,
+                    mLatencyTracker, mPlaybackScheduler, mIoScheduler);
             mMediaRouter.setMediaSession(null);
-            switchToPlayer(playback, false);
-            mGATracker.send(
+            mPlaybackHandler.post(() -> switchToPlayer(playback, false));
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("GoogleCast")
                             .setAction("Disconnect")
@@ -227,16 +292,28 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         // Dependency injection
         ((KiteApplication)getApplication()).getComponent().inject(this);
 
+        // MediaPlayer callbacks are delivered on the looper of the thread creating it, so
+        // players are created on this thread too
+        mPlaybackThread = new HandlerThread("PlaybackThread", Process.THREAD_PRIORITY_AUDIO);
+        mPlaybackThread.start();
+        Looper playbackLooper = mPlaybackThread.getLooper();
+        mPlaybackHandler = new Handler(playbackLooper);
+        mPlaybackScheduler = AndroidSchedulers.handlerThread(mPlaybackHandler);
+        mDelayedStopHandler = new DelayedStopHandler(this, playbackLooper);
+        mMetadataSubscription = subscribeMetadataRequests();
+        mSyncEventsSubscription = subscribeSyncEvents();
+
         mPackageValidator = new PackageValidator(this);
 
         // Start a new MediaSession
         mSession = new MediaSession(this, "MusicService");
         setSessionToken(mSession.getSessionToken());
-        mSession.setCallback(new MediaSessionCallback());
+        mSession.setCallback(new MediaSessionCallback(), mPlaybackHandler);
         mSession.setFlags(MediaSession.FLAG_HANDLES_MEDIA_BUTTONS |
                 MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS);
 
-        mPlayback = new LocalPlayback(this, mMusicProvider);
+        mPlayback = new LocalPlayback(this, mMusicProvider, mLatencyTracker,
+                mPlaybackScheduler, mIoScheduler);
         mPlayback.setState(PlaybackState.STATE_NONE);
         mPlayback.setCallback(this);
         mPlayback.start();
@@ -256,8 +333,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         updatePlaybackState(null);
 
         mMediaNotificationManager = new MediaNotificationManager(this);
-        mCastManager = VideoCastManager.getInstance();
-        mCastManager.addVideoCastConsumer(mCastConsumer);
+        Looper.myQueue().addIdleHandler(mCastRegistration);
         mMediaRouter = MediaRouter.getInstance(getApplicationContext());
 
         IntentFilter filter = new IntentFilter(CarHelper.ACTION_MEDIA_STATUS);
@@ -267,7 +343,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                 String connectionEvent = intent.getStringExtra(CarHelper.MEDIA_CONNECTION_STATUS);
                 mIsConnectedToCar = CarHelper.MEDIA_CONNECTED.equals(connectionEvent);
 
-                mGATracker.send(
+                mGATracker.get().send(
                         new HitBuilders.EventBuilder()
                                 .setCategory("AndroidAuto")
                                 .setAction(mIsConnectedToCar ? "Connect" : "Disconnect")
@@ -280,6 +356,12 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         registerReceiver(mCarConnectionReceiver, filter);
     }
 
+    private boolean registerCastConsumer() {
+        mCastManager = ((KiteApplication) getApplication()).getCastManager();
+        mCastManager.addVideoCastConsumer(mCastConsumer);
+        return false;
+    }
+
     /**
      * (non-Javadoc)
      * @see android.app.Service#onStartCommand(android.content.Intent, int, int)
@@ -291,11 +373,13 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             String command = startIntent.getStringExtra(CMD_NAME);
             if (ACTION_CMD.equals(action)) {
                 if (CMD_PAUSE.equals(command)) {
-                    if (mPlayback != null && mPlayback.isPlaying()) {
-                        handlePauseRequest();
-                    }
+                    mPlaybackHandler.post(() -> {
+                        if (mPlayback != null && mPlayback.isPlaying()) {
+                            handlePauseRequest();
+                        }
+                    });
                 } else if (CMD_STOP_CASTING.equals(command)) {
-                    mCastManager.disconnect();
+                    ((KiteApplication) getApplication()).getCastManager().disconnect();
                 }
             }
         }
@@ -314,16 +398,40 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     public void onDestroy() {
         LogHelper.d(TAG, "onDestroy");
         unregisterReceiver(mCarConnectionReceiver);
-        // Service is being killed, so make sure we release our resources
-        handleStopRequest(null);
+        mSyncEventsSubscription.unsubscribe();
 
-        mCastManager = VideoCastManager.getInstance();
-        mCastManager.removeVideoCastConsumer(mCastConsumer);
+        Looper.myQueue().removeIdleHandler(mCastRegistration);
+        if (mCastManager != null) {
+            mCastManager.removeVideoCastConsumer(mCastConsumer);
+        }
 
-        mDelayedStopHandler.removeCallbacksAndMessages(null);
-        // Always release the MediaSession to clean up resources
-        // and notify associated MediaController(s).
-        mSession.release();
+        mPlaybackHandler.post(() -> {
+            // Service is being killed, so make sure we release our resources
+            handleStopRequest(null);
+            mDelayedStopHandler.removeCallbacksAndMessages(null);
+            mMetadataSubscription.unsubscribe();
+            // The session won't take updates once released
+            publishPlaybackState();
+            // Always release the MediaSession to clean up resources
+            // and notify associated MediaController(s).
+            mSession.release();
+        });
+        // Lets the pending playback work finish before the thread ends
+        mPlaybackThread.quitSafely();
+
+        if (BuildConfig.DEBUG) {
+            mLatencyTracker.writeDumpFile(getFilesDir());
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        mLatencyTracker.dump(writer);
+        Playback playback = mPlayback;
+        if (playback instanceof CastPlayback) {
+            ((CastPlayback) playback).dump(writer);
+        }
     }
 
     @Override
@@ -342,6 +450,11 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                     clientPackageName);
             return null;
         }
+
+        // Lets the browser read the album art Uris of the items and metadata it gets
+        grantUriPermission(clientPackageName, AlbumArtCache.getAlbumArtRootUri(),
+                Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PREFIX_URI_PERMISSION);
+
         //noinspection StatementWithEmptyBody
         if (CarHelper.isValidCarPackage(clientPackageName)) {
             // Optional: if your app needs to adapt the music library to show a different subset
@@ -350,7 +463,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             // that should be different on cars, you should instead use the boolean flag
             // set by the BroadcastReceiver mCarConnectionReceiver (mIsConnectedToCar).
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("AndroidAuto")
                             .setAction("Browse")
@@ -364,7 +477,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             // Wear device, you should return a different MEDIA ROOT here, and then,
             // on onLoadChildren, handle it accordingly.
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("AndroidWear")
                             .setAction("Browse")
@@ -407,14 +520,104 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId);
 
         final List<MediaBrowser.MediaItem> mediaItems = new ArrayList<>();
-        final String folder;
+        final String categoryType = MediaIDHelper.extractBrowserCategoryFromMediaID(parentMediaId);
+        final String[] categoryValues =
+                MediaIDHelper.extractBrowseCategoryValueFromMediaID(parentMediaId);
+
+        final Observable<MediaItem> children;
+
+        if (MediaIDHelper.MEDIA_ID_ROOT.equals(categoryType)) {
+
+            if (categoryValues.length == 0) {
+                mediaItems.add(createCategoryRootItem(MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST,
+                        R.string.browse_artists, R.string.browse_artist_subtitle));
+                mediaItems.add(createCategoryRootItem(MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM,
+                        R.string.browse_albums, R.string.browse_album_subtitle));
+                mediaItems.add(createCategoryRootItem(MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE,
+                        R.string.browse_genres, R.string.browse_genre_subtitle));
+            }
+
+            synchronized (mLoadedFolders) {
+                mLoadedFolders.put(
+                        SyncEvent.toFolderKey(DropboxHelper.makeDropboxPath(null, categoryValues)),
+                        parentMediaId);
+            }
+
+            children = loadFolderChildren(categoryValues);
+
+        } else if (MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST.equals(categoryType) ||
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM.equals(categoryType) ||
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE.equals(categoryType)) {
 
-        folder = DropboxHelper
-                .makeDropboxPath(null,
-                        MediaIDHelper.extractBrowseCategoryValueFromMediaID(parentMediaId));
+            children = loadCategoryChildren(categoryType, categoryValues);
+
+        } else {
+            children = Observable.error(
+                    new IllegalArgumentException("Unknown media id " + parentMediaId));
+        }
 
         //noinspection unchecked
-        mMusicProvider.getMusicByFolder(folder).map(mm -> {
+        children
+                .subscribeOn(Schedulers.io())
+                .subscribe(
+                        mediaItems::add,
+                        error -> {
+                            LogHelper.w(TAG, error, "OnLoadChildren failed for ", parentMediaId);
+                            result.sendResult(Collections.EMPTY_LIST);
+                        },
+                        () -> {
+                            LogHelper.d(TAG, "OnLoadChildren sending ", mediaItems.size(),
+                                    " results for ", parentMediaId);
+                            result.sendResult(mediaItems);
+                        });
+    }
+
+    private MediaItem createCategoryRootItem(String categoryType, int titleId, int subtitleId) {
+
+        MediaDescription description = new MediaDescription.Builder()
+                .setMediaId(categoryType)
+                .setTitle(getString(titleId))
+                .setSubtitle(getString(subtitleId))
+                .build();
+
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+
+    /**
+     * Artists, albums or genres when no value is given, otherwise the songs in that category.
+     * Category listings come from the precomputed aggregate tables, nothing is grouped here.
+     */
+    private Observable<MediaItem> loadCategoryChildren(String categoryType,
+                                                       String[] categoryValues) {
+
+        if (categoryValues.length == 0) {
+            return mMusicProvider
+                    .getCategories(categoryType)
+                    .map(mm -> new MediaItem(mm.getDescription(), MediaItem.FLAG_BROWSABLE));
+        }
+
+        return mMusicProvider
+                .getMusicByCategory(categoryType, categoryValues[0])
+                .map(mm -> {
+
+                    String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
+                            mm.getDescription().getMediaId(), categoryType, categoryValues[0]);
+
+                    MediaMetadata trackCopy = new MediaMetadata.Builder(mm)
+                            .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
+                            .build();
+
+                    return new MediaItem(trackCopy.getDescription(),
+                            MusicProvider.willBePlayable(this, trackCopy) ?
+                                    MediaItem.FLAG_PLAYABLE : 0);
+                });
+    }
+
+    private Observable<MediaItem> loadFolderChildren(String[] categoryValues) {
+
+        final String folder = DropboxHelper.makeDropboxPath(null, categoryValues);
+
+        return mMusicProvider.getMusicByFolder(folder).map(mm -> {
 
             if (Boolean.parseBoolean(mm.getString(MusicProvider.CUSTOM_METADATA_IS_DIRECTORY))) {
 
@@ -444,53 +647,46 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
 
             }
 
-        })
-                .subscribeOn(Schedulers.io())
-                .subscribe(
-                        mediaItems::add,
-                        error -> result.sendResult(Collections.EMPTY_LIST),
-                        () -> {
-                            LogHelper.d(TAG, "OnLoadChildren sending ", mediaItems.size(),
-                                    " results for ", parentMediaId);
-                            result.sendResult(mediaItems);
-                        });
+        });
     }
 
     private final class MediaSessionCallback extends MediaSession.Callback {
         @Override
         public void onPlay() {
             LogHelper.d(TAG, "play");
+            mLatencyTracker.startTrace("Play");
+            mLatencyTracker.beginSpan(PlaybackLatencyTracker.SPAN_QUEUE);
 
-            if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
+            if (mPlayingQueue.isEmpty() && restorePlayingQueue()) {
+                LogHelper.d(TAG, "play - Resuming saved queue");
+            } else if (mPlayingQueue.isEmpty()) {
 
                 if (mQueueSubscription != null) {
                     mQueueSubscription.unsubscribe();
                 }
 
                 mQueueSubscription = QueueHelper
-                        .getRandomQueue(mMusicProvider, getApplicationContext())
+                        .toArray(QueueHelper.getRandomQueue(mMusicProvider, getApplicationContext()))
                         .subscribeOn(Schedulers.io())
-                        .observeOn(Schedulers.immediate())
-                        .toList()
-                        .subscribe(queue -> {
-                            mPlayingQueue.clear();
-                            mPlayingQueue.addAll(queue);
-                            mSession.setQueue(mPlayingQueue);
-                            mSession.setQueueTitle(getString(R.string.random_queue_title));
+                        .observeOn(mPlaybackScheduler)
+                        .subscribe(musicIds -> {
                             // start playing from the beginning of the queue
-                            mCurrentIndexOnQueue = 0;
+                            setPlayingQueue(newPlayingQueue(
+                                    getString(R.string.random_queue_title),
+                                    QueueHelper.getSearchQueueHierarchy("random"),
+                                    musicIds));
 
-                            if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
+                            if (!mPlayingQueue.isEmpty()) {
                                 handlePlayRequest();
-                                mMusicProvider.preloadPlaylist(mPlayingQueue);
+                                mMusicProvider.preloadPlaylist(mPlayingQueue.getMusicIds());
                             }
                         });
             } else {
                 handlePlayRequest();
-                mMusicProvider.preloadPlaylist(mPlayingQueue);
+                mMusicProvider.preloadPlaylist(mPlayingQueue.getMusicIds());
             }
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("Play")
@@ -501,15 +697,15 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         @Override
         public void onSkipToQueueItem(long queueId) {
             LogHelper.d(TAG, "OnSkipToQueueItem:", queueId);
+            mLatencyTracker.startTrace("SkipToItem");
 
-            if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                // set the current index on queue from the music Id:
-                mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, queueId);
+            // the queueId is the music Id
+            if (mPlayingQueue.skipToQueueId(queueId)) {
                 // play the music
                 handlePlayRequest();
             }
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("SkipToItem")
@@ -522,7 +718,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             LogHelper.d(TAG, "onSeekTo:", position);
             mPlayback.seekTo((int) position);
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("Seek")
@@ -533,6 +729,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
             LogHelper.d(TAG, "playFromMediaId mediaId:", mediaId, "  extras=", extras);
+            mLatencyTracker.startTrace("PlayFromID");
+            mLatencyTracker.beginSpan(PlaybackLatencyTracker.SPAN_QUEUE);
 
             // The mediaId used here is not the unique musicId. This one comes from the
             // MediaBrowser, and is actually a "hierarchy-aware mediaID": a concatenation of
@@ -543,49 +741,52 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                 mQueueSubscription.unsubscribe();
             }
 
-            Observable<MediaSession.QueueItem> queueObservable = QueueHelper
+            Observable<Long> queueObservable = QueueHelper
                     .getPlayingQueue(mediaId, mMusicProvider, getApplicationContext());
+            String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
 
-            if (queueObservable == null) {
+            if (queueObservable == null || musicId == null) {
                 LogHelper.e(TAG,"onPlayFromMediaId - Null queue produced for mediaId=",mediaId);
                 return;
             }
 
-            mQueueSubscription = queueObservable
+            String queueTitle = getString(R.string.queue_title,
+                    DropboxHelper.makeDropboxPath(
+                            null,
+                            MediaIDHelper
+                                    .extractBrowseCategoryValueFromMediaID(mediaId)));
+
+            long selectedMusicId = Long.parseLong(musicId);
+
+            // The selected track starts playing on its own, the rest of the queue is then
+            // filled in pages around it
+            PlayingQueue queue = newPlayingQueue(
+                    queueTitle,
+                    QueueHelper.getQueueHierarchy(mediaId),
+                    new long[]{selectedMusicId});
+            queue.startGrowing();
+            setPlayingQueue(queue);
+
+            handlePlayRequest();
+
+            mQueueSubscription = QueueHelper
+                    .buildQueueInPages(queueObservable, QUEUE_PAGE_SIZE)
                     .subscribeOn(Schedulers.io())
-                    .observeOn(Schedulers.immediate())
-                    .toList()
-                    .subscribe(queue -> {
-                        mPlayingQueue.clear();
-                        mPlayingQueue.addAll(queue);
-                        mSession.setQueue(mPlayingQueue);
-
-                        String queueTitle = getString(R.string.queue_title,
-                                DropboxHelper.makeDropboxPath(
-                                        null,
-                                        MediaIDHelper
-                                                .extractBrowseCategoryValueFromMediaID(mediaId)));
-
-                        mSession.setQueueTitle(queueTitle);
-
-                        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                            // set the current index on queue from the media Id:
-                            mCurrentIndexOnQueue = QueueHelper.getMusicIndexOnQueue(mPlayingQueue, mediaId);
-
-                            if (mCurrentIndexOnQueue < 0) {
-                                LogHelper.e(TAG, "playFromMediaId: media ID ", mediaId,
-                                        " could not be found on queue. Ignoring.");
-                            } else {
-                                // play the music
-                                handlePlayRequest();
-                                mMusicProvider.preloadPlaylist(mPlayingQueue);
-                            }
-                        }
+                    .observeOn(mPlaybackScheduler)
+                    .subscribe(page -> {
+                        // Keeps whatever is playing now, the user may have skipped meanwhile
+                        queue.appendMusicIds(page);
+                        updateSessionQueue();
+                        mPlayback.prepareNext(mPlayingQueue.getNextItem());
                     }, error -> {
                         LogHelper.e(TAG,error,"onPlayFromMediaId - Unable to create queue");
+                        finishPlayingQueue();
+                    }, () -> {
+                        finishPlayingQueue();
+                        mMusicProvider.preloadPlaylist(mPlayingQueue.getMusicIds());
                     });
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("PlayFromID")
@@ -598,7 +799,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             LogHelper.d(TAG, "pause. current state=", mPlayback.getState());
             handlePauseRequest();
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("Pause")
@@ -610,7 +811,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         public void onStop() {
             LogHelper.d(TAG, "stop. current state=", mPlayback.getState());
             handleStopRequest(null);
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("Stop")
@@ -621,21 +822,18 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         @Override
         public void onSkipToNext() {
             LogHelper.d(TAG, "skipToNext");
-            mCurrentIndexOnQueue++;
-            if (mPlayingQueue != null && mCurrentIndexOnQueue >= mPlayingQueue.size()) {
-                // This sample's behavior: skipping to next when in last song returns to the
-                // first song.
-                mCurrentIndexOnQueue = 0;
-            }
-            if (QueueHelper.isIndexValid(mCurrentIndexOnQueue, mPlayingQueue)) {
+            mLatencyTracker.startTrace("SkipToNext");
+            // Skipping to next when in last song returns to the first song, unless
+            // repeat is off.
+            if (mPlayingQueue.skipToNext()) {
                 handlePlayRequest();
             } else {
-                LogHelper.e(TAG, "skipToNext: cannot skip to next. next Index=",
-                        mCurrentIndexOnQueue, " queue length=",
-                        (mPlayingQueue == null ? "null" : mPlayingQueue.size()));
+                LogHelper.e(TAG, "skipToNext: cannot skip to next. current position=",
+                        mPlayingQueue.getCurrentPosition(), " queue length=",
+                        mPlayingQueue.size());
                 handleStopRequest("Cannot skip");
             }
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("SkipToNext")
@@ -646,22 +844,18 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         @Override
         public void onSkipToPrevious() {
             LogHelper.d(TAG, "skipToPrevious");
-            mCurrentIndexOnQueue--;
-            if (mPlayingQueue != null && mCurrentIndexOnQueue < 0) {
-                // This sample's behavior: skipping to previous when in first song restarts the
-                // first song.
-                mCurrentIndexOnQueue = 0;
-            }
-            if (QueueHelper.isIndexValid(mCurrentIndexOnQueue, mPlayingQueue)) {
+            mLatencyTracker.startTrace("SkipToPrevious");
+            // Skipping to previous when in first song restarts the first song.
+            if (mPlayingQueue.skipToPrevious()) {
                 handlePlayRequest();
             } else {
-                LogHelper.e(TAG, "skipToPrevious: cannot skip to previous. previous Index=",
-                        mCurrentIndexOnQueue, " queue length=",
-                        (mPlayingQueue == null ? "null" : mPlayingQueue.size()));
+                LogHelper.e(TAG, "skipToPrevious: cannot skip to previous. current position=",
+                        mPlayingQueue.getCurrentPosition(), " queue length=",
+                        mPlayingQueue.size());
                 handleStopRequest("Cannot skip");
             }
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("SkipToPrevious")
@@ -669,9 +863,41 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             );
         }
 
+        @Override
+        public void onCustomAction(@NonNull String action, Bundle extras) {
+            LogHelper.d(TAG, "onCustomAction: ", action);
+
+            switch (action) {
+                case CUSTOM_ACTION_SHUFFLE:
+                    // Only the play order changes, the queue items stay as they are
+                    mPlayingQueue.setShuffle(!mPlayingQueue.isShuffled());
+                    break;
+                case CUSTOM_ACTION_REPEAT:
+                    mPlayingQueue.setRepeatMode(getNextRepeatMode(mPlayingQueue.getRepeatMode()));
+                    break;
+                default:
+                    LogHelper.w(TAG, "Unsupported custom action: ", action);
+                    return;
+            }
+
+            // The item following the current one may have changed
+            mPlayback.prepareNext(mPlayingQueue.getNextItem());
+            updateSessionQueue();
+            updatePlaybackState(null);
+
+            mGATracker.get().send(
+                    new HitBuilders.EventBuilder()
+                            .setCategory("PlayerCommand")
+                            .setAction(CUSTOM_ACTION_SHUFFLE.equals(action) ? "Shuffle" : "Repeat")
+                            .build()
+            );
+        }
+
         @Override
         public void onPlayFromSearch(final String query, final Bundle extras) {
             LogHelper.d(TAG, "playFromSearch  query=", query, " extras=", extras);
+            mLatencyTracker.startTrace("PlayFromSearch");
+            mLatencyTracker.beginSpan(PlaybackLatencyTracker.SPAN_QUEUE);
 
             mPlayback.setState(PlaybackState.STATE_CONNECTING);
 
@@ -680,29 +906,26 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             mMusicProvider
                     .init()
                     .subscribeOn(Schedulers.io())
-                    .observeOn(Schedulers.immediate())
+                    .observeOn(mPlaybackScheduler)
                     .doOnCompleted(() ->
                             QueueHelper
-                                    .getPlayingQueueFromSearch(
-                                            query, extras, mMusicProvider, getApplicationContext())
+                                    .toArray(QueueHelper.getPlayingQueueFromSearch(
+                                            query, extras, mMusicProvider, getApplicationContext()))
                                     .subscribeOn(Schedulers.io())
-                                    .observeOn(Schedulers.immediate())
-                                    .toList()
+                                    .observeOn(mPlaybackScheduler)
                                     .subscribe(
-                                            searchQueue -> {
-                                                mPlayingQueue.clear();
-                                                mPlayingQueue.addAll(searchQueue);
+                                            musicIds -> {
+                                                // immediately start playing from the beginning of the search results
+                                                setPlayingQueue(newPlayingQueue(
+                                                        getString(R.string.queue_title, query),
+                                                        QueueHelper.getSearchQueueHierarchy(query),
+                                                        musicIds));
 
                                                 LogHelper.d(TAG, "playFromSearch  playqueue.length=", mPlayingQueue.size());
-                                                mSession.setQueue(mPlayingQueue);
-                                                mSession.setQueueTitle(getString(R.string.queue_title, query));
-
-                                                if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-                                                    // immediately start playing from the beginning of the search results
-                                                    mCurrentIndexOnQueue = 0;
 
+                                                if (!mPlayingQueue.isEmpty()) {
                                                     handlePlayRequest();
-                                                    mMusicProvider.preloadPlaylist(mPlayingQueue);
+                                                    mMusicProvider.preloadPlaylist(mPlayingQueue.getMusicIds());
                                                 } else {
                                                     // if nothing was found, we need to warn the user and stop playing
                                                     handleStopRequest(getString(R.string.no_search_results));
@@ -712,7 +935,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                                             }))
                     .subscribe();
 
-            mGATracker.send(
+            mGATracker.get().send(
                     new HitBuilders.EventBuilder()
                             .setCategory("PlayerCommand")
                             .setAction("PlayFromSearch")
@@ -726,6 +949,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
      */
     private void handlePlayRequest() {
         LogHelper.d(TAG, "handlePlayRequest: mState=", mPlayback.getState());
+        mLatencyTracker.endSpan(PlaybackLatencyTracker.SPAN_QUEUE);
 
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         if (!mServiceStarted) {
@@ -741,12 +965,106 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             mSession.setActive(true);
         }
 
-        if (QueueHelper.isIndexValid(mCurrentIndexOnQueue, mPlayingQueue)) {
+        MediaSession.QueueItem item = mPlayingQueue.getCurrentItem();
+        if (item != null) {
             updateMetadata();
-            mPlayback.play(mPlayingQueue.get(mCurrentIndexOnQueue));
+            mPlayback.play(item);
+            mPlayback.prepareNext(mPlayingQueue.getNextItem());
+            updateSessionQueue();
+        }
+    }
+
+    /**
+     * Replaces the playing queue, publishes it to the session and saves it.
+     */
+    private void setPlayingQueue(PlayingQueue queue) {
+        mPlayingQueue = queue;
+        mSession.setQueueTitle(queue.getTitle());
+        updateSessionQueue();
+        mQueueStore.saveQueue(queue);
+    }
+
+    /**
+     * New queue played the way the current one is: same repeat mode, and shuffled if it is.
+     * A queue then marked as growing is shuffled once complete.
+     */
+    private PlayingQueue newPlayingQueue(String title, String[] hierarchy, long[] musicIds) {
+        PlayingQueue queue = new PlayingQueue(title, hierarchy, musicIds);
+        queue.setRepeatMode(mPlayingQueue.getRepeatMode());
+        queue.setShuffle(mPlayingQueue.isShuffled());
+        return queue;
+    }
+
+    /**
+     * Completes the queue built in pages, shuffling it if that was asked for meanwhile, and
+     * saves it whole.
+     */
+    private void finishPlayingQueue() {
+        boolean shuffled = mPlayingQueue.isShuffled();
+        mPlayingQueue.finishGrowing();
+        mQueueStore.saveQueue(mPlayingQueue);
+        if (shuffled) {
+            // The item following the current one changed
+            mPlayback.prepareNext(mPlayingQueue.getNextItem());
+            updateSessionQueue();
+            updatePlaybackState(null);
         }
     }
 
+    /**
+     * Plays the queue saved before the service was last killed, from where it was left.
+     *
+     * @return false if there's no saved queue
+     */
+    private boolean restorePlayingQueue() {
+
+        PlayingQueueStore.Snapshot snapshot = mQueueStore.restore();
+        if (snapshot == null || snapshot.queue.isEmpty()) {
+            return false;
+        }
+
+        if (mQueueSubscription != null) {
+            mQueueSubscription.unsubscribe();
+        }
+
+        setPlayingQueue(snapshot.queue);
+
+        MediaSession.QueueItem item = snapshot.queue.getCurrentItem();
+        mPlayback.setCurrentMediaId(item.getDescription().getMediaId());
+        mPlayback.setCurrentStreamPosition(snapshot.position);
+
+        handlePlayRequest();
+        mMusicProvider.preloadPlaylist(snapshot.queue.getMusicIds());
+
+        return true;
+    }
+
+    /**
+     * Publishes the items around the current one to the session. Only those are turned into
+     * full queue items, so the session queue stays small whatever the size of the queue.
+     */
+    private void updateSessionQueue() {
+
+        if (mQueueWindowSubscription != null) {
+            mQueueWindowSubscription.unsubscribe();
+        }
+
+        PlayingQueue queue = mPlayingQueue;
+
+        mQueueWindowSubscription = Observable
+                .defer(() -> Observable.just(queue.getSessionWindow(musicId ->
+                        mMusicProvider.getMusic(musicId).toBlocking().firstOrDefault(null))))
+                .subscribeOn(mIoScheduler)
+                .observeOn(mPlaybackScheduler)
+                .subscribe(window -> {
+                    if (queue == mPlayingQueue) {
+                        mSession.setQueue(window);
+                    }
+                }, error -> {
+                    LogHelper.e(TAG, error, "updateSessionQueue - Unable to publish queue");
+                });
+    }
+
     /**
      * Handle a request to pause music
      */
@@ -763,6 +1081,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
      */
     private void handleStopRequest(String withError) {
         LogHelper.d(TAG, "handleStopRequest: mState=", mPlayback.getState(), " error=", withError);
+        mLatencyTracker.cancelTrace();
         mPlayback.stop(true);
         // reset the delayed stop handler.
         mDelayedStopHandler.removeCallbacksAndMessages(null);
@@ -776,64 +1095,98 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     }
 
     private void updateMetadata() {
-        if (!QueueHelper.isIndexValid(mCurrentIndexOnQueue, mPlayingQueue)) {
+        String musicId = mPlayingQueue.getCurrentMusicId();
+        if (musicId == null) {
             LogHelper.e(TAG, "Can't retrieve current metadata.");
             updatePlaybackState(getResources().getString(R.string.error_no_metadata));
             return;
         }
-        MediaSession.QueueItem queueItem = mPlayingQueue.get(mCurrentIndexOnQueue);
-        String musicId = MediaIDHelper.extractMusicIDFromMediaID(
-                queueItem.getDescription().getMediaId());
 
+        mMetadataRequests.onNext(musicId);
+    }
 
-        mMusicProvider.getMusicMetadata(musicId)
-                .startWith(mMusicProvider.getMusic(musicId))
-                .debounce(500,TimeUnit.MILLISECONDS)
-                .distinct()
-                .subscribeOn(Schedulers.io())
+    /**
+     * Publishes the metadata of each requested track to the session. The tags are published as
+     * soon as they're read and again once with the album art. Requesting another track drops
+     * whatever is still being loaded for the previous one.
+     */
+    private Subscription subscribeMetadataRequests() {
+
+        return mMetadataRequests
+                // Deferred so the lookups happen on the io pool, not the requesting thread
+                .switchMap(musicId -> Observable
+                        .defer(() -> mMusicProvider.getMusicMetadata(musicId)
+                                .startWith(mMusicProvider.getMusic(musicId)))
+                        .subscribeOn(mIoScheduler)
+                        .onErrorResumeNext(error -> {
+                            LogHelper.e(TAG, error, "Unable to load metadata for musicId=", musicId);
+                            return Observable.empty();
+                        }))
+                .observeOn(mPlaybackScheduler)
                 .subscribe(track -> {
-                    if (track == null) {
-                        throw new IllegalArgumentException("Invalid musicId " + musicId);
-                    }
-                    final String trackId = track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
-                    if (!TextUtils.equals(musicId, trackId)) {
-                        IllegalStateException e = new IllegalStateException("track ID should match musicId.");
-                        LogHelper.e(TAG, "track ID should match musicId.",
-                                " musicId=", musicId, " trackId=", trackId,
-                                " mediaId from queueItem=", queueItem.getDescription().getMediaId(),
-                                " title from queueItem=", queueItem.getDescription().getTitle(),
-                                " mediaId from track=", track.getDescription().getMediaId(),
-                                " title from track=", track.getDescription().getTitle(),
-                                " source from track=", track.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE),
-                                e);
-                        throw e;
-                    }
-                    LogHelper.d(TAG, "Updating metadata for MusicID= ", musicId);
+                    String trackId = track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
 
                     // If we are still playing the same music
-                    synchronized (mPlayingQueue) {
-                        String currentPlayingId =
-                                QueueHelper.isIndexValid(mCurrentIndexOnQueue, mPlayingQueue) ?
-                                        MediaIDHelper.extractMusicIDFromMediaID(
-                                                mPlayingQueue
-                                                        .get(mCurrentIndexOnQueue)
-                                                        .getDescription()
-                                                        .getMediaId()) :
-                                        null;
-
-                        if (trackId.equals(currentPlayingId)) {
-                            mSession.setMetadata(track);
-                        }
+                    if (TextUtils.equals(trackId, mPlayingQueue.getCurrentMusicId())) {
+                        LogHelper.d(TAG, "Updating metadata for MusicID= ", trackId);
+                        mSession.setMetadata(track);
                     }
                 });
     }
 
+    /**
+     * Tells browsers to reload the listed folders whose direct children a synchronization
+     * changed, as they happen. Their ancestors are left alone.
+     */
+    private Subscription subscribeSyncEvents() {
+
+        return mMusicProvider
+                .getSyncEvents()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(event -> {
+                    LogHelper.d(TAG, "Sync progress: ", event);
+
+                    List<String> changedMediaIds = new ArrayList<>();
+                    synchronized (mLoadedFolders) {
+                        for (Map.Entry<String, String> folder : mLoadedFolders.entrySet()) {
+                            if (event.affectedFolders.contains(folder.getKey())) {
+                                changedMediaIds.add(folder.getValue());
+                            }
+                        }
+                    }
+
+                    for (String mediaId : changedMediaIds) {
+                        notifyChildrenChanged(mediaId);
+                    }
+                }, error -> LogHelper.e(TAG, error, "Sync progress failed"));
+    }
+
     /**
      * Update the current media player state, optionally showing an error message.
      *
      * @param error if not null, error message to present to the user.
      */
     private void updatePlaybackState(String error) {
+        if (error != null) {
+            mPendingPlaybackError = error;
+        }
+
+        // Changes made while handling the same event are published together
+        if (!mPlaybackStateUpdatePending) {
+            mPlaybackStateUpdatePending = true;
+            mPlaybackHandler.post(mPublishPlaybackState);
+        }
+    }
+
+    private void publishPlaybackState() {
+        if (!mPlaybackStateUpdatePending) {
+            return;
+        }
+
+        String error = mPendingPlaybackError;
+        mPendingPlaybackError = null;
+        mPlaybackStateUpdatePending = false;
+
         LogHelper.d(TAG, "updatePlaybackState, playback state=", mPlayback.getState());
         long position = PlaybackState.PLAYBACK_POSITION_UNKNOWN;
         if (mPlayback != null && mPlayback.isConnected()) {
@@ -843,6 +1196,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         PlaybackState.Builder stateBuilder = new PlaybackState.Builder()
                 .setActions(getAvailableActions());
 
+        setCustomActions(stateBuilder);
+
         int state = mPlayback.getState();
 
         // If there is an error message, send it to the playback state:
@@ -855,9 +1210,13 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         stateBuilder.setState(state, position, 1.0f, SystemClock.elapsedRealtime());
 
         // Set the activeQueueItemId if the current index is valid.
-        if (QueueHelper.isIndexValid(mCurrentIndexOnQueue, mPlayingQueue)) {
-            MediaSession.QueueItem item = mPlayingQueue.get(mCurrentIndexOnQueue);
-            stateBuilder.setActiveQueueItemId(item.getQueueId());
+        long activeQueueId = mPlayingQueue.getCurrentQueueId();
+        if (activeQueueId != MediaSession.QueueItem.UNKNOWN_ID) {
+            stateBuilder.setActiveQueueItemId(activeQueueId);
+
+            if (position != PlaybackState.PLAYBACK_POSITION_UNKNOWN) {
+                mQueueStore.savePosition(mPlayingQueue, (int) position);
+            }
         }
 
         mSession.setPlaybackState(stateBuilder.build());
@@ -865,21 +1224,78 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         if (state == PlaybackState.STATE_PLAYING || state == PlaybackState.STATE_PAUSED) {
             mMediaNotificationManager.startNotification();
         }
+
+        if (BuildConfig.DEBUG && state == PlaybackState.STATE_PLAYING) {
+            publishPlaybackLatency();
+        }
+    }
+
+    private void publishPlaybackLatency() {
+        int traceCount = mLatencyTracker.getTraceCount();
+        if (traceCount != mPublishedTraceCount) {
+            mPublishedTraceCount = traceCount;
+            mSessionExtras.putBundle(EXTRA_PLAYBACK_LATENCY, mLatencyTracker.toBundle());
+            mSession.setExtras(mSessionExtras);
+        }
+    }
+
+    private void setCustomActions(PlaybackState.Builder stateBuilder) {
+
+        if (mPlayingQueue.isEmpty()) {
+            return;
+        }
+
+        boolean shuffled = mPlayingQueue.isShuffled();
+        stateBuilder.addCustomAction(
+                CUSTOM_ACTION_SHUFFLE,
+                getString(shuffled ? R.string.action_shuffle_on : R.string.action_shuffle_off),
+                shuffled ? R.drawable.ic_shuffle_white_24dp : R.drawable.ic_shuffle_off_white_24dp);
+
+        int repeatLabel;
+        int repeatIcon;
+        switch (mPlayingQueue.getRepeatMode()) {
+            case PlayingQueue.REPEAT_ONE:
+                repeatLabel = R.string.action_repeat_one;
+                repeatIcon = R.drawable.ic_repeat_one_white_24dp;
+                break;
+            case PlayingQueue.REPEAT_NONE:
+                repeatLabel = R.string.action_repeat_off;
+                repeatIcon = R.drawable.ic_repeat_off_white_24dp;
+                break;
+            default:
+                repeatLabel = R.string.action_repeat_all;
+                repeatIcon = R.drawable.ic_repeat_white_24dp;
+        }
+        stateBuilder.addCustomAction(CUSTOM_ACTION_REPEAT, getString(repeatLabel), repeatIcon);
+    }
+
+    /**
+     * Repeat modes cycle from all to one to none.
+     */
+    private static int getNextRepeatMode(int repeatMode) {
+        switch (repeatMode) {
+            case PlayingQueue.REPEAT_ALL:
+                return PlayingQueue.REPEAT_ONE;
+            case PlayingQueue.REPEAT_ONE:
+                return PlayingQueue.REPEAT_NONE;
+            default:
+                return PlayingQueue.REPEAT_ALL;
+        }
     }
 
     private long getAvailableActions() {
         long actions = PlaybackState.ACTION_PLAY | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID |
                 PlaybackState.ACTION_PLAY_FROM_SEARCH;
-        if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
+        if (mPlayingQueue.isEmpty()) {
             return actions;
         }
         if (mPlayback.isPlaying()) {
             actions |= PlaybackState.ACTION_PAUSE;
         }
-        if (mCurrentIndexOnQueue > 0) {
+        if (mPlayingQueue.hasPrevious()) {
             actions |= PlaybackState.ACTION_SKIP_TO_PREVIOUS;
         }
-        if (mCurrentIndexOnQueue < mPlayingQueue.size() - 1) {
+        if (mPlayingQueue.hasNext()) {
             actions |= PlaybackState.ACTION_SKIP_TO_NEXT;
         }
         return actions;
@@ -892,12 +1308,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     public void onCompletion() {
         // The media player finished playing the current song, so we go ahead
         // and start the next.
-        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-            // In this sample, we restart the playing queue when it gets to the end:
-            mCurrentIndexOnQueue++;
-            if (mCurrentIndexOnQueue >= mPlayingQueue.size()) {
-                mCurrentIndexOnQueue = 0;
-            }
+        // The playing queue restarts when it gets to the end, unless repeat is off:
+        if (mPlayingQueue.moveToNextOnCompletion()) {
             handlePlayRequest();
         } else {
             // If there is nothing to play, we stop and release the resources:
@@ -912,10 +1324,11 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
 
     @Override
     public void onError(String error) {
-        if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
-            if (!QueueHelper.isIndexValid(++mCurrentIndexOnQueue, mPlayingQueue)) {
+        if (!mPlayingQueue.isEmpty()) {
+            if (!mPlayingQueue.hasNext()) {
                 updatePlaybackState(error);
             } else {
+                mPlayingQueue.skipToNext();
                 handlePlayRequest();
             }
         }
@@ -930,23 +1343,24 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             mQueueSubscription.unsubscribe();
         }
 
-        Observable<MediaSession.QueueItem> queueObservable = QueueHelper
+        Observable<Long> queueObservable = QueueHelper
                 .getPlayingQueue(mediaId, mMusicProvider, getApplicationContext());
+        String musicId = MediaIDHelper.extractMusicIDFromMediaID(mediaId);
 
-        if (queueObservable == null) {
+        if (queueObservable == null || musicId == null) {
             LogHelper.e(TAG, "onMetadataChanged - Null queue produced for mediaId=", mediaId);
             return;
         }
 
-        mQueueSubscription = queueObservable
+        mQueueSubscription = QueueHelper
+                .toArray(queueObservable)
                 .subscribeOn(Schedulers.io())
-                .toList()
-                .subscribe(queue -> {
-                    int index = QueueHelper.getMusicIndexOnQueue(queue, mediaId);
-                    if (index > -1) {
-                        mCurrentIndexOnQueue = index;
-                        mPlayingQueue.clear();
-                        mPlayingQueue.addAll(queue);
+                .observeOn(mPlaybackScheduler)
+                .subscribe(musicIds -> {
+                    PlayingQueue queue = newPlayingQueue(mPlayingQueue.getTitle(),
+                            QueueHelper.getQueueHierarchy(mediaId), musicIds);
+                    if (queue.skipToQueueId(Long.parseLong(musicId))) {
+                        setPlayingQueue(queue);
                         updateMetadata();
                     }
                 });
@@ -979,8 +1393,10 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                 mPlayback.pause();
                 break;
             case PlaybackState.STATE_PLAYING:
-                if (resumePlaying && QueueHelper.isIndexValid(mCurrentIndexOnQueue, mPlayingQueue)) {
-                    mPlayback.play(mPlayingQueue.get(mCurrentIndexOnQueue));
+                MediaSession.QueueItem item = mPlayingQueue.getCurrentItem();
+                if (resumePlaying && item != null) {
+                    mPlayback.play(item);
+                    mPlayback.prepareNext(mPlayingQueue.getNextItem());
                 } else if (!resumePlaying) {
                     mPlayback.pause();
                 } else {
@@ -1000,7 +1416,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     private static class DelayedStopHandler extends Handler {
         private final WeakReference<MusicService> mWeakReference;
 
-        private DelayedStopHandler(MusicService service) {
+        private DelayedStopHandler(MusicService service, Looper looper) {
+            super(looper);
             mWeakReference = new WeakReference<>(service);
         }
 
@@ -76,6 +76,14 @@ public interface Playback {
      */
     void play(QueueItem item);
 
+    /**
+     * Hint about the item expected to play once the current one completes, so implementations
+     * can get it ready ahead of time. The hint is dropped when another item is played instead.
+     *
+     * @param item to play next, or null if nothing follows the current item
+     */
+    void prepareNext(QueueItem item);
+
     /**
      * Pause the current playing item
      */
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Measures how long it takes from a playback command to the track actually playing.
+ * <p>
+ * A trace is started by each command and finished when the player starts. Spans record the
+ * time spent in each step along the way. Finished traces are added to latency histograms of
+ * the whole trace and of each span, split by where the track was played from.
+ */
+@Singleton
+public class PlaybackLatencyTracker {
+
+    private static final String TAG = LogHelper.makeLogTag(PlaybackLatencyTracker.class);
+
+    // Building the playing queue before its first track can be played
+    public static final String SPAN_QUEUE = "queue";
+    // Looking up the track and making sure it can be played, including the lease refresh
+    public static final String SPAN_RESOLVE = "resolve";
+    // Refreshing the temporary download URL of a track that isn't cached
+    public static final String SPAN_URL_LEASE = "urlLease";
+    // Requesting audio focus
+    public static final String SPAN_AUDIO_FOCUS = "audioFocus";
+    // MediaPlayer.prepareAsync until onPrepared
+    public static final String SPAN_PREPARE = "prepare";
+
+    private static final String TOTAL = "total";
+
+    public static final String SOURCE_CACHE = "cache";
+    public static final String SOURCE_STREAM = "stream";
+    // Played by a player prepared ahead of time
+    public static final String SOURCE_PRELOADED = "preloaded";
+    // Resumed from pause or handed over by the previous track
+    public static final String SOURCE_RESUMED = "resumed";
+
+    private static final String DUMP_FILE_NAME = "playback_latency.txt";
+
+    private String mCommand;
+    private String mMusicId;
+    private long mTraceStart;
+    private String mSource;
+    private final Map<String, Long> mSpanStarts = new HashMap<>();
+    private final Map<String, Long> mSpanDurations = new LinkedHashMap<>();
+
+    // Histograms by source, then by span
+    private final Map<String, Map<String, Histogram>> mHistograms = new TreeMap<>();
+    private int mTraceCount;
+
+    @Inject
+    public PlaybackLatencyTracker() {
+    }
+
+    /**
+     * Starts timing a command, dropping any trace that didn't finish.
+     */
+    public synchronized void startTrace(@NonNull String command) {
+        mCommand = command;
+        mMusicId = null;
+        mTraceStart = System.nanoTime();
+        mSource = null;
+        mSpanStarts.clear();
+        mSpanDurations.clear();
+    }
+
+    public synchronized void cancelTrace() {
+        mCommand = null;
+    }
+
+    /**
+     * Sets the track the command ended up playing. Spans of other tracks are then ignored.
+     */
+    public synchronized void setMusicId(@NonNull String musicId) {
+        mMusicId = musicId;
+    }
+
+    public synchronized void beginSpan(@NonNull String span) {
+        if (mCommand != null) {
+            mSpanStarts.put(span, System.nanoTime());
+        }
+    }
+
+    /**
+     * Begins a span only if it's about the traced track, as work on other tracks like
+     * preparing the next one may overlap with the trace.
+     */
+    public synchronized void beginSpan(@NonNull String span, @NonNull String musicId) {
+        if (musicId.equals(mMusicId)) {
+            beginSpan(span);
+        }
+    }
+
+    public synchronized void endSpan(@NonNull String span) {
+        Long start = mSpanStarts.remove(span);
+        if (mCommand != null && start != null) {
+            // Steps run more than once, like retried leases, add up
+            Long previous = mSpanDurations.get(span);
+            long duration = System.nanoTime() - start;
+            mSpanDurations.put(span, previous != null ? previous + duration : duration);
+        }
+    }
+
+    public synchronized void setSource(@NonNull String source) {
+        if (mCommand != null) {
+            mSource = source;
+        }
+    }
+
+    /**
+     * Ends the trace in flight, if any, as the track starts playing.
+     */
+    public synchronized void finishTrace() {
+        if (mCommand == null) {
+            return;
+        }
+
+        long total = System.nanoTime() - mTraceStart;
+        String source = mSource != null ? mSource : SOURCE_RESUMED;
+
+        Map<String, Histogram> histograms = mHistograms.get(source);
+        if (histograms == null) {
+            histograms = new TreeMap<>();
+            mHistograms.put(source, histograms);
+        }
+
+        record(histograms, TOTAL, total);
+        for (Map.Entry<String, Long> span : mSpanDurations.entrySet()) {
+            record(histograms, span.getKey(), span.getValue());
+        }
+        mTraceCount++;
+
+        LogHelper.d(TAG, "finishTrace - ", mCommand, " from ", source, " took ",
+                total / 1000000, "ms, spans=", mSpanDurations);
+
+        mCommand = null;
+    }
+
+    /**
+     * @return number of traces finished so far
+     */
+    public synchronized int getTraceCount() {
+        return mTraceCount;
+    }
+
+    /**
+     * @return p50, p95 and p99 latencies in milliseconds, keyed by "source.span.percentile"
+     */
+    @NonNull
+    public synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, Map<String, Histogram>> source : mHistograms.entrySet()) {
+            for (Map.Entry<String, Histogram> span : source.getValue().entrySet()) {
+                String key = source.getKey() + "." + span.getKey();
+                Histogram histogram = span.getValue();
+                bundle.putLong(key + ".p50", histogram.getPercentileMillis(50));
+                bundle.putLong(key + ".p95", histogram.getPercentileMillis(95));
+                bundle.putLong(key + ".p99", histogram.getPercentileMillis(99));
+            }
+        }
+        return bundle;
+    }
+
+    public synchronized void dump(@NonNull PrintWriter writer) {
+        writer.println("Playback latency, " + mTraceCount + " traces (ms):");
+        for (Map.Entry<String, Map<String, Histogram>> source : mHistograms.entrySet()) {
+            writer.println("  " + source.getKey() + ":");
+            for (Map.Entry<String, Histogram> span : source.getValue().entrySet()) {
+                Histogram histogram = span.getValue();
+                writer.println("    " + span.getKey() +
+                        ": count=" + histogram.getCount() +
+                        " p50=" + histogram.getPercentileMillis(50) +
+                        " p95=" + histogram.getPercentileMillis(95) +
+                        " p99=" + histogram.getPercentileMillis(99));
+            }
+        }
+    }
+
+    /**
+     * Writes the {@link #dump(PrintWriter)} output to a file in the given directory.
+     */
+    public void writeDumpFile(@NonNull File directory) {
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(new File(directory, DUMP_FILE_NAME)));
+            dump(writer);
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "writeDumpFile - Unable to write latency dump");
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static void record(Map<String, Histogram> histograms, String span, long nanos) {
+        Histogram histogram = histograms.get(span);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(span, histogram);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Counts of latencies in buckets growing by a factor of 2^(1/4), so percentiles are off by
+     * less than 19% whatever the number of samples.
+     */
+    private static final class Histogram {
+
+        private static final int BUCKETS_PER_DOUBLING = 4;
+        // Last bucket starts at 2^20 ms, over 17 minutes
+        private static final int BUCKET_COUNT = 20 * BUCKETS_PER_DOUBLING + 1;
+
+        private final int[] mCounts = new int[BUCKET_COUNT];
+        private int mCount;
+
+        void record(long nanos) {
+            double millis = Math.max(1, nanos / 1000000d);
+            int bucket = (int) Math.ceil(BUCKETS_PER_DOUBLING * Math.log(millis) / Math.log(2));
+            mCounts[Math.min(bucket, BUCKET_COUNT - 1)]++;
+            mCount++;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return upper bound of the bucket holding the percentile
+         */
+        long getPercentileMillis(int percentile) {
+            long rank = (long) Math.ceil(mCount * percentile / 100d);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += mCounts[bucket];
+                if (seen >= rank && seen > 0) {
+                    return Math.round(Math.pow(2, bucket / (double) BUCKETS_PER_DOUBLING));
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import android.media.MediaDescription;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession.QueueItem;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import rx.functions.Func1;
+
+/**
+ * "Now playing" queue. Only the music ids of the tracks are kept, in queue order, and every
+ * item shares the hierarchy of the queue, so {@link QueueItem}s are created on demand: bare
+ * ones for playback, and full ones only for the window of items published to the session.
+ * <p>
+ * The queueId of an item is its music id. Items are found by queueId in constant time, and
+ * positions are positions in play order, which is the queue order unless shuffled.
+ * <p>
+ * Items are only ever appended, page by page while a queue is built, with
+ * {@link #appendMusicIds(long[])}. Items, position, shuffle and repeat are thread safe.
+ */
+public class PlayingQueue {
+
+    public static final int REPEAT_NONE = 0;
+    public static final int REPEAT_ALL = 1;
+    public static final int REPEAT_ONE = 2;
+
+    // Items published to the session before and after the current one
+    private static final int SESSION_WINDOW_HALF_SIZE = 32;
+
+    private static final Random sRandom = new Random();
+
+    private final String mTitle;
+    private final String[] mHierarchy;
+    // Queue order, with room to grow past mSize
+    private long[] mMusicIds;
+    private int mSize;
+    private final IndexMap mIndexByQueueId;
+
+    // Full items of the session window, created lazily
+    private final LruCache<Long, QueueItem> mWindowItems =
+            new LruCache<>(SESSION_WINDOW_HALF_SIZE * 4);
+
+    // Play order when shuffled
+    private ShuffleOrder mShuffleOrder;
+
+    // More items are on their way, a shuffle asked for meanwhile waits for them
+    private boolean mGrowing;
+    private boolean mShufflePending;
+    // Index of the item held last until a page holds it too, -1 if none
+    private int mHeldIndex = -1;
+
+    private int mCurrentPosition;
+    private int mRepeatMode = REPEAT_ALL;
+
+    /**
+     * @param title title of the queue
+     * @param hierarchy category type and values of the mediaIds of the items
+     * @param musicIds music ids in queue order, owned by the queue from now on
+     */
+    public PlayingQueue(@Nullable String title, @NonNull String[] hierarchy,
+                        @NonNull long[] musicIds) {
+        mTitle = title;
+        mHierarchy = hierarchy;
+        mMusicIds = musicIds;
+        mSize = musicIds.length;
+        mIndexByQueueId = new IndexMap(musicIds);
+    }
+
+    public static PlayingQueue empty() {
+        return new PlayingQueue(null, new String[]{MediaIDHelper.MEDIA_ID_ROOT}, new long[0]);
+    }
+
+    /**
+     * Marks the queue as one more items will be appended to with
+     * {@link #appendMusicIds(long[])}, so shuffling waits for all of them. Its last item is only
+     * held there until a page holds it too, so the selected item of a queue can play while the
+     * rest of the queue is appended around it.
+     * <p>
+     * Items keep their queue order meanwhile. A shuffle over a different size is a different
+     * permutation, so shuffling every page would lose track of the items already played.
+     */
+    public synchronized void startGrowing() {
+        mShufflePending = isShuffled();
+        if (mShuffleOrder != null) {
+            mCurrentPosition = getIndexAt(mCurrentPosition);
+            mShuffleOrder = null;
+        }
+        mGrowing = true;
+        mHeldIndex = mSize - 1;
+    }
+
+    /**
+     * Appends a page of items to a growing queue, moving the held item to its place in the page
+     * if it's there, or after the page otherwise. The current item stays the same.
+     */
+    public synchronized void appendMusicIds(@NonNull long[] page) {
+
+        if (!mGrowing) {
+            throw new IllegalStateException("Only growing queues can be appended to");
+        }
+
+        long currentQueueId = getCurrentQueueId();
+
+        boolean holding = mHeldIndex >= 0;
+        long heldMusicId = holding ? mMusicIds[mHeldIndex] : 0;
+        int size = holding ? mHeldIndex : mSize;
+
+        if (mMusicIds.length < size + page.length + 1) {
+            mMusicIds = Arrays.copyOf(mMusicIds,
+                    Math.max(mMusicIds.length * 2, size + page.length + 1));
+        }
+
+        for (long musicId : page) {
+            if (holding && musicId == heldMusicId) {
+                holding = false;
+                mIndexByQueueId.put(musicId, size);
+            } else {
+                mIndexByQueueId.putIfAbsent(musicId, size);
+            }
+            mMusicIds[size++] = musicId;
+        }
+
+        if (holding) {
+            mIndexByQueueId.put(heldMusicId, size);
+            mHeldIndex = size;
+            mMusicIds[size++] = heldMusicId;
+        } else {
+            mHeldIndex = -1;
+        }
+
+        mSize = size;
+        skipToQueueId(currentQueueId);
+    }
+
+    /**
+     * Marks the queue as complete, shuffling it now if that was asked for while it grew. The
+     * current item becomes the first one.
+     */
+    public synchronized void finishGrowing() {
+        mGrowing = false;
+        mHeldIndex = -1;
+        if (mShufflePending) {
+            mShufflePending = false;
+            setShuffle(true);
+        }
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * @return category type and values shared by the mediaIds of the items, not to be modified
+     */
+    public String[] getHierarchy() {
+        return mHierarchy;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public synchronized int getCurrentPosition() {
+        return mCurrentPosition;
+    }
+
+    /**
+     * @return the queueId of the current item, or {@link QueueItem#UNKNOWN_ID} if there's none
+     */
+    public synchronized long getCurrentQueueId() {
+        return isEmpty() ? QueueItem.UNKNOWN_ID : getMusicIdAt(mCurrentPosition);
+    }
+
+    @Nullable
+    public synchronized String getCurrentMusicId() {
+        return isEmpty() ? null : Long.toString(getMusicIdAt(mCurrentPosition));
+    }
+
+    @Nullable
+    public synchronized QueueItem getCurrentItem() {
+        return isEmpty() ? null : createQueueItem(getMusicIdAt(mCurrentPosition));
+    }
+
+    /**
+     * @return the item completing the current one moves to, or null if it's none or the
+     * current one
+     */
+    @Nullable
+    public synchronized QueueItem getNextItem() {
+        int position = getPositionAfter(mCurrentPosition, mRepeatMode);
+        return position < 0 || position == mCurrentPosition ?
+                null : createQueueItem(getMusicIdAt(position));
+    }
+
+    public synchronized boolean skipToQueueId(long queueId) {
+        int index = mIndexByQueueId.get(queueId);
+        if (index < 0) {
+            return false;
+        }
+        mCurrentPosition = mShuffleOrder != null ? mShuffleOrder.getPosition(index) : index;
+        return true;
+    }
+
+    /**
+     * Moves to the next item, going back to the first one at the end of the queue unless
+     * repeat is off.
+     */
+    public synchronized boolean skipToNext() {
+        int position = getPositionAfter(mCurrentPosition,
+                mRepeatMode == REPEAT_ONE ? REPEAT_ALL : mRepeatMode);
+        if (position < 0) {
+            return false;
+        }
+        mCurrentPosition = position;
+        return true;
+    }
+
+    /**
+     * Moves to the previous item, staying on the first one at the start of the queue.
+     */
+    public synchronized boolean skipToPrevious() {
+        if (isEmpty()) {
+            return false;
+        }
+        mCurrentPosition = Math.max(0, mCurrentPosition - 1);
+        return true;
+    }
+
+    /**
+     * Moves to the item following the current one once it completes, as set by the repeat mode.
+     */
+    public synchronized boolean moveToNextOnCompletion() {
+        int position = getPositionAfter(mCurrentPosition, mRepeatMode);
+        if (position < 0) {
+            return false;
+        }
+        mCurrentPosition = position;
+        return true;
+    }
+
+    public synchronized boolean hasPrevious() {
+        return mCurrentPosition > 0;
+    }
+
+    /**
+     * @return whether {@link #skipToNext()} moves to another item, wrapping around at the end
+     * of the queue unless repeat is off
+     */
+    public synchronized boolean hasNext() {
+        int position = getPositionAfter(mCurrentPosition,
+                mRepeatMode == REPEAT_ONE ? REPEAT_ALL : mRepeatMode);
+        return position >= 0 && position != mCurrentPosition;
+    }
+
+    public synchronized int getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    public synchronized void setRepeatMode(int repeatMode) {
+        mRepeatMode = repeatMode;
+    }
+
+    public synchronized boolean isShuffled() {
+        return mShuffleOrder != null || mShufflePending;
+    }
+
+    /**
+     * Shuffles the play order with a new seed, the current item becoming the first one, or
+     * restores the queue order. The items themselves are never moved. A growing queue is
+     * shuffled once complete.
+     */
+    public synchronized void setShuffle(boolean shuffle) {
+
+        if (isEmpty()) {
+            return;
+        }
+
+        if (mGrowing) {
+            mShufflePending = shuffle;
+        } else if (shuffle) {
+            shuffle(sRandom.nextLong(), getIndexAt(mCurrentPosition));
+        } else if (mShuffleOrder != null) {
+            mCurrentPosition = getIndexAt(mCurrentPosition);
+            mShuffleOrder = null;
+        }
+    }
+
+    /**
+     * Shuffles the play order as it was shuffled with the same seed and first item, keeping
+     * the current item.
+     */
+    public synchronized void shuffle(long seed, int firstIndex) {
+
+        if (firstIndex < 0 || firstIndex >= mSize) {
+            return;
+        }
+
+        int currentIndex = getIndexAt(mCurrentPosition);
+        mShuffleOrder = new ShuffleOrder(mSize, seed, firstIndex);
+        mCurrentPosition = mShuffleOrder.getPosition(currentIndex);
+    }
+
+    public synchronized long getShuffleSeed() {
+        return mShuffleOrder != null ? mShuffleOrder.getSeed() : 0;
+    }
+
+    /**
+     * @return the queue index of the item first in play order, or -1 if not shuffled
+     */
+    public synchronized int getShuffleFirstIndex() {
+        return mShuffleOrder != null ? mShuffleOrder.getIndex(0) : -1;
+    }
+
+    /**
+     * @return the music ids of the items in play order
+     */
+    public synchronized long[] getMusicIds() {
+        if (mShuffleOrder == null) {
+            return Arrays.copyOf(mMusicIds, mSize);
+        }
+        long[] musicIds = new long[mSize];
+        for (int i = 0; i < musicIds.length; i++) {
+            musicIds[i] = mMusicIds[mShuffleOrder.getIndex(i)];
+        }
+        return musicIds;
+    }
+
+    /**
+     * @return the music ids of the items in queue order
+     */
+    public synchronized long[] getMusicIdsInQueueOrder() {
+        return Arrays.copyOf(mMusicIds, mSize);
+    }
+
+    /**
+     * Items around the current one, in play order, to be published to the session. Tracks not
+     * created yet are resolved through the given function, so this blocks if it does.
+     */
+    @NonNull
+    public List<QueueItem> getSessionWindow(@NonNull Func1<String, MediaMetadata> resolver) {
+
+        long[] windowIds;
+        synchronized (this) {
+            int start = Math.max(0, mCurrentPosition - SESSION_WINDOW_HALF_SIZE);
+            int end = Math.min(mSize, mCurrentPosition + SESSION_WINDOW_HALF_SIZE + 1);
+            windowIds = new long[Math.max(0, end - start)];
+            for (int i = 0; i < windowIds.length; i++) {
+                windowIds[i] = getMusicIdAt(start + i);
+            }
+        }
+
+        List<QueueItem> window = new ArrayList<>(windowIds.length);
+
+        for (long musicId : windowIds) {
+            QueueItem item = mWindowItems.get(musicId);
+            if (item == null) {
+                MediaMetadata track = resolver.call(Long.toString(musicId));
+                item = track != null ? createQueueItem(track, musicId) : createQueueItem(musicId);
+                mWindowItems.put(musicId, item);
+            }
+            window.add(item);
+        }
+
+        return window;
+    }
+
+    private int getIndexAt(int position) {
+        return mShuffleOrder != null ? mShuffleOrder.getIndex(position) : position;
+    }
+
+    private long getMusicIdAt(int position) {
+        return mMusicIds[getIndexAt(position)];
+    }
+
+    private int getPositionAfter(int position, int repeatMode) {
+        if (isEmpty()) {
+            return -1;
+        }
+        if (repeatMode == REPEAT_ONE) {
+            return position;
+        }
+        if (position + 1 < mSize) {
+            return position + 1;
+        }
+        return repeatMode == REPEAT_ALL ? 0 : -1;
+    }
+
+    private String createMediaId(long musicId) {
+        // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
+        // at the QueueItem media IDs.
+        return MediaIDHelper.createMediaID(Long.toString(musicId), mHierarchy);
+    }
+
+    /**
+     * Item with nothing but its mediaId, which is all playback needs.
+     */
+    private QueueItem createQueueItem(long musicId) {
+        MediaDescription description = new MediaDescription.Builder()
+                .setMediaId(createMediaId(musicId))
+                .build();
+        return new QueueItem(description, musicId);
+    }
+
+    private QueueItem createQueueItem(MediaMetadata track, long musicId) {
+        MediaMetadata trackCopy = new MediaMetadata.Builder(track)
+                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, createMediaId(musicId))
+                .build();
+        return new QueueItem(trackCopy.getDescription(), musicId);
+    }
+
+    /**
+     * Open addressing map from queueId to queue index, growing with the queue. Duplicated
+     * queueIds map to their first index.
+     */
+    private static final class IndexMap {
+
+        private long[] mKeys;
+        // Index plus one, zero marks an empty slot
+        private int[] mValues;
+        private int mMask;
+        private int mCount;
+
+        IndexMap(long[] keys) {
+
+            allocate(Integer.highestOneBit(Math.max(2, keys.length * 2 - 1)) << 1);
+
+            for (int i = 0; i < keys.length; i++) {
+                putIfAbsent(keys[i], i);
+            }
+        }
+
+        int get(long key) {
+            int slot = find(key);
+            return mValues[slot] - 1;
+        }
+
+        void putIfAbsent(long key, int index) {
+            if (mValues[find(key)] == 0) {
+                put(key, index);
+            }
+        }
+
+        void put(long key, int index) {
+            if ((mCount + 1) * 2 > mKeys.length) {
+                long[] keys = mKeys;
+                int[] values = mValues;
+                allocate(keys.length * 2);
+                for (int i = 0; i < keys.length; i++) {
+                    if (values[i] != 0) {
+                        insert(keys[i], values[i]);
+                    }
+                }
+            }
+            insert(key, index + 1);
+        }
+
+        private void allocate(int capacity) {
+            mKeys = new long[capacity];
+            mValues = new int[capacity];
+            mMask = capacity - 1;
+            mCount = 0;
+        }
+
+        private void insert(long key, int value) {
+            int slot = find(key);
+            if (mValues[slot] == 0) {
+                mKeys[slot] = key;
+                mCount++;
+            }
+            mValues[slot] = value;
+        }
+
+        /**
+         * @return the slot of the key, or the empty slot it would go in
+         */
+        private int find(long key) {
+            int slot = slot(key);
+            while (mValues[slot] != 0 && mKeys[slot] != key) {
+                slot = (slot + 1) & mMask;
+            }
+            return slot;
+        }
+
+        private int slot(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mMask;
+        }
+    }
+}
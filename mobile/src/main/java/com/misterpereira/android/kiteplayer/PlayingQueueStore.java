@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.misterpereira.android.kiteplayer.utils.CloseableHelper;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * Keeps a binary snapshot of the playing queue on disk, so a restarted service can resume
+ * right where it was killed.
+ * <p>
+ * The music ids are only written when the queue changes. The current item and the playback
+ * position live in a fixed size header, updated in place through a memory map. Restoring maps
+ * the file back in and reads the ids in bulk.
+ */
+@Singleton
+public class PlayingQueueStore {
+
+    private static final String TAG = LogHelper.makeLogTag(PlayingQueueStore.class);
+
+    private static final String FILE_NAME = "playing_queue";
+    private static final String TEMP_FILE_NAME = "playing_queue.tmp";
+
+    private static final int MAGIC = 0x4b505131;
+    private static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Header: magic, version, current queueId, position, repeat mode, shuffle seed, first
+    // shuffled index, item count
+    private static final int OFFSET_CURRENT_QUEUE_ID = 8;
+    private static final int OFFSET_POSITION = 16;
+    private static final int OFFSET_REPEAT_MODE = 20;
+    private static final int OFFSET_SHUFFLE_SEED = 24;
+    private static final int OFFSET_SHUFFLE_FIRST_INDEX = 32;
+    private static final int OFFSET_COUNT = 36;
+    private static final int HEADER_SIZE = 40;
+
+    private final File mFile;
+    private final File mTempFile;
+
+    // Writes happen in order on their own thread, a pending queue is replaced by newer ones
+    private final Scheduler.Worker mWorker;
+    private final AtomicReference<PlayingQueue> mPendingQueue = new AtomicReference<>();
+
+    // Header of the file last written, only accessed by the worker
+    private MappedByteBuffer mHeader;
+
+    /**
+     * Playing queue read back from disk, positioned on the item it was saved on.
+     */
+    public static final class Snapshot {
+
+        public final PlayingQueue queue;
+        public final int position;
+
+        Snapshot(PlayingQueue queue, int position) {
+            this.queue = queue;
+            this.position = position;
+        }
+    }
+
+    @Inject
+    public PlayingQueueStore(@Named(KiteApplicationModule.PLAYING_QUEUE_DIR) File directory) {
+        this(directory, Schedulers.from(Executors.newSingleThreadExecutor()));
+    }
+
+    /**
+     * @param writeScheduler scheduler writes happen in order on
+     */
+    PlayingQueueStore(File directory, Scheduler writeScheduler) {
+        mFile = new File(directory, FILE_NAME);
+        mTempFile = new File(directory, TEMP_FILE_NAME);
+        mWorker = writeScheduler.createWorker();
+    }
+
+    /**
+     * Saves the items of the queue, replacing the previous snapshot. Saving a queue still being
+     * written only writes the latest one.
+     */
+    public void saveQueue(@NonNull PlayingQueue queue) {
+        if (mPendingQueue.getAndSet(queue) == null) {
+            mWorker.schedule(this::writePendingQueue);
+        }
+    }
+
+    /**
+     * Updates the current item, playback position, shuffle and repeat mode of the saved queue.
+     */
+    public void savePosition(@NonNull PlayingQueue queue, int position) {
+
+        long currentQueueId = queue.getCurrentQueueId();
+        int repeatMode = queue.getRepeatMode();
+        long shuffleSeed = queue.getShuffleSeed();
+        int shuffleFirstIndex = queue.getShuffleFirstIndex();
+
+        mWorker.schedule(() -> {
+            if (mHeader != null) {
+                writeState(mHeader, currentQueueId, position, repeatMode,
+                        shuffleSeed, shuffleFirstIndex);
+            }
+        });
+    }
+
+    /**
+     * @return the saved queue, or null if there's none or it can't be read
+     */
+    @Nullable
+    public Snapshot restore() {
+
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LogHelper.w(TAG, "restore - Ignoring snapshot with an unknown format");
+                return null;
+            }
+
+            long currentQueueId = buffer.getLong(OFFSET_CURRENT_QUEUE_ID);
+            int position = buffer.getInt(OFFSET_POSITION);
+            int repeatMode = buffer.getInt(OFFSET_REPEAT_MODE);
+            long shuffleSeed = buffer.getLong(OFFSET_SHUFFLE_SEED);
+            int shuffleFirstIndex = buffer.getInt(OFFSET_SHUFFLE_FIRST_INDEX);
+            int count = buffer.getInt(OFFSET_COUNT);
+
+            if (count < 0 || HEADER_SIZE + count * 8L > buffer.capacity()) {
+                LogHelper.w(TAG, "restore - Ignoring truncated snapshot");
+                return null;
+            }
+
+            long[] musicIds = new long[count];
+            buffer.position(HEADER_SIZE);
+            buffer.asLongBuffer().get(musicIds);
+            buffer.position(HEADER_SIZE + count * 8);
+
+            String title = readString(buffer);
+            String[] hierarchy = new String[buffer.getInt()];
+            for (int i = 0; i < hierarchy.length; i++) {
+                hierarchy[i] = readString(buffer);
+            }
+
+            PlayingQueue queue = new PlayingQueue(title, hierarchy, musicIds);
+            queue.setRepeatMode(repeatMode);
+
+            // The play order is recreated from its seed
+            queue.shuffle(shuffleSeed, shuffleFirstIndex);
+
+            if (!queue.skipToQueueId(currentQueueId)) {
+                position = 0;
+            }
+
+            LogHelper.d(TAG, "restore - Restored ", count, " items in ",
+                    (System.nanoTime() - start) / 1000, "us");
+
+            return new Snapshot(queue, position);
+
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException |
+                IllegalArgumentException e) {
+            LogHelper.w(TAG, e, "restore - Unable to read snapshot");
+            return null;
+        } finally {
+            CloseableHelper.closeQuietly(file);
+        }
+    }
+
+    public void clear() {
+        mPendingQueue.set(null);
+        mWorker.schedule(() -> {
+            mHeader = null;
+            if (mFile.exists() && !mFile.delete()) {
+                LogHelper.w(TAG, "clear - Unable to delete snapshot");
+            }
+        });
+    }
+
+    private void writePendingQueue() {
+
+        PlayingQueue queue = mPendingQueue.getAndSet(null);
+        if (queue == null) {
+            return;
+        }
+
+        // Copied since a queue being built grows meanwhile
+        long[] musicIds = queue.getMusicIdsInQueueOrder();
+        byte[] title = queue.getTitle() != null ? queue.getTitle().getBytes(UTF_8) : null;
+        String[] hierarchy = queue.getHierarchy();
+        byte[][] hierarchyBytes = new byte[hierarchy.length][];
+
+        int size = HEADER_SIZE + musicIds.length * 8 + stringSize(title) + 4;
+        for (int i = 0; i < hierarchy.length; i++) {
+            hierarchyBytes[i] = hierarchy[i].getBytes(UTF_8);
+            size += stringSize(hierarchyBytes[i]);
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mTempFile, "rw");
+            file.setLength(size);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(OFFSET_COUNT, musicIds.length);
+            writeState(buffer, queue.getCurrentQueueId(), 0, queue.getRepeatMode(),
+                    queue.getShuffleSeed(), queue.getShuffleFirstIndex());
+
+            buffer.position(HEADER_SIZE);
+            buffer.asLongBuffer().put(musicIds);
+            buffer.position(HEADER_SIZE + musicIds.length * 8);
+
+            writeString(buffer, title);
+            buffer.putInt(hierarchyBytes.length);
+            for (byte[] bytes : hierarchyBytes) {
+                writeString(buffer, bytes);
+            }
+
+            buffer.force();
+            CloseableHelper.closeQuietly(file);
+            file = null;
+
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Unable to replace " + mFile);
+            }
+
+            file = new RandomAccessFile(mFile, "rw");
+            mHeader = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "writePendingQueue - Unable to save queue");
+            mHeader = null;
+        } finally {
+            CloseableHelper.closeQuietly(file);
+        }
+    }
+
+    private static void writeState(ByteBuffer header, long currentQueueId, int position,
+                                   int repeatMode, long shuffleSeed, int shuffleFirstIndex) {
+        header.putLong(OFFSET_CURRENT_QUEUE_ID, currentQueueId);
+        header.putInt(OFFSET_POSITION, position);
+        header.putInt(OFFSET_REPEAT_MODE, repeatMode);
+        header.putLong(OFFSET_SHUFFLE_SEED, shuffleSeed);
+        header.putInt(OFFSET_SHUFFLE_FIRST_INDEX, shuffleFirstIndex);
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return 4 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void writeString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
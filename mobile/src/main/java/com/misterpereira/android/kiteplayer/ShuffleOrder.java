@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+/**
+ * Random play order over the indexes of a queue, computed on the fly instead of stored.
+ * <p>
+ * The permutation is a balanced Feistel network over the smallest power of four covering the
+ * queue, cycle walked back into the queue size. It's fully determined by the seed, so it can be
+ * recreated from it, and it is rotated so a given index comes first. Both directions take
+ * constant time on average and never allocate.
+ */
+final class ShuffleOrder {
+
+    private static final int ROUNDS = 4;
+
+    private final int mSize;
+    private final long mSeed;
+    private final int mHalfBits;
+    private final int mHalfMask;
+
+    // Feistel position of the index playing first
+    private final int mStart;
+
+    /**
+     * @param size number of items in the queue
+     * @param seed seed of the permutation
+     * @param firstIndex index of the item playing first
+     */
+    ShuffleOrder(int size, long seed, int firstIndex) {
+
+        if (firstIndex < 0 || firstIndex >= size) {
+            throw new IllegalArgumentException("Invalid first index " + firstIndex +
+                    " for size " + size);
+        }
+
+        mSize = size;
+        mSeed = seed;
+
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+        mHalfBits = Math.max(1, (bits + 1) / 2);
+        mHalfMask = (1 << mHalfBits) - 1;
+
+        mStart = unpermute(firstIndex);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * @return the queue index of the item at the given play position
+     */
+    int getIndex(int position) {
+        int shifted = position + mStart;
+        return permute(shifted >= mSize ? shifted - mSize : shifted);
+    }
+
+    /**
+     * @return the play position of the item at the given queue index
+     */
+    int getPosition(int index) {
+        int position = unpermute(index) - mStart;
+        return position < 0 ? position + mSize : position;
+    }
+
+    private int permute(int value) {
+        // Values outside of the queue are walked through the cycle until they're back in it
+        do {
+            value = encrypt(value);
+        } while (value >= mSize);
+        return value;
+    }
+
+    private int unpermute(int value) {
+        do {
+            value = decrypt(value);
+        } while (value >= mSize);
+        return value;
+    }
+
+    private int encrypt(int value) {
+        int left = value >>> mHalfBits;
+        int right = value & mHalfMask;
+        for (int round = 0; round < ROUNDS; round++) {
+            int next = left ^ (round(right, round) & mHalfMask);
+            left = right;
+            right = next;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    private int decrypt(int value) {
+        int left = value >>> mHalfBits;
+        int right = value & mHalfMask;
+        for (int round = ROUNDS - 1; round >= 0; round--) {
+            int previous = right ^ (round(left, round) & mHalfMask);
+            right = left;
+            left = previous;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    private int round(int value, int round) {
+        // 64 bit mix of the value with the seed and round number
+        long hash = (value + (round + 1) * 0x9E3779B97F4A7C15L) ^ mSeed;
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return (int) (hash ^ (hash >>> 31));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+/**
+ * Volume math of local playback: equal power crossfade curves and ReplayGain levels.
+ * <p>
+ * The fade curve is tabulated once, so stepping through a crossfade never allocates.
+ */
+final class VolumeRamp {
+
+    // Resolution of the tabulated curve
+    private static final int CURVE_STEPS = 64;
+
+    // sin(t * pi / 2), read backwards it's cos(t * pi / 2) so both tracks keep the total power
+    private static final float[] FADE_IN = new float[CURVE_STEPS + 1];
+
+    static {
+        for (int i = 0; i <= CURVE_STEPS; i++) {
+            FADE_IN[i] = (float) Math.sin(i * Math.PI / (2 * CURVE_STEPS));
+        }
+    }
+
+    private VolumeRamp() {
+    }
+
+    /**
+     * @return level of the incoming track at the given step of a fade
+     */
+    static float fadeIn(int step, int steps) {
+        return FADE_IN[toCurveIndex(step, steps)];
+    }
+
+    /**
+     * @return level of the outgoing track at the given step of a fade
+     */
+    static float fadeOut(int step, int steps) {
+        return FADE_IN[CURVE_STEPS - toCurveIndex(step, steps)];
+    }
+
+    /**
+     * @return volume applying the ReplayGain adjustment, MediaPlayer can't amplify so gains
+     * above 0dB play at full volume
+     */
+    static float gainToVolume(float gainDb) {
+        return (float) Math.min(1d, Math.pow(10d, gainDb / 20d));
+    }
+
+    private static int toCurveIndex(int step, int steps) {
+        if (steps <= 0 || step >= steps) {
+            return CURVE_STEPS;
+        }
+        if (step <= 0) {
+            return 0;
+        }
+        return (int) ((long) step * CURVE_STEPS / steps);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.database;
+
+
+import android.annotation.SuppressLint;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.misterpereira.android.kiteplayer.database.DropboxDBCategoryMapper.DropboxDBCategoryCursorWrapper;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Album;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Artist;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Category;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Genre;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import rx.Observable;
+
+/**
+ * Read-only access to the aggregate tables, which are kept up to date by the song triggers
+ * declared in {@link DropboxDBHelper}.
+ */
+@Singleton
+public class DropboxDBCategoryDAO {
+
+    private static final String TAG = LogHelper.makeLogTag(DropboxDBCategoryDAO.class);
+
+    private final DropboxDBHelper mDbHelper;
+
+    @Inject
+    public DropboxDBCategoryDAO(DropboxDBHelper dbHelper) {
+        this.mDbHelper = dbHelper;
+    }
+
+    public Observable<DropboxDBCategory> findAllArtists() {
+        return findAll(Artist.TABLE_NAME);
+    }
+
+    public Observable<DropboxDBCategory> findAllAlbums() {
+        return findAll(Album.TABLE_NAME);
+    }
+
+    public Observable<DropboxDBCategory> findAllGenres() {
+        return findAll(Genre.TABLE_NAME);
+    }
+
+    @SuppressLint("Recycle")
+    private Observable<DropboxDBCategory> findAll(String table) {
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+
+        Cursor results = db.query(
+                table,
+                null, null, null, null, null,
+                Category.COLUMN_NAME_NAME + " ASC");
+
+        LogHelper.d(TAG, "Found ", results.getCount(), " entries in ", table);
+
+        return new DropboxDBCategoryCursorWrapper(results).getObservable();
+    }
+}
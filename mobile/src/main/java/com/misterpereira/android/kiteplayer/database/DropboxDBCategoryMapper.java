@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Category;
+
+import rx.Observable;
+
+public class DropboxDBCategoryMapper {
+
+    public static class DropboxDBCategoryCursorWrapper extends CursorWrapper {
+
+        private final Cursor mCursor;
+
+        public DropboxDBCategoryCursorWrapper(Cursor cursor) {
+            super(cursor);
+
+            this.mCursor = cursor;
+        }
+
+        public DropboxDBCategory getCategory() {
+
+            DropboxDBCategory category = new DropboxDBCategory();
+
+            category.setId(mCursor.getLong(mCursor.getColumnIndexOrThrow(Category._ID)));
+            category.setName(mCursor.getString(mCursor.getColumnIndexOrThrow(Category.COLUMN_NAME_NAME)));
+            category.setTrackCount(mCursor.getInt(mCursor.getColumnIndexOrThrow(Category.COLUMN_NAME_TRACK_COUNT)));
+            category.setTotalDuration(mCursor.getLong(mCursor.getColumnIndexOrThrow(Category.COLUMN_NAME_TOTAL_DURATION)));
+
+            return category;
+        }
+
+        public Observable<DropboxDBCategory> getObservable() {
+            return Observable.create(subscriber -> {
+                try {
+
+                    if (this.isClosed()) {
+                        throw new IllegalStateException("Cursor already closed.");
+                    }
+
+                    if (this.getCount() > 0) {
+                        this.moveToFirst();
+
+                        do {
+                            subscriber.onNext(this.getCategory());
+                        } while (this.moveToNext() && !subscriber.isUnsubscribed());
+
+                    }
+
+                    if (!subscriber.isUnsubscribed()) {
+                        subscriber.onCompleted();
+                    }
+
+                } catch (Exception e) {
+                    if (!subscriber.isUnsubscribed()) {
+                        subscriber.onError(e);
+                    }
+                } finally {
+                    this.close();
+                }
+            });
+        }
+    }
+}
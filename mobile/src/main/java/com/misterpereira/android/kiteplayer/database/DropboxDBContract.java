@@ -59,6 +59,36 @@ public final class DropboxDBContract {
         public static final String COLUMN_NAME_TRACK_NUMBER = "track_number";
         public static final String COLUMN_NAME_TOTAL_TRACKS = "total_tracks";
 
+        // ReplayGain adjustments in dB, null if the song isn't tagged
+        public static final String COLUMN_NAME_REPLAY_GAIN_TRACK = "replay_gain_track";
+        public static final String COLUMN_NAME_REPLAY_GAIN_ALBUM = "replay_gain_album";
+
         public static final String COLUMN_NAME_ENTRY_ID = "entry_id";
     }
+
+    /**
+     * Aggregate tables for library-level browsing. They are maintained by triggers on the
+     * {@link Song} table and should never be written to directly.
+     */
+    public static abstract class Category implements BaseColumns {
+
+        public static final String COLUMN_NAME_NAME = "name";
+        public static final String COLUMN_NAME_TRACK_COUNT = "track_count";
+        public static final String COLUMN_NAME_TOTAL_DURATION = "total_duration";
+    }
+
+    public static abstract class Artist extends Category {
+
+        public static final String TABLE_NAME = "artist";
+    }
+
+    public static abstract class Album extends Category {
+
+        public static final String TABLE_NAME = "album";
+    }
+
+    public static abstract class Genre extends Category {
+
+        public static final String TABLE_NAME = "genre";
+    }
 }
@@ -9,11 +9,17 @@
 package com.misterpereira.android.kiteplayer.database;
 
 import android.app.Application;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Album;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Artist;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Category;
 import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Entry;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Genre;
 import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Song;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -21,8 +27,10 @@ import javax.inject.Singleton;
 @Singleton
 public class DropboxDBHelper extends SQLiteOpenHelper {
 
+    private static final String TAG = LogHelper.makeLogTag(DropboxDBHelper.class);
+
     public static final String DATABASE_NAME = "dropbox";
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 4;
 
     private static final String CREATE_ENTRY_TABLE =
             "CREATE TABLE " + Entry.TABLE_NAME + "(" +
@@ -71,6 +79,9 @@ public class DropboxDBHelper extends SQLiteOpenHelper {
                     Song.COLUMN_NAME_TRACK_NUMBER + " INTEGER," +
                     Song.COLUMN_NAME_TOTAL_TRACKS + " INTEGER," +
 
+                    Song.COLUMN_NAME_REPLAY_GAIN_TRACK + " REAL," +
+                    Song.COLUMN_NAME_REPLAY_GAIN_ALBUM + " REAL," +
+
                     Song.COLUMN_NAME_ENTRY_ID + " INTEGER NOT NULL," +
 
                     "FOREIGN KEY ("+
@@ -80,12 +91,15 @@ public class DropboxDBHelper extends SQLiteOpenHelper {
                     "CONSTRAINT uq_entry_id UNIQUE ("+
                         Song.COLUMN_NAME_ENTRY_ID+"))";
 
+    // Case and diacritic insensitive tokenizer, not compiled into every SQLite build
+    private static final String FTS4_TOKENIZER = "tokenize=unicode61";
+
     private static final String CREATE_ENTRY_FTS4 =
             "CREATE VIRTUAL TABLE " + Entry.FTS4_TABLE_NAME + " " +
                     "USING fts4(" +
                     "content=\"" + Entry.TABLE_NAME + "\"," +
                     Entry.COLUMN_NAME_PARENT_DIR + ", " +
-                    Entry.COLUMN_NAME_FILENAME + ")";
+                    Entry.COLUMN_NAME_FILENAME + "%s)";
 
     private static final String CREATE_ENTRY_BU_TRIGGER =
             "CREATE TRIGGER entry_bu " +
@@ -134,7 +148,7 @@ public class DropboxDBHelper extends SQLiteOpenHelper {
                             Song.COLUMN_NAME_GENRE + ", " +
                             Song.COLUMN_NAME_ARTIST + ", " +
                             Song.COLUMN_NAME_ALBUM + ", " +
-                            Song.COLUMN_NAME_TITLE + ")";
+                            Song.COLUMN_NAME_TITLE + "%s)";
 
     private static final String CREATE_SONG_BU_TRIGGER =
             "CREATE TRIGGER song_bu " +
@@ -184,6 +198,58 @@ public class DropboxDBHelper extends SQLiteOpenHelper {
                             "new." + Song.COLUMN_NAME_TITLE + ");\n" +
                     "END;";
 
+    // Songs whose entry is gone, including entries replaced during synchronization
+    private static final String CREATE_ENTRY_AD_TRIGGER =
+            "CREATE TRIGGER entry_ad " +
+                    "AFTER DELETE ON " + Entry.TABLE_NAME + " " +
+                    "BEGIN\n" +
+                        "DELETE FROM " + Song.TABLE_NAME + " " +
+                        "WHERE " + Song.COLUMN_NAME_ENTRY_ID + "=old." + Entry._ID + ";\n" +
+                    "END;";
+
+    private static final String CREATE_SONG_CATEGORY_AI_TRIGGER =
+            "CREATE TRIGGER song_category_ai " +
+                    "AFTER INSERT ON " + Song.TABLE_NAME + " " +
+                    "BEGIN\n" +
+                        addToCategory(Artist.TABLE_NAME, Song.COLUMN_NAME_ARTIST) +
+                        addToCategory(Album.TABLE_NAME, Song.COLUMN_NAME_ALBUM) +
+                        addToCategory(Genre.TABLE_NAME, Song.COLUMN_NAME_GENRE) +
+                    "END;";
+
+    private static final String CREATE_SONG_CATEGORY_AD_TRIGGER =
+            "CREATE TRIGGER song_category_ad " +
+                    "AFTER DELETE ON " + Song.TABLE_NAME + " " +
+                    "BEGIN\n" +
+                        removeFromCategory(Artist.TABLE_NAME, Song.COLUMN_NAME_ARTIST) +
+                        removeFromCategory(Album.TABLE_NAME, Song.COLUMN_NAME_ALBUM) +
+                        removeFromCategory(Genre.TABLE_NAME, Song.COLUMN_NAME_GENRE) +
+                    "END;";
+
+    private static final String CREATE_SONG_CATEGORY_AU_TRIGGER =
+            "CREATE TRIGGER song_category_au " +
+                    "AFTER UPDATE OF " +
+                        Song.COLUMN_NAME_ARTIST + ", " +
+                        Song.COLUMN_NAME_ALBUM + ", " +
+                        Song.COLUMN_NAME_GENRE + ", " +
+                        Song.COLUMN_NAME_DURATION + " " +
+                    "ON " + Song.TABLE_NAME + " " +
+                    "BEGIN\n" +
+                        removeFromCategory(Artist.TABLE_NAME, Song.COLUMN_NAME_ARTIST) +
+                        removeFromCategory(Album.TABLE_NAME, Song.COLUMN_NAME_ALBUM) +
+                        removeFromCategory(Genre.TABLE_NAME, Song.COLUMN_NAME_GENRE) +
+                        addToCategory(Artist.TABLE_NAME, Song.COLUMN_NAME_ARTIST) +
+                        addToCategory(Album.TABLE_NAME, Song.COLUMN_NAME_ALBUM) +
+                        addToCategory(Genre.TABLE_NAME, Song.COLUMN_NAME_GENRE) +
+                    "END;";
+
+    private static final String[] CATEGORY_TABLES = {
+            Artist.TABLE_NAME, Album.TABLE_NAME, Genre.TABLE_NAME
+    };
+
+    private static final String[] CATEGORY_SONG_COLUMNS = {
+            Song.COLUMN_NAME_ARTIST, Song.COLUMN_NAME_ALBUM, Song.COLUMN_NAME_GENRE
+    };
+
     @Inject
     public DropboxDBHelper(Application app) {
         super(app.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
@@ -194,22 +260,160 @@ public class DropboxDBHelper extends SQLiteOpenHelper {
 
         db.execSQL(CREATE_ENTRY_TABLE);
         db.execSQL(CREATE_PARENT_DIR_INDEX);
-        db.execSQL(CREATE_ENTRY_FTS4);
+        createFts4Table(db, CREATE_ENTRY_FTS4);
         db.execSQL(CREATE_ENTRY_BU_TRIGGER);
         db.execSQL(CREATE_ENTRY_BD_TRIGGER);
         db.execSQL(CREATE_ENTRY_AU_TRIGGER);
         db.execSQL(CREATE_ENTRY_AI_TRIGGER);
         db.execSQL(CREATE_SONG_TABLE);
-        db.execSQL(CREATE_SONG_FTS4);
+        createFts4Table(db, CREATE_SONG_FTS4);
         db.execSQL(CREATE_SONG_BU_TRIGGER);
         db.execSQL(CREATE_SONG_BD_TRIGGER);
         db.execSQL(CREATE_SONG_AU_TRIGGER);
         db.execSQL(CREATE_SONG_AI_TRIGGER);
 
+        createCategoryTables(db);
+
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Rows deleted by REPLACE conflicts must fire the delete triggers as well, otherwise
+        // full text indexes and categories keep counting the replaced rows
+        db.execSQL("PRAGMA recursive_triggers = ON");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
+        LogHelper.d(TAG, "onUpgrade - Upgrading from version=", oldVersion, " to ", newVersion);
+
+        if (oldVersion < 2) {
+            // Drop songs orphaned by entries replaced before the cleanup trigger existed
+            db.execSQL("DELETE FROM " + Song.TABLE_NAME + " WHERE " +
+                    Song.COLUMN_NAME_ENTRY_ID + " NOT IN " +
+                    "(SELECT " + Entry._ID + " FROM " + Entry.TABLE_NAME + ")");
+
+            createCategoryTables(db);
+
+            for (int i = 0; i < CATEGORY_TABLES.length; i++) {
+                db.execSQL(backfillCategory(CATEGORY_TABLES[i], CATEGORY_SONG_COLUMNS[i]));
+            }
+        }
+
+        if (oldVersion < 3) {
+            // Rebuild full text indexes with the diacritic insensitive tokenizer. Triggers
+            // reference the tables by name, so they are left in place.
+            db.execSQL("DROP TABLE " + Entry.FTS4_TABLE_NAME);
+            db.execSQL("DROP TABLE " + Song.FTS4_TABLE_NAME);
+
+            createFts4Table(db, CREATE_ENTRY_FTS4);
+            createFts4Table(db, CREATE_SONG_FTS4);
+
+            rebuildFts4Table(db, Entry.FTS4_TABLE_NAME);
+            rebuildFts4Table(db, Song.FTS4_TABLE_NAME);
+        }
+
+        if (oldVersion < 4) {
+            // Songs already synced stay without gain until their metadata is read again
+            db.execSQL("ALTER TABLE " + Song.TABLE_NAME + " ADD COLUMN " +
+                    Song.COLUMN_NAME_REPLAY_GAIN_TRACK + " REAL");
+            db.execSQL("ALTER TABLE " + Song.TABLE_NAME + " ADD COLUMN " +
+                    Song.COLUMN_NAME_REPLAY_GAIN_ALBUM + " REAL");
+        }
+    }
+
+    private static void createFts4Table(SQLiteDatabase db, String createFormat) {
+        try {
+            db.execSQL(String.format(createFormat, ", " + FTS4_TOKENIZER));
+        } catch (SQLException e) {
+            LogHelper.w(TAG, e, "createFts4Table - Falling back to the default tokenizer");
+            db.execSQL(String.format(createFormat, ""));
+        }
+    }
+
+    private static void rebuildFts4Table(SQLiteDatabase db, String table) {
+        db.execSQL("INSERT INTO " + table + "(" + table + ") VALUES('rebuild')");
+    }
+
+    private static void createCategoryTables(SQLiteDatabase db) {
+
+        for (int i = 0; i < CATEGORY_TABLES.length; i++) {
+            db.execSQL(createCategoryTable(CATEGORY_TABLES[i]));
+            db.execSQL(createSongCategoryIndex(CATEGORY_SONG_COLUMNS[i]));
+        }
+
+        db.execSQL(CREATE_ENTRY_AD_TRIGGER);
+        db.execSQL(CREATE_SONG_CATEGORY_AI_TRIGGER);
+        db.execSQL(CREATE_SONG_CATEGORY_AD_TRIGGER);
+        db.execSQL(CREATE_SONG_CATEGORY_AU_TRIGGER);
+    }
+
+    private static String createCategoryTable(String table) {
+        return "CREATE TABLE " + table + "(" +
+                Category._ID + " INTEGER PRIMARY KEY," +
+                Category.COLUMN_NAME_NAME + " VARCHAR NOT NULL COLLATE NOCASE," +
+                Category.COLUMN_NAME_TRACK_COUNT + " INTEGER NOT NULL DEFAULT 0," +
+                Category.COLUMN_NAME_TOTAL_DURATION + " INTEGER NOT NULL DEFAULT 0," +
+
+                "CONSTRAINT uq_" + table + "_name UNIQUE (" +
+                    Category.COLUMN_NAME_NAME + "))";
+    }
+
+    private static String createSongCategoryIndex(String songColumn) {
+        return "CREATE INDEX song_" + songColumn + " ON " +
+                Song.TABLE_NAME + "(" + songColumn + " COLLATE NOCASE)";
+    }
+
+    /**
+     * Trigger statements counting the new song in its category, creating the category when
+     * needed. Conflict clauses are avoided on purpose since the REPLACE of the triggering
+     * statement would override them.
+     */
+    private static String addToCategory(String table, String songColumn) {
+        return "INSERT INTO " + table + "(" +
+                    Category.COLUMN_NAME_NAME + ", " +
+                    Category.COLUMN_NAME_TRACK_COUNT + ", " +
+                    Category.COLUMN_NAME_TOTAL_DURATION + ") " +
+                "SELECT new." + songColumn + ", 0, 0 " +
+                "WHERE IFNULL(new." + songColumn + ", '') != '' AND NOT EXISTS (" +
+                    "SELECT 1 FROM " + table + " " +
+                    "WHERE " + Category.COLUMN_NAME_NAME + "=new." + songColumn + ");\n" +
+                "UPDATE " + table + " SET " +
+                    Category.COLUMN_NAME_TRACK_COUNT + "=" +
+                        Category.COLUMN_NAME_TRACK_COUNT + "+1, " +
+                    Category.COLUMN_NAME_TOTAL_DURATION + "=" +
+                        Category.COLUMN_NAME_TOTAL_DURATION + "+IFNULL(new." +
+                        Song.COLUMN_NAME_DURATION + ", 0) " +
+                "WHERE " + Category.COLUMN_NAME_NAME + "=new." + songColumn + ";\n";
+    }
+
+    /**
+     * Trigger statements discounting the old song from its category, dropping the category
+     * once it's empty.
+     */
+    private static String removeFromCategory(String table, String songColumn) {
+        return "UPDATE " + table + " SET " +
+                    Category.COLUMN_NAME_TRACK_COUNT + "=" +
+                        Category.COLUMN_NAME_TRACK_COUNT + "-1, " +
+                    Category.COLUMN_NAME_TOTAL_DURATION + "=" +
+                        Category.COLUMN_NAME_TOTAL_DURATION + "-IFNULL(old." +
+                        Song.COLUMN_NAME_DURATION + ", 0) " +
+                "WHERE " + Category.COLUMN_NAME_NAME + "=old." + songColumn + ";\n" +
+                "DELETE FROM " + table + " " +
+                "WHERE " + Category.COLUMN_NAME_NAME + "=old." + songColumn + " AND " +
+                    Category.COLUMN_NAME_TRACK_COUNT + "<=0;\n";
+    }
+
+    private static String backfillCategory(String table, String songColumn) {
+        return "INSERT INTO " + table + "(" +
+                    Category.COLUMN_NAME_NAME + ", " +
+                    Category.COLUMN_NAME_TRACK_COUNT + ", " +
+                    Category.COLUMN_NAME_TOTAL_DURATION + ") " +
+                "SELECT " + songColumn + ", COUNT(*), " +
+                    "SUM(IFNULL(" + Song.COLUMN_NAME_DURATION + ", 0)) " +
+                "FROM " + Song.TABLE_NAME + " " +
+                "WHERE IFNULL(" + songColumn + ", '') != '' " +
+                "GROUP BY " + songColumn + " COLLATE NOCASE";
     }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.database;
+
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Entry;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Song;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Full text search over song tags and file names in a single query. Hits are ranked with
+ * BM25 computed from the FTS4 matchinfo statistics.
+ */
+@Singleton
+public class DropboxDBSearchDAO {
+
+    private static final String TAG = LogHelper.makeLogTag(DropboxDBSearchDAO.class);
+
+    // p: phrases, c: columns, n: rows, a: average column tokens, l: column tokens, x: hits
+    private static final String MATCHINFO_FORMAT = "pcnalx";
+
+    private static final int SOURCE_SONG = 0;
+    private static final int SOURCE_ENTRY = 1;
+
+    // Column weights, in the column order of each FTS4 table
+    private static final double[] SONG_COLUMN_WEIGHTS = {
+            0.5, // genre
+            2.0, // artist
+            1.5, // album
+            3.0  // title
+    };
+
+    private static final double[] ENTRY_COLUMN_WEIGHTS = {
+            0.5, // parent_dir
+            1.0  // filename
+    };
+
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+
+    private static final String SONG_HITS_QUERY =
+            "SELECT s." + Song.COLUMN_NAME_ENTRY_ID + ", " +
+                    "matchinfo(" + Song.FTS4_TABLE_NAME + ", '" + MATCHINFO_FORMAT + "'), " +
+                    SOURCE_SONG + " " +
+                    "FROM " + Song.FTS4_TABLE_NAME + " " +
+                    "INNER JOIN " + Song.TABLE_NAME + " AS s " +
+                    "ON s.rowid = " + Song.FTS4_TABLE_NAME + ".docid " +
+                    "WHERE " + Song.FTS4_TABLE_NAME + " MATCH ?";
+
+    private static final String ENTRY_HITS_QUERY =
+            "SELECT e." + Entry._ID + ", " +
+                    "matchinfo(" + Entry.FTS4_TABLE_NAME + ", '" + MATCHINFO_FORMAT + "'), " +
+                    SOURCE_ENTRY + " " +
+                    "FROM " + Entry.FTS4_TABLE_NAME + " " +
+                    "INNER JOIN " + Entry.TABLE_NAME + " AS e " +
+                    "ON e.rowid = " + Entry.FTS4_TABLE_NAME + ".docid " +
+                    "WHERE " + Entry.FTS4_TABLE_NAME + " MATCH ? " +
+                    "AND NOT e." + Entry.COLUMN_NAME_IS_DIR;
+
+    private final DropboxDBHelper mDbHelper;
+
+    @Inject
+    public DropboxDBSearchDAO(DropboxDBHelper dbHelper) {
+        this.mDbHelper = dbHelper;
+    }
+
+    /**
+     * Searches song tags and file names at once.
+     *
+     * @param songMatch FTS4 match expression for the song table, or null to skip it
+     * @param entryMatch FTS4 match expression for the entry table, or null to skip it
+     * @param limit maximum number of results
+     * @return ids of the matching song entries, best match first
+     */
+    @NonNull
+    public List<Long> search(@Nullable String songMatch, @Nullable String entryMatch, int limit) {
+
+        if (songMatch == null && entryMatch == null) {
+            return Collections.emptyList();
+        }
+
+        String query;
+        String[] selectionArgs;
+
+        if (songMatch != null && entryMatch != null) {
+            query = SONG_HITS_QUERY + " UNION ALL " + ENTRY_HITS_QUERY;
+            selectionArgs = new String[]{songMatch, entryMatch};
+        } else if (songMatch != null) {
+            query = SONG_HITS_QUERY;
+            selectionArgs = new String[]{songMatch};
+        } else {
+            query = ENTRY_HITS_QUERY;
+            selectionArgs = new String[]{entryMatch};
+        }
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+
+        // Songs matched by both their tags and file name add up both scores
+        Map<Long, Double> scores = new HashMap<>();
+
+        Cursor results = db.rawQuery(query, selectionArgs);
+        try {
+            while (results.moveToNext()) {
+
+                long entryId = results.getLong(0);
+                double score = score(results.getBlob(1),
+                        results.getInt(2) == SOURCE_SONG ?
+                                SONG_COLUMN_WEIGHTS : ENTRY_COLUMN_WEIGHTS);
+
+                Double previous = scores.get(entryId);
+                scores.put(entryId, previous != null ? previous + score : score);
+            }
+        } finally {
+            results.close();
+        }
+
+        List<Map.Entry<Long, Double>> ranked = new ArrayList<>(scores.entrySet());
+        Collections.sort(ranked, (first, second) -> Double.compare(second.getValue(), first.getValue()));
+
+        int count = Math.min(limit, ranked.size());
+        List<Long> entryIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entryIds.add(ranked.get(i).getKey());
+        }
+
+        LogHelper.d(TAG,
+                "search - Query with songMatch=", songMatch, ", entryMatch=", entryMatch,
+                " returned ", entryIds.size(), " of ", ranked.size(), " matches.");
+
+        return entryIds;
+    }
+
+    /**
+     * BM25 score of a row, from a matchinfo blob in {@link #MATCHINFO_FORMAT}.
+     */
+    private static double score(byte[] matchinfo, double[] columnWeights) {
+
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+        int phraseCount = info.get(0);
+        int columnCount = info.get(1);
+        int rowCount = info.get(2);
+
+        int averageLengthOffset = 3;
+        int lengthOffset = averageLengthOffset + columnCount;
+        int hitsOffset = lengthOffset + columnCount;
+
+        double score = 0;
+
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount && column < columnWeights.length; column++) {
+
+                int hits = hitsOffset + 3 * (phrase * columnCount + column);
+                int rowHits = info.get(hits);
+                int rowsWithHits = info.get(hits + 2);
+
+                if (rowHits == 0) {
+                    continue;
+                }
+
+                double idf = Math.log(1 +
+                        (rowCount - rowsWithHits + 0.5) / (rowsWithHits + 0.5));
+
+                double averageLength = Math.max(1, info.get(averageLengthOffset + column));
+                double lengthRatio = info.get(lengthOffset + column) / averageLength;
+
+                score += columnWeights[column] * idf *
+                        (rowHits * (BM25_K1 + 1)) /
+                        (rowHits + BM25_K1 * (1 - BM25_B + BM25_B * lengthRatio));
+            }
+        }
+
+        return score;
+    }
+}
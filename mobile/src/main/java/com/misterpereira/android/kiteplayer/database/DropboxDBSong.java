@@ -30,6 +30,9 @@ public class DropboxDBSong {
     private int trackNumber;
     private int totalTracks;
 
+    private Float replayGainTrack;
+    private Float replayGainAlbum;
+
     private long entryId;
 
     public long getId() {
@@ -136,6 +139,22 @@ public class DropboxDBSong {
         this.totalTracks = totalTracks;
     }
 
+    public Float getReplayGainTrack() {
+        return replayGainTrack;
+    }
+
+    public void setReplayGainTrack(Float replayGainTrack) {
+        this.replayGainTrack = replayGainTrack;
+    }
+
+    public Float getReplayGainAlbum() {
+        return replayGainAlbum;
+    }
+
+    public void setReplayGainAlbum(Float replayGainAlbum) {
+        this.replayGainAlbum = replayGainAlbum;
+    }
+
     public long getEntryId() {
         return entryId;
     }
@@ -169,6 +188,9 @@ public class DropboxDBSong {
         if (_this.getTrackNumber() != _that.getTrackNumber()) return false;
         if (_this.getTotalTracks() != _that.getTotalTracks()) return false;
 
+        if (_this.getReplayGainTrack()!=null?!_this.getReplayGainTrack().equals(_that.getReplayGainTrack()):_that.getReplayGainTrack()!=null) return false;
+        if (_this.getReplayGainAlbum()!=null?!_this.getReplayGainAlbum().equals(_that.getReplayGainAlbum()):_that.getReplayGainAlbum()!=null) return false;
+
         return _this.getEntryId() == _that.getEntryId();
 
     }
@@ -186,6 +208,8 @@ public class DropboxDBSong {
         result = 31 * result + (int) (getDuration() ^ (getDuration() >>> 32));
         result = 31 * result + getTrackNumber();
         result = 31 * result + getTotalTracks();
+        result = 31 * result + (getReplayGainTrack() != null ? getReplayGainTrack().hashCode() : 0);
+        result = 31 * result + (getReplayGainAlbum() != null ? getReplayGainAlbum().hashCode() : 0);
         result = 31 * result + (int) (getEntryId() ^ (getEntryId() >>> 32));
         return result;
     }
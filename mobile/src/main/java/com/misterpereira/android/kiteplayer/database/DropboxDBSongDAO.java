@@ -99,6 +99,36 @@ public class DropboxDBSongDAO {
 
     }
 
+    public Observable<DropboxDBSong> findByArtist(String artist) {
+        return findByCategory(Song.COLUMN_NAME_ARTIST, artist);
+    }
+
+    public Observable<DropboxDBSong> findByAlbum(String album) {
+        return findByCategory(Song.COLUMN_NAME_ALBUM, album);
+    }
+
+    public Observable<DropboxDBSong> findByGenre(String genre) {
+        return findByCategory(Song.COLUMN_NAME_GENRE, genre);
+    }
+
+    private Observable<DropboxDBSong> findByCategory(String column, String value) {
+
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+
+        String selection = column + " = ? COLLATE NOCASE";
+        String[] selectionArgs = { value };
+
+        Cursor results = db.query(Song.TABLE_NAME, null, selection, selectionArgs, null, null,
+                Song.COLUMN_NAME_ALBUM + " ASC, " +
+                        Song.COLUMN_NAME_TRACK_NUMBER + " ASC, " +
+                        Song.COLUMN_NAME_TITLE + " ASC");
+
+        LogHelper.d(TAG,
+                "findByCategory - Found ", results.getCount(), " songs for ", column, "=", value);
+
+        return new DropboxDBSongCursorWrapper(results).getObservable();
+    }
+
     public Observable<DropboxDBSong> query(
             @Nullable String genre,
             @Nullable String artist,
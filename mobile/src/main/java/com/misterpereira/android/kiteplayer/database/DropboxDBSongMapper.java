@@ -46,6 +46,9 @@ public class DropboxDBSongMapper {
         cv.put(DropboxDBContract.Song.COLUMN_NAME_TRACK_NUMBER,song.getTrackNumber());
         cv.put(DropboxDBContract.Song.COLUMN_NAME_TOTAL_TRACKS,song.getTotalTracks());
 
+        cv.put(DropboxDBContract.Song.COLUMN_NAME_REPLAY_GAIN_TRACK,song.getReplayGainTrack());
+        cv.put(DropboxDBContract.Song.COLUMN_NAME_REPLAY_GAIN_ALBUM,song.getReplayGainAlbum());
+
         cv.put(DropboxDBContract.Song.COLUMN_NAME_ENTRY_ID,song.getEntryId());
 
         return cv;
@@ -90,11 +93,19 @@ public class DropboxDBSongMapper {
             song.setTrackNumber(mCursor.getInt(mCursor.getColumnIndexOrThrow(DropboxDBContract.Song.COLUMN_NAME_TRACK_NUMBER)));
             song.setTotalTracks(mCursor.getInt(mCursor.getColumnIndexOrThrow(DropboxDBContract.Song.COLUMN_NAME_TOTAL_TRACKS)));
 
+            song.setReplayGainTrack(getNullableFloat(DropboxDBContract.Song.COLUMN_NAME_REPLAY_GAIN_TRACK));
+            song.setReplayGainAlbum(getNullableFloat(DropboxDBContract.Song.COLUMN_NAME_REPLAY_GAIN_ALBUM));
+
             song.setEntryId(mCursor.getLong(mCursor.getColumnIndexOrThrow(DropboxDBContract.Song.COLUMN_NAME_ENTRY_ID)));
 
             return song;
         }
 
+        private Float getNullableFloat(String column) {
+            int index = mCursor.getColumnIndexOrThrow(column);
+            return mCursor.isNull(index) ? null : mCursor.getFloat(index);
+        }
+
         public Observable<DropboxDBSong> getObservable() {
             return Observable.create(subscriber -> {
                 try {
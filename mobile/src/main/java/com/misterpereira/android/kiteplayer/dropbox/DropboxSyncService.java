@@ -15,42 +15,51 @@ import android.media.MediaMetadataRetriever;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.dropbox.client2.DropboxAPI;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.dropbox.client2.exception.DropboxException;
-import com.misterpereira.android.kiteplayer.R;
+import com.misterpereira.android.kiteplayer.KiteApplicationModule;
+import com.misterpereira.android.kiteplayer.PlaybackLatencyTracker;
 import com.misterpereira.android.kiteplayer.database.DropboxDBEntry;
 import com.misterpereira.android.kiteplayer.database.DropboxDBEntryDAO;
 import com.misterpereira.android.kiteplayer.database.DropboxDBSong;
 import com.misterpereira.android.kiteplayer.database.DropboxDBSongDAO;
-import com.misterpereira.android.kiteplayer.model.AlbumArtLoader;
 import com.misterpereira.android.kiteplayer.model.MusicProvider;
 import com.misterpereira.android.kiteplayer.utils.DropboxHelper;
 import com.misterpereira.android.kiteplayer.utils.ImmutableFileLRUCache;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.NetworkHelper;
 import com.misterpereira.android.kiteplayer.utils.PrefUtils;
+import com.misterpereira.android.kiteplayer.utils.ReplayGainHelper;
 import com.misterpereira.android.kiteplayer.utils.SongCacheHelper;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import rx.Observable;
 import rx.Subscription;
 import rx.schedulers.Schedulers;
-
-import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.LARGE_ALBUM_ART_DIMENSIONS;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
 
 @Singleton
 public class DropboxSyncService {
@@ -68,22 +77,60 @@ public class DropboxSyncService {
     private final DropboxDBSongDAO mSongDao;
     @Nullable
     private final ImmutableFileLRUCache mCachedSongs;
+    @Nullable
+    private final ImmutableFileLRUCache mAlbumArtStore;
+    private final PlaybackLatencyTracker mLatencyTracker;
+
+    // Wait for a download started to stream a song to create its cache file
+    private static final long STREAM_START_TIMEOUT_MS = 5000;
 
     private Subscription mQueueSubscription;
 
+    // Synchronizations started in the background or by the user publish here alike
+    private final SerializedSubject<SyncEvent, SyncEvent> mSyncEvents =
+            new SerializedSubject<>(PublishSubject.<SyncEvent>create());
+
+    /**
+     * Data of a song read through the cache, and its total length.
+     */
+    public static final class SongStream {
+
+        public final InputStream data;
+        public final long length;
+
+        SongStream(InputStream data, long length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
     @Inject
     public DropboxSyncService(@NonNull Application application,
                               DropboxAPI<AndroidAuthSession> dbApi,
                               DropboxDBEntryDAO entryDao,
                               DropboxDBSongDAO songDao,
-                              @Nullable ImmutableFileLRUCache cachedSongs) {
+                              @Nullable ImmutableFileLRUCache cachedSongs,
+                              @Nullable @Named(KiteApplicationModule.ALBUM_ART_STORE)
+                              ImmutableFileLRUCache albumArtStore,
+                              PlaybackLatencyTracker latencyTracker) {
 
         this.mApplicationContext = application.getApplicationContext();
         this.mDropboxApi = dbApi;
         this.mEntryDao = entryDao;
         this.mSongDao = songDao;
         this.mCachedSongs = cachedSongs;
+        this.mAlbumArtStore = albumArtStore;
+        this.mLatencyTracker = latencyTracker;
+
+    }
 
+    /**
+     * Progress of every synchronization of the entry database, one event per delta page.
+     * Emits on the thread synchronizing.
+     */
+    @NonNull
+    public Observable<SyncEvent> getSyncEvents() {
+        return mSyncEvents.asObservable();
     }
 
     @NonNull
@@ -110,8 +157,13 @@ public class DropboxSyncService {
 
                             deltaPage = mDropboxApi.delta(deltaCursor);
 
+                            int page = pageCounter++;
+                            int savedEntries = 0;
+                            int deletedEntries = 0;
+                            Set<String> affectedFolders = new HashSet<>();
+
                             LogHelper.d(TAG,
-                                    "synchronizeEntryDB - Processing delta page #", (pageCounter++),
+                                    "synchronizeEntryDB - Processing delta page #", page,
                                     " with size=", deltaPage.entries.size());
 
                             for (DropboxAPI.DeltaEntry<DropboxAPI.Entry> deltaEntry : deltaPage.entries) {
@@ -124,6 +176,11 @@ public class DropboxSyncService {
                                     LogHelper.d(TAG,
                                             "synchronizeEntryDB - Deleted entry path=", deltaEntry.lcPath);
 
+                                    // The entry may have been a folder being shown
+                                    affectedFolders.add(SyncEvent.toParentFolderKey(deltaEntry.lcPath));
+                                    affectedFolders.add(SyncEvent.toFolderKey(deltaEntry.lcPath));
+                                    deletedEntries++;
+
                                     continue;
                                 } else if (!dbEntry.isDir &&
                                         (extStartIndex = dbEntry.fileName().lastIndexOf('.')) != -1 &&
@@ -155,12 +212,18 @@ public class DropboxSyncService {
                                         "synchronizeEntryDB - Saved entry for path=",
                                         dbEntry.parentPath(), " with id=", id);
 
+                                affectedFolders.add(SyncEvent.toFolderKey(dbEntry.parentPath()));
+                                savedEntries++;
+
                                 subscriber.onNext(id);
                             }
 
                             deltaCursor = deltaPage.cursor;
                             PrefUtils.setDropboxDeltaCursor(mApplicationContext, deltaPage.cursor);
 
+                            mSyncEvents.onNext(new SyncEvent(page, savedEntries, deletedEntries,
+                                    affectedFolders, !deltaPage.hasMore));
+
                         } while (deltaPage.hasMore);
 
                         subscriber.onCompleted();
@@ -195,7 +258,11 @@ public class DropboxSyncService {
 
             if (getCachedSongFile(entry) == null) {
                 if (NetworkHelper.canStream(mApplicationContext)) {
-                    if (refreshDownloadURL(entry)) {
+                    mLatencyTracker.beginSpan(PlaybackLatencyTracker.SPAN_URL_LEASE,
+                            Long.toString(entry.getId()));
+                    boolean refreshed = refreshDownloadURL(entry);
+                    mLatencyTracker.endSpan(PlaybackLatencyTracker.SPAN_URL_LEASE);
+                    if (refreshed) {
                         mSongDao.insertOrReplace(song);
                     }
                 } else {
@@ -272,38 +339,31 @@ public class DropboxSyncService {
                     }
                 }
 
+                if (cachedSongFile != null) {
+                    ReplayGainHelper.readReplayGain(cachedSongFile, song);
+                }
+
                 song.setHasLatestMetadata(true);
 
                 LogHelper.d(TAG, "synchronizeSongDB - Updating image data for path=", entry.getFullPath());
 
-                // Cache album art
-                try {
-
-                    byte[] embeddedPicture = retriever.getEmbeddedPicture();
+                // Persist original album art
+                byte[] embeddedPicture = retriever.getEmbeddedPicture();
 
-                    if (embeddedPicture != null && embeddedPicture.length > 0) {
+                if (embeddedPicture != null && embeddedPicture.length > 0) {
 
-                        Glide
-                                .with(mApplicationContext)
-                                .load(retriever.getEmbeddedPicture())
-                                .fallback(R.drawable.ic_album_art)
-                                .signature(new AlbumArtLoader.Key(MusicProvider.buildMetadataFromDBEntry(mApplicationContext, entry, cachedSongFile, false)))
-                                .diskCacheStrategy(DiskCacheStrategy.ALL)
-                                .into(LARGE_ALBUM_ART_DIMENSIONS[0], LARGE_ALBUM_ART_DIMENSIONS[1])
-                                .get();
+                    storeAlbumArt(
+                            MusicProvider.buildMetadataFromDBEntry(
+                                    mApplicationContext, entry, cachedSongFile, false),
+                            embeddedPicture);
 
-                        LogHelper.d(TAG, "synchronizeSongDB - Cached album art image for path=", entry.getFullPath());
+                    LogHelper.d(TAG, "synchronizeSongDB - Stored album art image for path=", entry.getFullPath());
 
-                    } else {
-                        song.setHasValidAlbumArt(false);
-                    }
-
-                } catch (@NonNull InterruptedException | ExecutionException e) {
+                } else {
                     song.setHasValidAlbumArt(false);
-                    LogHelper.w(TAG, e,
-                            "synchronizeSongDB - Failed to cache album art image for path=",
-                            entry.getFullPath());
                 }
+
+                retriever.release();
             }
 
             long id = mSongDao.insertOrReplace(song);
@@ -399,9 +459,23 @@ public class DropboxSyncService {
             return null;
         }
 
+        return downloadIntoCache(entry);
+    }
+
+    private
+    @Nullable
+    File downloadIntoCache(@NonNull DropboxDBEntry entry) {
+        return downloadIntoCache(entry, null);
+    }
+
+    private
+    @Nullable
+    File downloadIntoCache(@NonNull DropboxDBEntry entry, @Nullable Runnable onWriteStarted) {
+
         File newCacheFile = mCachedSongs.newFile(
                 SongCacheHelper.makeLRUCacheFileName(entry),
-                cacheStream -> mDropboxApi.getFile(entry.getFullPath(), entry.getRev(), cacheStream, null));
+                cacheStream -> mDropboxApi.getFile(entry.getFullPath(), entry.getRev(), cacheStream, null),
+                onWriteStarted);
 
         if (newCacheFile != null) {
             LogHelper.d(TAG,
@@ -459,8 +533,13 @@ public class DropboxSyncService {
         return retriever;
     }
 
+    /**
+     * Opens the original album art of the given track. Art is read straight from the album art
+     * store, the song's embedded picture is only extracted (and then stored) on a store miss.
+     * Completes without emitting if the song has no album art.
+     */
     @NonNull
-    public Observable<byte[]> getAlbumArt(@NonNull MediaMetadata mm) {
+    public Observable<InputStream> getAlbumArt(@NonNull MediaMetadata mm) {
 
         return Observable.create(subscriber -> {
 
@@ -468,6 +547,17 @@ public class DropboxSyncService {
                     "getAlbumArt - Starting subscriber on thread=",
                     Thread.currentThread().getName());
 
+            InputStream storedAlbumArt = openStoredAlbumArt(mAlbumArtStore,
+                    SongCacheHelper.makeAlbumArtFileName(mm));
+
+            if (storedAlbumArt != null) {
+                subscriber.onNext(storedAlbumArt);
+                subscriber.onCompleted();
+                return;
+            }
+
+            if (subscriber.isUnsubscribed()) return;
+
             DropboxDBEntry entry =
                     mEntryDao.findById(
                             Long.parseLong(mm.getString(MediaMetadata.METADATA_KEY_MEDIA_ID)));
@@ -482,10 +572,16 @@ public class DropboxSyncService {
                 if (retriever != null) {
 
                     byte[] bitmapByteArray = retriever.getEmbeddedPicture();
+                    retriever.release();
 
                     if (bitmapByteArray != null && bitmapByteArray.length > 0) {
 
-                        subscriber.onNext(bitmapByteArray);
+                        if (subscriber.isUnsubscribed()) return;
+
+                        storeAlbumArt(mm, bitmapByteArray);
+
+                        // Wraps the retriever's copy, no further copies are made
+                        subscriber.onNext(new ByteArrayInputStream(bitmapByteArray));
 
                     } else {
 
@@ -510,6 +606,121 @@ public class DropboxSyncService {
 
     }
 
+    /**
+     * Opens album art stored earlier, streamed from its file as it is, without being loaded
+     * in memory first.
+     *
+     * @return null if it isn't stored
+     */
+    @Nullable
+    static InputStream openStoredAlbumArt(@Nullable ImmutableFileLRUCache albumArtStore,
+                                          @NonNull String albumArtFileName) {
+
+        File storedAlbumArt =
+                albumArtStore != null ? albumArtStore.get(albumArtFileName, 0) : null;
+
+        if (storedAlbumArt == null) {
+            return null;
+        }
+
+        try {
+            return new BufferedInputStream(new FileInputStream(storedAlbumArt));
+        } catch (FileNotFoundException e) {
+            // Evicted in the meantime, falls back to the embedded picture
+            LogHelper.w(TAG, e, "openStoredAlbumArt - Stored album art vanished for key=",
+                    albumArtFileName);
+            return null;
+        }
+    }
+
+    private void storeAlbumArt(@NonNull MediaMetadata mm, @NonNull byte[] albumArt) {
+
+        if (mAlbumArtStore == null) return;
+
+        String albumArtFileName = SongCacheHelper.makeAlbumArtFileName(mm);
+
+        if (mAlbumArtStore.get(albumArtFileName, 0) == null) {
+            mAlbumArtStore.newFile(albumArtFileName, os -> os.write(albumArt));
+        }
+    }
+
+    /**
+     * Opens the song's data through the cache, so it's downloaded only once whoever reads it.
+     * A song neither cached nor being downloaded starts downloading in the background, and
+     * reads of data not downloaded yet wait for it.
+     *
+     * @return null if the song isn't cached and can't be streamed
+     */
+    @Nullable
+    public SongStream openSongStream(@NonNull DropboxDBEntry entry) {
+
+        if (mCachedSongs == null || entry.isDir()) return null;
+
+        String fileName = SongCacheHelper.makeLRUCacheFileName(entry);
+
+        File cachedSongFile = getCachedSongFile(entry);
+        InputStream data = mCachedSongs.openForReading(fileName);
+        if (data != null) {
+            return new SongStream(data,
+                    cachedSongFile != null ? cachedSongFile.length() : entry.getBytes());
+        }
+
+        if (!NetworkHelper.canStream(mApplicationContext)) {
+            return null;
+        }
+
+        LogHelper.d(TAG, "openSongStream - Downloading path=", entry.getFullPath());
+
+        // Released once the cache file can be read, or when the download is over
+        CountDownLatch started = new CountDownLatch(1);
+        startDownload(entry, started::countDown);
+
+        try {
+            if (!started.await(STREAM_START_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LogHelper.w(TAG, "openSongStream - Download didn't start for path=",
+                        entry.getFullPath());
+                return null;
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+
+        data = mCachedSongs.openForReading(fileName);
+        return data != null ? new SongStream(data, entry.getBytes()) : null;
+    }
+
+    /**
+     * Starts downloading the song into the cache in the background, unless it's cached
+     * already or can't be streamed. Returns at once.
+     */
+    public void cacheSong(@NonNull DropboxDBEntry entry) {
+
+        if (mCachedSongs == null || entry.isDir() || peekCachedSongFile(entry) != null) return;
+
+        if (!NetworkHelper.canStream(mApplicationContext)) return;
+
+        LogHelper.d(TAG, "cacheSong - Downloading path=", entry.getFullPath());
+
+        // Does nothing if the song is being downloaded already
+        startDownload(entry, null);
+    }
+
+    /**
+     * Downloads the song into the cache on an io thread, calling back once the download is
+     * over, or sooner once its cache file can be read.
+     */
+    private void startDownload(@NonNull DropboxDBEntry entry, @Nullable Runnable onStarted) {
+
+        Observable
+                .just(entry)
+                .subscribeOn(Schedulers.io())
+                .finallyDo(() -> {
+                    if (onStarted != null) onStarted.run();
+                })
+                .subscribe(song -> downloadIntoCache(song, onStarted),
+                        error -> LogHelper.w(TAG, error, "startDownload - Download failed"));
+    }
+
     public
     @Nullable
     File getCachedSongFile(DropboxDBEntry entry) {
@@ -524,4 +735,34 @@ public class DropboxSyncService {
         return mCachedSongs.get(SongCacheHelper.makeLRUCacheFileName(entry), timeout);
     }
 
+    /**
+     * Same as {@link #getCachedSongFile(DropboxDBEntry)} from the cache index only, without
+     * checking the file on disk.
+     */
+    public
+    @Nullable
+    File peekCachedSongFile(DropboxDBEntry entry) {
+        if (mCachedSongs == null) return null;
+        return mCachedSongs.peek(SongCacheHelper.makeLRUCacheFileName(entry));
+    }
+
+    /**
+     * @return ids of the song entries with a cached file, as set bits
+     */
+    @NonNull
+    public BitSet getCachedSongIds() {
+
+        BitSet ids = new BitSet();
+        if (mCachedSongs == null) return ids;
+
+        for (String fileName : mCachedSongs.getFileNames()) {
+            long id = SongCacheHelper.getEntryIdFromLRUCacheFileName(fileName);
+            if (id >= 0 && id <= Integer.MAX_VALUE) {
+                ids.set((int) id);
+            }
+        }
+
+        return ids;
+    }
+
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.dropbox;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Progress of a synchronization of the entry database, published once per delta page.
+ * <p>
+ * Folders are given as keys made by {@link #toFolderKey(String)}, so paths of saved entries
+ * and the lower case paths of deleted ones can be compared.
+ */
+public final class SyncEvent {
+
+    // Number of the delta page, starting at 1
+    public final int page;
+    public final int savedEntries;
+    public final int deletedEntries;
+    // Folders whose direct children changed with this page
+    public final Set<String> affectedFolders;
+    // Whether this is the last page of the synchronization
+    public final boolean finished;
+
+    SyncEvent(int page, int savedEntries, int deletedEntries,
+              @NonNull Set<String> affectedFolders, boolean finished) {
+        this.page = page;
+        this.savedEntries = savedEntries;
+        this.deletedEntries = deletedEntries;
+        this.affectedFolders = Collections.unmodifiableSet(affectedFolders);
+        this.finished = finished;
+    }
+
+    /**
+     * @return the key of a Dropbox folder path, lower case and ending with a separator
+     */
+    @NonNull
+    public static String toFolderKey(@NonNull String path) {
+        String key = path.toLowerCase(Locale.US);
+        return key.endsWith("/") ? key : key + "/";
+    }
+
+    /**
+     * @return the key of the folder holding the given path
+     */
+    @NonNull
+    static String toParentFolderKey(@NonNull String path) {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        int lastSeparator = trimmed.lastIndexOf('/');
+        return toFolderKey(lastSeparator > 0 ? trimmed.substring(0, lastSeparator) : "/");
+    }
+
+    @Override
+    public String toString() {
+        return "SyncEvent{page=" + page + ", saved=" + savedEntries +
+                ", deleted=" + deletedEntries + ", folders=" + affectedFolders.size() +
+                ", finished=" + finished + "}";
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.model;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.media.MediaMetadata;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.SimpleTarget;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
+
+import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.LARGE_ALBUM_ART_DIMENSIONS;
+import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.MEDIUM_ALBUM_ART_DIMENSIONS;
+import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.SMALL_ALBUM_ART_DIMENSIONS;
+
+/**
+ * App-wide album art service. Art is decoded once per album at the largest size, smaller
+ * size buckets are derived from it, and every variant is kept in a memory cache sized after the
+ * device memory class.
+ */
+@Singleton
+public class AlbumArtCache {
+
+    private static final String TAG = LogHelper.makeLogTag(AlbumArtCache.class);
+
+    public static final String AUTHORITY = "com.misterpereira.android.kiteplayer.albumart";
+
+    public static final int BUCKET_SMALL = 0;
+    public static final int BUCKET_MEDIUM = 1;
+    public static final int BUCKET_LARGE = 2;
+
+    private static final int[][] BUCKET_DIMENSIONS = {
+            SMALL_ALBUM_ART_DIMENSIONS,
+            MEDIUM_ALBUM_ART_DIMENSIONS,
+            LARGE_ALBUM_ART_DIMENSIONS
+    };
+
+    // Fraction of the memory class dedicated to decoded album art
+    private static final int MEMORY_CLASS_FRACTION = 8;
+
+    // Tracks whose album is remembered for lookups by music id
+    private static final int MAX_ALBUM_KEYS = 2048;
+
+    private final Context mApplicationContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final LruCache<String, String> mAlbumKeys = new LruCache<>(MAX_ALBUM_KEYS);
+
+    @Inject
+    public AlbumArtCache(Application application) {
+
+        mApplicationContext = application.getApplicationContext();
+
+        ActivityManager activityManager =
+                (ActivityManager) mApplicationContext.getSystemService(Context.ACTIVITY_SERVICE);
+
+        int cacheSizeInBytes =
+                activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+
+        mMemoryCache = new LruCache<String, Bitmap>(cacheSizeInBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        LogHelper.d(TAG, "AlbumArtCache - Memory cache size set to ", cacheSizeInBytes, " bytes");
+    }
+
+    /**
+     * Returns the album art of the given track at the requested size bucket. Emits on a
+     * background thread and completes without emitting if the track has no album art.
+     */
+    public Observable<Bitmap> getAlbumArt(@NonNull MediaMetadata mm, int bucket) {
+
+        String albumKey = getAlbumKey(mm);
+
+        String musicId = mm.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+        if (musicId != null) {
+            mAlbumKeys.put(musicId, albumKey);
+        }
+
+        Bitmap cached = mMemoryCache.get(makeCacheKey(albumKey, bucket));
+        if (cached != null) {
+            return Observable.just(cached);
+        }
+
+        return decodeLargest(mm, albumKey)
+                .map(largest -> getVariant(albumKey, largest, bucket));
+    }
+
+    /**
+     * Returns the album art of the given track at the requested size bucket only if it is
+     * already decoded.
+     */
+    @Nullable
+    public Bitmap peekAlbumArt(@NonNull MediaMetadata mm, int bucket) {
+        return mMemoryCache.get(makeCacheKey(getAlbumKey(mm), bucket));
+    }
+
+    /**
+     * Same as {@link #peekAlbumArt(MediaMetadata, int)} for a track whose album art was
+     * requested before, without needing its metadata.
+     */
+    @Nullable
+    public Bitmap peekAlbumArt(@NonNull String musicId, int bucket) {
+        String albumKey = mAlbumKeys.get(musicId);
+        return albumKey != null ? mMemoryCache.get(makeCacheKey(albumKey, bucket)) : null;
+    }
+
+    public void clear() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * Uri served by {@link AlbumArtProvider} for the album art of the given track. Sessions
+     * publish these instead of bitmaps so art doesn't get copied over binder.
+     */
+    public static Uri getAlbumArtUri(@NonNull String musicId, int bucket) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .appendPath(Integer.toString(bucket))
+                .appendPath(musicId)
+                .build();
+    }
+
+    /**
+     * Uri under which every album art Uri is, for granting access to all of them at once.
+     */
+    public static Uri getAlbumArtRootUri() {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .build();
+    }
+
+    /**
+     * @return the music id referenced by an album art Uri, or null if the Uri is not valid
+     */
+    @Nullable
+    public static String getMusicIdFromUri(@NonNull Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return AUTHORITY.equals(uri.getAuthority()) && segments.size() == 2 ?
+                segments.get(1) : null;
+    }
+
+    /**
+     * @return the size bucket referenced by an album art Uri, or -1 if the Uri is not valid
+     */
+    public static int getBucketFromUri(@NonNull Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (!AUTHORITY.equals(uri.getAuthority()) || segments.size() != 2) {
+            return -1;
+        }
+        try {
+            int bucket = Integer.parseInt(segments.get(0));
+            return bucket >= 0 && bucket < BUCKET_DIMENSIONS.length ? bucket : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Observable<Bitmap> decodeLargest(MediaMetadata mm, String albumKey) {
+
+        int[] dimensions = BUCKET_DIMENSIONS[BUCKET_LARGE];
+
+        return Observable
+                .<Bitmap>create(subscriber -> {
+
+                    final SimpleTarget<Bitmap> target =
+                            new SimpleTarget<Bitmap>(dimensions[0], dimensions[1]) {
+
+                        @Override
+                        public void onResourceReady(Bitmap resource,
+                                                    GlideAnimation<? super Bitmap> glideAnimation) {
+                            if (!subscriber.isUnsubscribed()) {
+                                subscriber.onNext(resource);
+                                subscriber.onCompleted();
+                            }
+                        }
+
+                        @Override
+                        public void onLoadFailed(Exception e, Drawable errorDrawable) {
+                            LogHelper.w(TAG, e, "decodeLargest - No album art for key=", albumKey);
+                            subscriber.onCompleted();
+                        }
+                    };
+
+                    // Only abort requests that haven't delivered yet, a delivered bitmap
+                    // is owned by the memory cache
+                    subscriber.add(Subscriptions.create(() -> mMainHandler.post(() -> {
+                        if (target.getRequest() != null && !target.getRequest().isComplete()) {
+                            Glide.clear(target);
+                        }
+                    })));
+
+                    Glide
+                            .with(mApplicationContext)
+                            .load(mm)
+                            .asBitmap()
+                            .diskCacheStrategy(DiskCacheStrategy.ALL)
+                            .into(target);
+                })
+                // Glide requests must be started from the main thread but are decoded on
+                // Glide's own pool
+                .subscribeOn(AndroidSchedulers.mainThread())
+                .observeOn(Schedulers.computation())
+                .doOnNext(largest ->
+                        mMemoryCache.put(makeCacheKey(albumKey, BUCKET_LARGE), largest));
+    }
+
+    private Bitmap getVariant(String albumKey, Bitmap largest, int bucket) {
+
+        String cacheKey = makeCacheKey(albumKey, bucket);
+
+        Bitmap variant = mMemoryCache.get(cacheKey);
+
+        if (variant == null) {
+            variant = scaleToFit(largest, BUCKET_DIMENSIONS[bucket][0], BUCKET_DIMENSIONS[bucket][1]);
+            mMemoryCache.put(cacheKey, variant);
+        }
+
+        return variant;
+    }
+
+    /**
+     * Scales the bitmap down to fit the given bounds, drawing into a bitmap taken from Glide's
+     * pool whenever one of the right size is available.
+     */
+    @NonNull
+    private Bitmap scaleToFit(@NonNull Bitmap bitmap, int maxWidth, int maxHeight) {
+
+        float scale = Math.min(
+                (float) maxWidth / bitmap.getWidth(),
+                (float) maxHeight / bitmap.getHeight());
+
+        if (scale >= 1f) {
+            return bitmap;
+        }
+
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+
+        BitmapPool pool = Glide.get(mApplicationContext).getBitmapPool();
+
+        Bitmap scaled = pool.get(width, height, config);
+        if (scaled == null) {
+            scaled = Bitmap.createBitmap(width, height, config);
+        }
+
+        new Canvas(scaled).drawBitmap(bitmap, null, new RectF(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+
+        return scaled;
+    }
+
+    private static String getAlbumKey(MediaMetadata mm) {
+        String albumKey = new AlbumArtLoader.Key(mm).toString();
+
+        // Untagged songs don't share an album
+        return albumKey.isEmpty() ?
+                "#" + mm.getString(MediaMetadata.METADATA_KEY_MEDIA_ID) : albumKey;
+    }
+
+    private static String makeCacheKey(String albumKey, int bucket) {
+        return bucket + ":" + albumKey;
+    }
+}
@@ -19,14 +19,15 @@ import com.bumptech.glide.load.model.ModelLoaderFactory;
 import com.bumptech.glide.load.model.stream.StreamModelLoader;
 import com.misterpereira.android.kiteplayer.KiteApplication;
 import com.misterpereira.android.kiteplayer.dropbox.DropboxSyncService;
+import com.misterpereira.android.kiteplayer.utils.CloseableHelper;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
 
@@ -49,47 +50,61 @@ public class AlbumArtLoader implements StreamModelLoader<MediaMetadata> {
 
         return new DataFetcher<InputStream>() {
 
-            private Subscription subscription;
+            private final CountDownLatch latch = new CountDownLatch(1);
+            private final AtomicReference<InputStream> stream = new AtomicReference<>();
+            private volatile Subscription subscription;
+            private volatile boolean cancelled;
 
             @Override
             public InputStream loadData(Priority priority) throws Exception {
-                final ByteArrayOutputStream os = new ByteArrayOutputStream();
 
                 LogHelper.d(TAG,
                         "getResourceFetcher - Starting async data load for album=",
                         mm.getString(MediaMetadata.METADATA_KEY_ALBUM),
                         " with dimensions (", width, "x", height, ")");
 
-                mSyncService
+                subscription = mSyncService
                         .getAlbumArt(mm)
-                        .single()
-                        .subscribeOn(Schedulers.immediate())
-                        .subscribe(byteArray -> {
-                            try {
-                                os.write(byteArray);
-                            } catch (IOException e) {
-                                // do nothing, output stream will be empty;
-                                LogHelper.w(TAG, e,
-                                        "getResourceFetcher - Exception while reading",
-                                        " image byte array for album=",
-                                        mm.getString(MediaMetadata.METADATA_KEY_ALBUM));
+                        .subscribeOn(Schedulers.io())
+                        .subscribe(inputStream -> {
+                            if (cancelled || !stream.compareAndSet(null, inputStream)) {
+                                CloseableHelper.closeQuietly(inputStream);
                             }
                         }, error -> {
                             LogHelper.w(TAG, error, "getResourceFetcher - Finished with error");
-                            os.reset();
-                        });
+                            latch.countDown();
+                        }, latch::countDown);
+
+                if (cancelled) {
+                    subscription.unsubscribe();
+                }
+
+                latch.await();
+
+                if (cancelled) {
+                    CloseableHelper.closeQuietly(stream.getAndSet(null));
+                    throw new IOException("Album art load cancelled for album=" +
+                            mm.getString(MediaMetadata.METADATA_KEY_ALBUM));
+                }
+
+                InputStream inputStream = stream.get();
+
+                if (inputStream == null) {
+                    throw new IOException("No album art for album=" +
+                            mm.getString(MediaMetadata.METADATA_KEY_ALBUM));
+                }
 
                 LogHelper.d(TAG,
                         "getResourceFetcher - Finished async data load for album=",
                         mm.getString(MediaMetadata.METADATA_KEY_ALBUM),
-                        " with dimensions (", width, "x", height, "). Total bytes returned: ",
-                        os.size());
+                        " with dimensions (", width, "x", height, ")");
 
-                return new ByteArrayInputStream(os.toByteArray());
+                return inputStream;
             }
 
             @Override
             public void cleanup() {
+                CloseableHelper.closeQuietly(stream.getAndSet(null));
                 subscription = null;
             }
 
@@ -100,10 +115,14 @@ public class AlbumArtLoader implements StreamModelLoader<MediaMetadata> {
 
             @Override
             public void cancel() {
-                if (subscription != null && !subscription.isUnsubscribed()) {
-                    subscription.unsubscribe();
+                cancelled = true;
+
+                Subscription current = subscription;
+                if (current != null && !current.isUnsubscribed()) {
+                    current.unsubscribe();
                 }
 
+                latch.countDown();
             }
         };
 
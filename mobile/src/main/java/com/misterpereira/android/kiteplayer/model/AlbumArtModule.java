@@ -13,7 +13,10 @@ import android.media.MediaMetadata;
 
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
 import com.bumptech.glide.load.engine.cache.ExternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.load.engine.cache.MemorySizeCalculator;
 import com.bumptech.glide.module.GlideModule;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.PrefUtils;
@@ -27,15 +30,23 @@ public class AlbumArtModule implements GlideModule {
     @Override
     public void applyOptions(Context context, GlideBuilder builder) {
 
-        // Allocates 10% of user defined cache size to album art
+        // Allocates 5% of user defined cache size to decoded album art, original images
+        // are kept in the album art store
         int albumArtCacheSizeInMBs =
-                Math.round(Integer.parseInt(PrefUtils.getCacheSize(context)) * 0.1f);
+                Math.max(1, Math.round(Integer.parseInt(PrefUtils.getCacheSize(context)) * 0.05f));
 
         builder.setDiskCache(
                 new ExternalCacheDiskCacheFactory(
                         context,
                         "albumartcache",
                         albumArtCacheSizeInMBs * 1024 * 1024));
+
+        // Decoded album art is held by AlbumArtCache, so Glide's own memory cache only needs
+        // to cover what is being decoded. The bitmap pool keeps its default size, it backs the
+        // variants derived by AlbumArtCache.
+        MemorySizeCalculator calculator = new MemorySizeCalculator(context);
+        builder.setMemoryCache(new LruResourceCache(calculator.getMemoryCacheSize() / 2));
+        builder.setBitmapPool(new LruBitmapPool(calculator.getBitmapPoolSize()));
     }
 
     @Override
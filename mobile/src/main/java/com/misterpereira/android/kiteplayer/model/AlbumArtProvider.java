@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.model;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import com.misterpereira.android.kiteplayer.KiteApplication;
+import com.misterpereira.android.kiteplayer.R;
+import com.misterpereira.android.kiteplayer.utils.CloseableHelper;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * Read-only provider serving the album art Uris built by
+ * {@link AlbumArtCache#getAlbumArtUri(String, int)}. The original image is streamed as stored,
+ * whatever the size bucket, and readers decode it at the size they need.
+ * <p>
+ * Not exported: browsers are granted read access to the authority when they connect.
+ */
+public class AlbumArtProvider extends ContentProvider {
+
+    private static final String TAG = LogHelper.makeLogTag(AlbumArtProvider.class);
+
+    // Originals are stored in whatever format they were embedded with
+    private static final String MIME_TYPE = "image/*";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    @Override
+    public boolean onCreate() {
+        // Dependencies are resolved lazily since providers are created before the application
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            // Art is decoded with a request started on the main thread
+            throw new FileNotFoundException("Album art can't be opened from the main thread");
+        }
+
+        String musicId = AlbumArtCache.getMusicIdFromUri(uri);
+        int bucket = AlbumArtCache.getBucketFromUri(uri);
+
+        if (musicId == null || bucket < 0) {
+            throw new FileNotFoundException("Invalid album art uri " + uri);
+        }
+
+        InputStream albumArt = ((KiteApplication) getContext().getApplicationContext())
+                .getComponent()
+                .musicProvider()
+                .getAlbumArt(musicId)
+                .onErrorResumeNext(Observable.empty())
+                .toBlocking()
+                .firstOrDefault(null);
+
+        if (albumArt == null) {
+            albumArt = getContext().getResources().openRawResource(R.drawable.ic_album_art);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "openFile - Failed creating pipe for ", uri);
+            CloseableHelper.closeQuietly(albumArt);
+            throw new FileNotFoundException(e.getMessage());
+        }
+
+        // The worker holds an io thread until unsubscribed
+        Scheduler.Worker worker = Schedulers.io().createWorker();
+        final InputStream in = albumArt;
+        worker.schedule(() -> {
+            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                // Also when the reader closes its end early
+                LogHelper.w(TAG, e, "openFile - Failed writing album art for ", uri);
+            } finally {
+                CloseableHelper.closeQuietly(in);
+                CloseableHelper.closeQuietly(os);
+                worker.unsubscribe();
+            }
+        });
+
+        return pipe[0];
+    }
+
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Album art is read-only");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read-only");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, ContentValues values, String selection,
+                      String[] selectionArgs) {
+        throw new UnsupportedOperationException("Album art is read-only");
+    }
+}
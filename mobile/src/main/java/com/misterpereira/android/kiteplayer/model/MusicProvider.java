@@ -25,27 +25,30 @@ package com.misterpereira.android.kiteplayer.model;
 import android.app.Application;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.media.MediaMetadata;
-import android.media.session.MediaSession;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.misterpereira.android.kiteplayer.PlayingQueueStore;
+import com.misterpereira.android.kiteplayer.R;
 import com.misterpereira.android.kiteplayer.VoiceSearchParams;
+import com.misterpereira.android.kiteplayer.database.DropboxDBCategory;
+import com.misterpereira.android.kiteplayer.database.DropboxDBCategoryDAO;
 import com.misterpereira.android.kiteplayer.database.DropboxDBEntry;
 import com.misterpereira.android.kiteplayer.database.DropboxDBEntryDAO;
 import com.misterpereira.android.kiteplayer.database.DropboxDBSong;
 import com.misterpereira.android.kiteplayer.database.DropboxDBSongDAO;
 import com.misterpereira.android.kiteplayer.dropbox.DropboxSyncService;
+import com.misterpereira.android.kiteplayer.dropbox.SyncEvent;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
 import com.misterpereira.android.kiteplayer.utils.NetworkHelper;
+import com.misterpereira.android.kiteplayer.utils.PrefUtils;
 
 import java.io.File;
-import java.net.URL;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.io.InputStream;
+import java.util.BitSet;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -53,9 +56,6 @@ import javax.inject.Singleton;
 import rx.Observable;
 import rx.schedulers.Schedulers;
 
-import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.LARGE_ALBUM_ART_DIMENSIONS;
-import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.SMALL_ALBUM_ART_DIMENSIONS;
-
 @Singleton
 public class MusicProvider {
 
@@ -66,13 +66,24 @@ public class MusicProvider {
     public static final String CUSTOM_METADATA_DIRECTORY = "__DIRECTORY__";
     public static final String CUSTOM_METADATA_IS_DIRECTORY = "__IS_DIRECTORY__";
     public static final String CUSTOM_METADATA_MIMETYPE = "__MIMETYPE__";
+    // ReplayGain adjustments in dB, only set for tagged songs
+    public static final String CUSTOM_METADATA_REPLAY_GAIN_TRACK = "__REPLAY_GAIN_TRACK__";
+    public static final String CUSTOM_METADATA_REPLAY_GAIN_ALBUM = "__REPLAY_GAIN_ALBUM__";
+
+    private static final int SEARCH_RESULT_LIMIT = 100;
 
 
     private final Context mApplicationContext;
 
     private final DropboxDBEntryDAO mEntryDao;
     private final DropboxDBSongDAO mSongDao;
+    private final DropboxDBCategoryDAO mCategoryDao;
     private final DropboxSyncService mDBSyncService;
+    private final AlbumArtCache mAlbumArtCache;
+    private final MusicSearchEngine mSearchEngine;
+    private final PlayingQueueStore mQueueStore;
+
+    private static volatile Bitmap sFolderIcon;
 
     private volatile State mCurrentState = State.NON_INITIALIZED;
 
@@ -80,13 +91,21 @@ public class MusicProvider {
     public MusicProvider(Application application,
                          DropboxDBEntryDAO entryDao,
                          DropboxDBSongDAO songDao,
-                         DropboxSyncService syncService) {
+                         DropboxDBCategoryDAO categoryDao,
+                         DropboxSyncService syncService,
+                         AlbumArtCache albumArtCache,
+                         MusicSearchEngine searchEngine,
+                         PlayingQueueStore queueStore) {
 
         this.mApplicationContext = application.getApplicationContext();
 
         this.mEntryDao = entryDao;
         this.mSongDao = songDao;
+        this.mCategoryDao = categoryDao;
         this.mDBSyncService = syncService;
+        this.mAlbumArtCache = albumArtCache;
+        this.mSearchEngine = searchEngine;
+        this.mQueueStore = queueStore;
     }
 
     enum State {
@@ -104,8 +123,7 @@ public class MusicProvider {
                         .map(DropboxDBEntry::getId);
 
         Observable<Long> newEntries =
-                mDBSyncService
-                        .synchronizeEntryDB();
+                synchronizeEntryDB();
 
         return existingEntries
                 .isEmpty()
@@ -130,13 +148,31 @@ public class MusicProvider {
                     }
                 })
                 .ignoreElements()
-                .doOnSubscribe(() -> mCurrentState = State.INITIALIZING)
+                .doOnSubscribe(() -> {
+                    mCurrentState = State.INITIALIZING;
+                    // Decode the shared folder icon before the first listing needs it
+                    getFolderIcon(mApplicationContext);
+                })
                 .doOnError((error) -> mCurrentState = State.NON_INITIALIZED)
                 .doOnCompleted(() -> mCurrentState = State.INITIALIZED);
     }
 
     public Observable refresh() {
-        return mDBSyncService.synchronizeEntryDB().ignoreElements();
+        return synchronizeEntryDB().ignoreElements();
+    }
+
+    /**
+     * Progress of every library synchronization, the ones {@link #init()} starts in the
+     * background included.
+     */
+    public Observable<SyncEvent> getSyncEvents() {
+        return mDBSyncService.getSyncEvents();
+    }
+
+    private Observable<Long> synchronizeEntryDB() {
+        return mDBSyncService
+                .synchronizeEntryDB()
+                .doOnCompleted(mSearchEngine::invalidate);
     }
 
     public Observable<MediaMetadata> getMusic(String musicId) {
@@ -152,64 +188,94 @@ public class MusicProvider {
                 .flatMap(this::toMediaMetadata);
     }
 
-    public void preloadPlaylist(List<MediaSession.QueueItem> queue) {
+    /**
+     * @param musicIds music ids of the queue, in play order
+     */
+    public void preloadPlaylist(long[] musicIds) {
 
         mDBSyncService.downloadSongQueue(
                 Observable
-                        .from(queue)
-                        .flatMap(queueItem -> {
-                            String musicId =
-                                    MediaIDHelper.extractMusicIDFromMediaID(
-                                            queueItem.getDescription().getMediaId());
-                            return getEntryWithSong(musicId);
-                        }));
+                        .range(0, musicIds.length)
+                        .flatMap(i -> getEntryWithSong(Long.toString(musicIds[i]))));
     }
 
+    /**
+     * Emits the track metadata as soon as its tags are available, followed by a second emission
+     * carrying the album art icon once it has been decoded. Full size album art is only
+     * referenced by Uri.
+     */
     public Observable<MediaMetadata> getMusicMetadata(String musicId) {
 
-        return mDBSyncService
-                .fillSongMetadata(getEntryWithSong(musicId))
-                .flatMap(this::toMediaMetadata)
-                .map(mm -> {
-
-                    Bitmap bitmap = null;
-                    Bitmap icon = null;
-
-                    try {
-                        bitmap = Glide
-                                .with(mApplicationContext)
-                                .load(mm)
-                                .asBitmap()
-                                .diskCacheStrategy(DiskCacheStrategy.ALL)
-                                .into(LARGE_ALBUM_ART_DIMENSIONS[0], LARGE_ALBUM_ART_DIMENSIONS[1])
-                                .get();
-
-                        icon = Glide
-                                .with(mApplicationContext)
-                                .load(mm)
-                                .asBitmap()
-                                .diskCacheStrategy(DiskCacheStrategy.ALL)
-                                .into(SMALL_ALBUM_ART_DIMENSIONS[0], SMALL_ALBUM_ART_DIMENSIONS[1])
-                                .get();
-
-                    } catch (InterruptedException | ExecutionException e) {
-                        LogHelper.w(TAG, e, "getMusicMetadata - Failed loading album art");
-                    }
+        return getMusicTags(musicId)
+                .flatMap(mm -> mAlbumArtCache
+                        .getAlbumArt(mm, AlbumArtCache.BUCKET_SMALL)
+                        .map(icon -> new MediaMetadata.Builder(mm)
+
+                                // set small version of the album art in the DISPLAY_ICON. This is used on
+                                // the MediaDescription and thus it should be small to be serialized if
+                                // necessary.
+                                .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, icon)
+
+                                .build())
+                        .startWith(mm));
+
+    }
+
+    /**
+     * Emits the track metadata once its tags have been read, without any album art.
+     */
+    public Observable<MediaMetadata> getMusicTags(String musicId) {
 
-                    return new MediaMetadata.Builder(mm)
+        return getEntryWithSong(musicId)
+                .flatMap(entry -> {
+
+                    boolean wasIndexed = entry.isDir() || entry.getOrCreateSong().hasLatestMetadata();
+
+                    return mDBSyncService
+                            .fillSongMetadata(Observable.just(entry))
+                            .doOnNext(filled -> {
+                                // Newly indexed tags change search results
+                                if (!wasIndexed && filled.getSong().hasLatestMetadata()) {
+                                    mSearchEngine.invalidate();
+                                }
+                            });
+                })
+                .flatMap(this::toMediaMetadata);
+    }
 
-                            // set high resolution bitmap in METADATA_KEY_ALBUM_ART. This is used, for
-                            // example, on the lockscreen background when the media session is active.
-                            .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, bitmap)
+    /**
+     * Opens the original album art image of the given track, completes without emitting if it
+     * has none.
+     */
+    public Observable<InputStream> getAlbumArt(String musicId) {
 
-                                    // set small version of the album art in the DISPLAY_ICON. This is used on
-                                    // the MediaDescription and thus it should be small to be serialized if
-                                    // necessary..
-                            .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, icon)
+        return getEntryWithSong(musicId)
+                .flatMap(this::toMediaMetadata)
+                .flatMap(mDBSyncService::getAlbumArt);
+    }
 
-                            .build();
-                });
+    /**
+     * Opens the song's data through the song cache, downloading it once for every reader.
+     * Completes without emitting if the song can't be streamed.
+     */
+    public Observable<DropboxSyncService.SongStream> openSongStream(String musicId) {
 
+        return getEntryWithSong(musicId)
+                .map(mDBSyncService::openSongStream)
+                .filter(stream -> stream != null);
+    }
+
+    /**
+     * Starts downloading the song into the song cache in the background, without waiting for
+     * any of it.
+     */
+    public void cacheSong(String musicId) {
+
+        getEntryWithSong(musicId)
+                .subscribeOn(Schedulers.io())
+                .subscribe(mDBSyncService::cacheSong,
+                        error -> LogHelper.w(TAG, error, "cacheSong - Unable to find musicId=",
+                                musicId));
     }
 
     /**
@@ -218,8 +284,71 @@ public class MusicProvider {
      */
     public Observable<MediaMetadata> getMusicByFolder(@NonNull String parentFolder) {
 
-        return completeWithSong(mEntryDao
-                .findByParentDir(parentFolder))
+        return Observable
+                .defer(() -> {
+                    BitSet offlineIds = getOfflineSongIds();
+                    return mEntryDao
+                            .findByParentDir(parentFolder)
+                            .filter(entry -> entry.isDir() || isAvailable(offlineIds, entry.getId()));
+                })
+                .map(this::completeWithSong)
+                .flatMap(this::toMediaMetadata);
+    }
+
+    /**
+     * Get the artists, albums or genres in the library, as browsable metadata whose media id
+     * is the hierarchy of the category
+     */
+    public Observable<MediaMetadata> getCategories(@NonNull String categoryType) {
+
+        Observable<DropboxDBCategory> categories;
+
+        switch (categoryType) {
+            case MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST:
+                categories = mCategoryDao.findAllArtists();
+                break;
+            case MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM:
+                categories = mCategoryDao.findAllAlbums();
+                break;
+            case MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE:
+                categories = mCategoryDao.findAllGenres();
+                break;
+            default:
+                return Observable.error(
+                        new IllegalArgumentException("Unknown category type " + categoryType));
+        }
+
+        return categories.map(category ->
+                buildMetadataFromDBCategory(mApplicationContext, categoryType, category));
+    }
+
+    /**
+     * Get the songs of a single artist, album or genre
+     */
+    public Observable<MediaMetadata> getMusicByCategory(@NonNull String categoryType,
+                                                        @NonNull String categoryValue) {
+
+        Observable<DropboxDBSong> songs;
+
+        switch (categoryType) {
+            case MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST:
+                songs = mSongDao.findByArtist(categoryValue);
+                break;
+            case MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM:
+                songs = mSongDao.findByAlbum(categoryValue);
+                break;
+            case MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE:
+                songs = mSongDao.findByGenre(categoryValue);
+                break;
+            default:
+                return Observable.error(
+                        new IllegalArgumentException("Unknown category type " + categoryType));
+        }
+
+        return wrapInEntry(Observable.defer(() -> {
+                    BitSet offlineIds = getOfflineSongIds();
+                    return songs.filter(song -> isAvailable(offlineIds, song.getEntryId()));
+                }))
                 .flatMap(this::toMediaMetadata);
     }
 
@@ -229,50 +358,45 @@ public class MusicProvider {
                 .flatMap(this::toMediaMetadata);
     }
 
+    /**
+     * Ranked search over song tags and file names, best match first
+     */
     public Observable<MediaMetadata> searchMusicByVoiceParams(VoiceSearchParams params) {
 
         LogHelper.d(TAG,"searchMusicByVoiceParams - Search by params: ",params.toString());
 
-        Observable<MediaMetadata> songQueryResults;
-        Observable<MediaMetadata> entryQueryResults;
-
-        if (params.isAny) {
-            songQueryResults = Observable.empty();
-        } else if (params.isUnstructured) {
-            songQueryResults =
-                    wrapInEntry(mSongDao.queryByKeyword(params.query))
-                            .flatMap(this::toMediaMetadata);
-        } else {
-            songQueryResults = wrapInEntry(
-                    mSongDao.query(
-                            params.isGenreFocus?params.genre:null,
-                            params.isArtistFocus?params.artist:null,
-                            params.isAlbumFocus?params.album:null,
-                            params.isSongFocus?params.song:null))
-                    .flatMap(this::toMediaMetadata);
-        }
-
-        entryQueryResults =
-                mEntryDao
-                        .queryByFilenameKeyword(params.query)
-                        .map(this::completeWithSong)
-                        .flatMap(this::toMediaMetadata);
-
-        return songQueryResults
-                .concatWith(entryQueryResults)
-                .distinct()
+        return Observable
+                .defer(() -> {
+                    BitSet offlineIds = getOfflineSongIds();
+                    return Observable
+                            .from(mSearchEngine.search(params, SEARCH_RESULT_LIMIT))
+                            .filter(entryId -> isAvailable(offlineIds, entryId));
+                })
+                .map(mEntryDao::findById)
+                // Entries deleted since the results were cached
+                .filter(entry -> entry != null)
+                .map(this::completeWithSong)
+                .concatMap(this::toMediaMetadata)
                 .onBackpressureBuffer();
     }
 
+    /**
+     * Looks the entry up once subscribed, on the subscriber's scheduler.
+     */
     private Observable<DropboxDBEntry> getEntryWithSong(String musicId) {
 
         return completeWithSong(Observable
-                .just(mEntryDao.findById(Long.valueOf(musicId))));
+                .defer(() -> Observable.just(mEntryDao.findById(Long.valueOf(musicId)))));
 
     }
 
+    /**
+     * Deletes the library, and the saved queue along with it since its ids would belong to the
+     * previous library.
+     */
     public void deleteAll() {
         mEntryDao.deleteAll();
+        mQueueStore.clear();
         mCurrentState = State.NON_INITIALIZED;
     }
 
@@ -280,12 +404,30 @@ public class MusicProvider {
         return mCurrentState == State.INITIALIZED;
     }
 
+    /**
+     * In offline mode, songs are only listed if they're cached. Listings take a snapshot of
+     * the cached ids once and check each song against it, instead of looking up its file.
+     *
+     * @return ids of the cached songs in offline mode, null otherwise
+     */
+    @Nullable
+    private BitSet getOfflineSongIds() {
+        return PrefUtils.isOfflineModeEnabled(mApplicationContext) ?
+                mDBSyncService.getCachedSongIds() : null;
+    }
+
+    private static boolean isAvailable(@Nullable BitSet offlineIds, long entryId) {
+        return offlineIds == null ||
+                (entryId >= 0 && entryId <= Integer.MAX_VALUE && offlineIds.get((int) entryId));
+    }
+
     private Observable<MediaMetadata> toMediaMetadata(@NonNull DropboxDBEntry entry) {
+        // The cache index is enough here, playback checks the file itself before using it
         return Observable.just(
                 buildMetadataFromDBEntry(
                         mApplicationContext,
                         entry,
-                        mDBSyncService.getCachedSongFile(entry),
+                        mDBSyncService.peekCachedSongFile(entry),
                         NetworkHelper.canStream(mApplicationContext)));
     }
 
@@ -353,52 +495,94 @@ public class MusicProvider {
                     .putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, song.getTotalTracks())
                     .putString(MediaMetadata.METADATA_KEY_DISPLAY_TITLE, displayTitle)
                     .putString(MediaMetadata.METADATA_KEY_DISPLAY_SUBTITLE, displaySubtitle)
-                    .putString(CUSTOM_METADATA_MIMETYPE, entry.getMimeType());
+                    .putString(CUSTOM_METADATA_MIMETYPE, entry.getMimeType())
+
+                    // Art is published by Uri, consumers decode it at the size they need
+                    .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI,
+                            AlbumArtCache.getAlbumArtUri(
+                                    Long.toString(entry.getId()),
+                                    AlbumArtCache.BUCKET_LARGE).toString())
+                    .putString(MediaMetadata.METADATA_KEY_DISPLAY_ICON_URI,
+                            AlbumArtCache.getAlbumArtUri(
+                                    Long.toString(entry.getId()),
+                                    AlbumArtCache.BUCKET_SMALL).toString());
+
+            if (song.getReplayGainTrack() != null) {
+                builder.putString(CUSTOM_METADATA_REPLAY_GAIN_TRACK,
+                        Float.toString(song.getReplayGainTrack()));
+            }
+            if (song.getReplayGainAlbum() != null) {
+                builder.putString(CUSTOM_METADATA_REPLAY_GAIN_ALBUM,
+                        Float.toString(song.getReplayGainAlbum()));
+            }
 
         } else if (entry.isDir()){
 
-            try {
+            builder
+                    .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, getFolderIcon(ctx));
 
-                Bitmap icon = Glide
-                        .with(ctx.getApplicationContext())
-                        .load("android.resource://" + ctx.getPackageName() +
-                                "/drawable/ic_folder_grey_52dp")
-                        .asBitmap()
-                        .diskCacheStrategy(DiskCacheStrategy.ALL)
-                        .into(SMALL_ALBUM_ART_DIMENSIONS[0], SMALL_ALBUM_ART_DIMENSIONS[1])
-                        .get();
+        }
 
-                builder
-                        .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, icon);
+        return builder.build();
+    }
 
-            } catch (InterruptedException | ExecutionException e) {
-                LogHelper.w(TAG,"Failed to load folder icon");
-            }
+    public static MediaMetadata buildMetadataFromDBCategory(Context ctx, String categoryType,
+                                                            DropboxDBCategory category) {
+
+        return new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID,
+                        MediaIDHelper.createMediaID(null, categoryType, category.getName()))
+                .putString(MediaMetadata.METADATA_KEY_TITLE, category.getName())
+                .putString(MediaMetadata.METADATA_KEY_DISPLAY_TITLE, category.getName())
+                .putString(MediaMetadata.METADATA_KEY_DISPLAY_SUBTITLE,
+                        ctx.getResources().getQuantityString(
+                                R.plurals.browse_track_count,
+                                category.getTrackCount(), category.getTrackCount()))
+                .putLong(MediaMetadata.METADATA_KEY_NUM_TRACKS, category.getTrackCount())
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, category.getTotalDuration())
+                .build();
+    }
 
+    /**
+     * The folder icon is the same for every directory, so it is decoded once and shared by all
+     * listings.
+     */
+    private static Bitmap getFolderIcon(Context ctx) {
+
+        Bitmap icon = sFolderIcon;
+
+        if (icon == null) {
+            synchronized (MusicProvider.class) {
+                icon = sFolderIcon;
+                if (icon == null) {
+                    icon = BitmapFactory.decodeResource(
+                            ctx.getApplicationContext().getResources(),
+                            R.drawable.ic_folder_grey_52dp);
+                    sFolderIcon = icon;
+                }
+            }
         }
 
-        return builder.build();
+        return icon;
     }
 
     public static boolean willBePlayable(Context context, MediaMetadata mm) {
+        return willBePlayable(mm, NetworkHelper.canStream(context));
+    }
 
-        boolean hasSource;
-        boolean isSourceRemote;
-        boolean canStream;
-
-        hasSource = mm.getString(CUSTOM_METADATA_TRACK_SOURCE) != null;
+    /**
+     * @param canStream result of {@link NetworkHelper#canStream(Context)}, so callers checking
+     *                  many tracks only query the network state once
+     */
+    public static boolean willBePlayable(MediaMetadata mm, boolean canStream) {
 
-        try {
-            new URL(mm.getString(CUSTOM_METADATA_TRACK_SOURCE));
-            isSourceRemote = true;
-        } catch (Exception e) {
-            isSourceRemote = false;
+        if (canStream) {
+            return true;
         }
 
-        canStream = NetworkHelper.canStream(context);
-
-        return (hasSource && !isSourceRemote) || canStream;
-
+        // Cached songs are sourced from an absolute file path, streams from an URL
+        String source = mm.getString(CUSTOM_METADATA_TRACK_SOURCE);
+        return source != null && source.startsWith(File.separator);
     }
 
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.misterpereira.android.kiteplayer.VoiceSearchParams;
+import com.misterpereira.android.kiteplayer.database.DropboxDBContract.Song;
+import com.misterpereira.android.kiteplayer.database.DropboxDBSearchDAO;
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Turns search parameters into prefix matching FTS4 expressions and keeps the ranked results
+ * of recent searches in memory, so repeated and incremental searches don't hit the database.
+ * The cached results must be invalidated whenever the indexed data changes.
+ */
+@Singleton
+public class MusicSearchEngine {
+
+    private static final String TAG = LogHelper.makeLogTag(MusicSearchEngine.class);
+
+    private static final int RESULT_CACHE_SIZE = 32;
+
+    private static final String TOKEN_SEPARATOR_REGEX = "[^\\p{L}\\p{N}]+";
+
+    private final DropboxDBSearchDAO mSearchDao;
+    private final LruCache<String, List<Long>> mResultCache = new LruCache<>(RESULT_CACHE_SIZE);
+
+    // Bumped on every invalidation so searches racing with it don't cache stale results
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    @Inject
+    public MusicSearchEngine(DropboxDBSearchDAO searchDao) {
+        this.mSearchDao = searchDao;
+    }
+
+    /**
+     * @return ids of the song entries matching the parameters, best match first
+     */
+    @NonNull
+    public List<Long> search(@NonNull VoiceSearchParams params, int limit) {
+
+        if (params.isAny) {
+            return Collections.emptyList();
+        }
+
+        String entryMatch = toMatchExpression(null, params.query);
+        String songMatch;
+
+        if (params.isUnstructured) {
+            songMatch = entryMatch;
+        } else {
+            songMatch = joinMatchExpressions(
+                    params.isGenreFocus ? toMatchExpression(Song.COLUMN_NAME_GENRE, params.genre) : null,
+                    params.isArtistFocus ? toMatchExpression(Song.COLUMN_NAME_ARTIST, params.artist) : null,
+                    params.isAlbumFocus ? toMatchExpression(Song.COLUMN_NAME_ALBUM, params.album) : null,
+                    params.isSongFocus ? toMatchExpression(Song.COLUMN_NAME_TITLE, params.song) : null);
+        }
+
+        String cacheKey = songMatch + "\n" + entryMatch + "\n" + limit;
+
+        List<Long> results = mResultCache.get(cacheKey);
+        if (results != null) {
+            LogHelper.d(TAG, "search - Cache hit for ", params);
+            return results;
+        }
+
+        int generation = mGeneration.get();
+
+        results = Collections.unmodifiableList(mSearchDao.search(songMatch, entryMatch, limit));
+
+        if (generation == mGeneration.get()) {
+            mResultCache.put(cacheKey, results);
+        }
+
+        return results;
+    }
+
+    /**
+     * Drops every cached result. Must be called after the entry or song tables change.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+        mResultCache.evictAll();
+    }
+
+    /**
+     * Builds an expression matching every token of the text as a prefix, optionally restricted
+     * to a single column. Tokens are reduced to letters and digits so user input can never be
+     * parsed as FTS4 syntax.
+     */
+    @Nullable
+    private static String toMatchExpression(@Nullable String column, @Nullable String text) {
+
+        if (TextUtils.isEmpty(text)) {
+            return null;
+        }
+
+        List<String> terms = new ArrayList<>();
+
+        // Lower case also keeps tokens from being read as AND, OR, NOT or NEAR operators
+        for (String token : text.toLowerCase(Locale.getDefault()).split(TOKEN_SEPARATOR_REGEX)) {
+            if (!token.isEmpty()) {
+                terms.add((column != null ? column + ":" : "") + token + "*");
+            }
+        }
+
+        return terms.isEmpty() ? null : TextUtils.join(" ", terms);
+    }
+
+    @Nullable
+    private static String joinMatchExpressions(String... expressions) {
+
+        List<String> nonEmpty = new ArrayList<>();
+        for (String expression : expressions) {
+            if (expression != null) {
+                nonEmpty.add(expression);
+            }
+        }
+
+        return nonEmpty.isEmpty() ? null : TextUtils.join(" ", nonEmpty);
+    }
+}
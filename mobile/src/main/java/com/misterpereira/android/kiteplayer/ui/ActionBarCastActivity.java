@@ -43,6 +43,7 @@ import com.github.amlcurran.showcaseview.targets.ViewTarget;
 import com.google.android.libraries.cast.companionlibrary.cast.VideoCastManager;
 import com.google.android.libraries.cast.companionlibrary.cast.callbacks.VideoCastConsumerImpl;
 import com.misterpereira.android.kiteplayer.KiteApplication;
+import com.misterpereira.android.kiteplayer.PlayingQueueStore;
 import com.misterpereira.android.kiteplayer.R;
 import com.misterpereira.android.kiteplayer.utils.DropboxHelper;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
@@ -88,6 +89,9 @@ public abstract class ActionBarCastActivity extends AppCompatActivity {
     @Inject
     DropboxAPI<AndroidAuthSession> mDBApi;
 
+    @Inject
+    PlayingQueueStore mQueueStore;
+
     private final VideoCastConsumerImpl mCastConsumer = new VideoCastConsumerImpl() {
 
         @Override
@@ -175,7 +179,7 @@ public abstract class ActionBarCastActivity extends AppCompatActivity {
         // Ensure that Google Play Service is available.
         VideoCastManager.checkGooglePlayServices(this);
 
-        mCastManager = VideoCastManager.getInstance();
+        mCastManager = ((KiteApplication) getApplication()).getCastManager();
         mCastManager.reconnectSessionIfPossible();
 
     }
@@ -339,7 +343,7 @@ public abstract class ActionBarCastActivity extends AppCompatActivity {
 
     private void populateDrawerItems() {
 
-        mDrawerMenuContents = new DrawerMenuContents(this,mDBApi);
+        mDrawerMenuContents = new DrawerMenuContents(this, mDBApi, mQueueStore);
         final int selectedPosition = mDrawerMenuContents.getPosition(this.getClass());
 
         SimpleAdapter adapter = new SimpleAdapter(this, mDrawerMenuContents.getItems(),
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.ui;
+
+import android.app.Activity;
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser;
+import android.media.session.MediaController;
+import android.media.session.PlaybackState;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.ViewGroup;
+
+import com.misterpereira.android.kiteplayer.utils.LogHelper;
+import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+
+/**
+ * Adapter of the browsed media items, with stable ids taken from the entry ids.
+ * <p>
+ * New children are compared with the ones shown on a background thread, by id, and only the
+ * rows inserted, removed or changed are notified. Playback state changes only rebind the rows
+ * of the tracks involved.
+ */
+class BrowseAdapter extends RecyclerView.Adapter<MediaItemViewHolder> {
+
+    private static final String TAG = LogHelper.makeLogTag(BrowseAdapter.class);
+
+    interface OnItemClickListener {
+        void onItemClick(MediaBrowser.MediaItem item);
+    }
+
+    private final Activity mActivity;
+    private final OnItemClickListener mListener;
+
+    private List<MediaBrowser.MediaItem> mItems = Collections.emptyList();
+    private long[] mIds = new long[0];
+
+    private Subscription mUpdateSubscription;
+
+    // Track shown as playing or paused, and how
+    private long mPlayingId = RecyclerView.NO_ID;
+    private int mPlayingState = MediaItemViewHolder.STATE_INVALID;
+
+    BrowseAdapter(@NonNull Activity activity, @NonNull OnItemClickListener listener) {
+        mActivity = activity;
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Shows the given children, notifying only the rows that differ from the ones shown.
+     */
+    void setItems(@NonNull List<MediaBrowser.MediaItem> items) {
+
+        cancelPendingUpdate();
+
+        if (mItems.isEmpty()) {
+            apply(diff(mItems, mIds, items));
+            return;
+        }
+
+        List<MediaBrowser.MediaItem> base = mItems;
+        long[] baseIds = mIds;
+
+        mUpdateSubscription = Observable
+                .defer(() -> Observable.just(diff(base, baseIds, items)))
+                .subscribeOn(Schedulers.computation())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(this::apply,
+                        error -> LogHelper.e(TAG, error, "setItems - Unable to compare items"));
+    }
+
+    void cancelPendingUpdate() {
+        if (mUpdateSubscription != null) {
+            mUpdateSubscription.unsubscribe();
+            mUpdateSubscription = null;
+        }
+    }
+
+    /**
+     * Rebinds the rows of the tracks whose playing state changed.
+     */
+    void updatePlayingItem() {
+
+        long playingId = RecyclerView.NO_ID;
+        int playingState = MediaItemViewHolder.STATE_INVALID;
+
+        MediaController controller = mActivity.getMediaController();
+        if (controller != null && controller.getMetadata() != null) {
+            playingId = parseId(controller.getMetadata().getDescription().getMediaId());
+            playingState = getPlayingState(controller.getPlaybackState());
+        }
+
+        if (playingId == mPlayingId && playingState == mPlayingState) {
+            return;
+        }
+
+        long previousId = mPlayingId;
+        mPlayingId = playingId;
+        mPlayingState = playingState;
+
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] != RecyclerView.NO_ID && (mIds[i] == previousId || mIds[i] == playingId)) {
+                notifyItemChanged(i);
+            }
+        }
+    }
+
+    @Override
+    public MediaItemViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        MediaItemViewHolder holder = MediaItemViewHolder.create(mActivity, parent);
+        holder.itemView.setOnClickListener(view -> {
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mListener.onItemClick(mItems.get(position));
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(MediaItemViewHolder holder, int position) {
+        MediaBrowser.MediaItem item = mItems.get(position);
+        holder.bind(mActivity, item.getDescription(), getItemState(item, mIds[position]));
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mIds[position];
+    }
+
+    private int getItemState(MediaBrowser.MediaItem item, long id) {
+        if (item.isPlayable()) {
+            return id != RecyclerView.NO_ID && id == mPlayingId &&
+                    mPlayingState != MediaItemViewHolder.STATE_INVALID ?
+                    mPlayingState : MediaItemViewHolder.STATE_PLAYABLE;
+        } else if (item.isBrowsable()) {
+            return MediaItemViewHolder.STATE_CLOSED_FOLDER;
+        }
+        return MediaItemViewHolder.STATE_NONE;
+    }
+
+    private static int getPlayingState(@Nullable PlaybackState pbState) {
+        if (pbState == null || pbState.getState() == PlaybackState.STATE_ERROR) {
+            return MediaItemViewHolder.STATE_NONE;
+        } else if (pbState.getState() == PlaybackState.STATE_PLAYING) {
+            return MediaItemViewHolder.STATE_PLAYING;
+        }
+        return MediaItemViewHolder.STATE_PAUSED;
+    }
+
+    private void apply(Update update) {
+        mUpdateSubscription = null;
+
+        if (update.base != mItems) {
+            // Compared with items that aren't shown anymore
+            setItems(update.items);
+            return;
+        }
+
+        mItems = update.items;
+        mIds = update.ids;
+
+        if (update.operations == null) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        for (int[] operation : update.operations) {
+            switch (operation[0]) {
+                case Update.INSERT:
+                    notifyItemRangeInserted(operation[1], operation[2]);
+                    break;
+                case Update.REMOVE:
+                    notifyItemRangeRemoved(operation[1], operation[2]);
+                    break;
+                case Update.CHANGE:
+                    notifyItemRangeChanged(operation[1], operation[2]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Finds the rows to insert, remove and change to go from the old items to the new ones.
+     * Items are matched by id. Items found in both lists in a different order can't be
+     * expressed this way, and everything is reloaded.
+     */
+    private static Update diff(List<MediaBrowser.MediaItem> oldItems, long[] oldIds,
+                               List<MediaBrowser.MediaItem> newItems) {
+
+        long[] newIds = new long[newItems.size()];
+        for (int i = 0; i < newIds.length; i++) {
+            newIds[i] = getStableId(newItems.get(i));
+        }
+
+        Update update = new Update(oldItems, newItems, newIds);
+
+        if (oldItems.isEmpty()) {
+            return update;
+        }
+
+        Set<Long> oldIdSet = toSet(oldIds);
+        Set<Long> newIdSet = toSet(newIds);
+
+        if (oldIdSet.size() != oldIds.length || newIdSet.size() != newIds.length) {
+            // Duplicated ids can't be matched
+            return update;
+        }
+
+        update.operations = new ArrayList<>();
+
+        int oldIndex = 0;
+        int newIndex = 0;
+        int position = 0;
+
+        while (oldIndex < oldIds.length || newIndex < newIds.length) {
+
+            if (oldIndex < oldIds.length && !newIdSet.contains(oldIds[oldIndex])) {
+                update.add(Update.REMOVE, position);
+                oldIndex++;
+            } else if (newIndex < newIds.length && !oldIdSet.contains(newIds[newIndex])) {
+                update.add(Update.INSERT, position);
+                position++;
+                newIndex++;
+            } else if (oldIndex >= oldIds.length || newIndex >= newIds.length ||
+                    oldIds[oldIndex] != newIds[newIndex]) {
+                // Moved
+                update.operations = null;
+                return update;
+            } else {
+                if (!hasSameContent(oldItems.get(oldIndex), newItems.get(newIndex))) {
+                    update.add(Update.CHANGE, position);
+                }
+                position++;
+                oldIndex++;
+                newIndex++;
+            }
+        }
+
+        return update;
+    }
+
+    private static Set<Long> toSet(long[] ids) {
+        Set<Long> set = new HashSet<>(ids.length * 2);
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private static boolean hasSameContent(MediaBrowser.MediaItem item,
+                                          MediaBrowser.MediaItem other) {
+        MediaDescription description = item.getDescription();
+        MediaDescription otherDescription = other.getDescription();
+        return item.getFlags() == other.getFlags() &&
+                TextUtils.equals(item.getMediaId(), other.getMediaId()) &&
+                TextUtils.equals(description.getTitle(), otherDescription.getTitle()) &&
+                TextUtils.equals(description.getSubtitle(), otherDescription.getSubtitle());
+    }
+
+    /**
+     * @return the entry id of tracks, folders and categories get a negative id from their
+     * media id so they don't clash with entries
+     */
+    private static long getStableId(MediaBrowser.MediaItem item) {
+        String mediaId = item.getMediaId();
+        if (item.isPlayable()) {
+            long id = parseId(MediaIDHelper.extractMusicIDFromMediaID(mediaId));
+            if (id != RecyclerView.NO_ID) {
+                return id;
+            }
+        }
+        return mediaId != null ? (mediaId.hashCode() & 0xffffffffL) | Long.MIN_VALUE : RecyclerView.NO_ID;
+    }
+
+    private static long parseId(@Nullable String musicId) {
+        if (musicId == null) {
+            return RecyclerView.NO_ID;
+        }
+        try {
+            return Long.parseLong(musicId);
+        } catch (NumberFormatException e) {
+            return RecyclerView.NO_ID;
+        }
+    }
+
+    private static final class Update {
+
+        static final int INSERT = 0;
+        static final int REMOVE = 1;
+        static final int CHANGE = 2;
+
+        final List<MediaBrowser.MediaItem> base;
+        final List<MediaBrowser.MediaItem> items;
+        final long[] ids;
+
+        // Operations as type, position and count, in order. Null to reload everything
+        List<int[]> operations;
+
+        Update(List<MediaBrowser.MediaItem> base, List<MediaBrowser.MediaItem> items,
+               long[] ids) {
+            this.base = base;
+            this.items = items;
+            this.ids = ids;
+        }
+
+        void add(int type, int position) {
+            int[] last = operations.isEmpty() ? null : operations.get(operations.size() - 1);
+            if (last != null && last[0] == type &&
+                    (type == REMOVE ? last[1] == position : last[1] + last[2] == position)) {
+                last[2]++;
+            } else {
+                operations.add(new int[]{type, position, 1});
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import android.os.Bundle;
 import com.dropbox.client2.DropboxAPI;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.misterpereira.android.kiteplayer.MusicService;
+import com.misterpereira.android.kiteplayer.PlayingQueueStore;
 import com.misterpereira.android.kiteplayer.R;
 import com.misterpereira.android.kiteplayer.utils.PrefUtils;
 
@@ -47,11 +48,14 @@ public class DrawerMenuContents {
 
     private final Activity mParentActivity;
     private final DropboxAPI<AndroidAuthSession> mDBApi;
+    private final PlayingQueueStore mQueueStore;
 
-    public DrawerMenuContents(Activity parentActivity, DropboxAPI<AndroidAuthSession> dbApi) {
+    public DrawerMenuContents(Activity parentActivity, DropboxAPI<AndroidAuthSession> dbApi,
+                              PlayingQueueStore queueStore) {
 
         this.mParentActivity = parentActivity;
         this.mDBApi = dbApi;
+        this.mQueueStore = queueStore;
 
         items = new ArrayList<>(4);
         actions = new Runnable[4];
@@ -71,6 +75,7 @@ public class DrawerMenuContents {
         actions[2] = () -> {
             mDBApi.getSession().unlink();
             PrefUtils.setDropboxAuthToken(mParentActivity, null);
+            mQueueStore.clear();
             mParentActivity.stopService(new Intent(mParentActivity, MusicService.class));
             replaceParentActivity(2);
         };
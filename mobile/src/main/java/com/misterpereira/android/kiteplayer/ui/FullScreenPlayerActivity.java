@@ -41,10 +41,10 @@ import android.widget.ProgressBar;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.misterpereira.android.kiteplayer.KiteApplication;
 import com.misterpereira.android.kiteplayer.MusicService;
 import com.misterpereira.android.kiteplayer.R;
+import com.misterpereira.android.kiteplayer.model.AlbumArtCache;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.google.android.libraries.cast.companionlibrary.utils.Utils;
 
@@ -53,6 +53,9 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+
 import static android.view.View.INVISIBLE;
 import static android.view.View.VISIBLE;
 
@@ -79,6 +82,7 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity {
     private Drawable mPauseDrawable;
     private Drawable mPlayDrawable;
     private ImageView mBackgroundImage;
+    private Subscription mAlbumArtSubscription;
 
     private final Handler mHandler = new Handler();
     private MediaBrowser mMediaBrowser;
@@ -271,6 +275,9 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mAlbumArtSubscription != null) {
+            mAlbumArtSubscription.unsubscribe();
+        }
         stopSeekbarUpdate();
         mExecutorService.shutdown();
     }
@@ -279,17 +286,25 @@ public class FullScreenPlayerActivity extends ActionBarCastActivity {
 
         updateMediaDescription(mm.getDescription());
 
-        Bitmap albumArt = mm.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART);
+        if (mAlbumArtSubscription != null) {
+            mAlbumArtSubscription.unsubscribe();
+        }
+
+        AlbumArtCache albumArtCache = ((KiteApplication) getApplication())
+                .getComponent()
+                .albumArtCache();
+
+        Bitmap albumArt = albumArtCache.peekAlbumArt(mm, AlbumArtCache.BUCKET_LARGE);
 
         if (albumArt != null) {
             mBackgroundImage.setImageBitmap(albumArt);
         } else {
-            Glide
-                    .with(this)
-                    .load(mm)
-                    .error(R.drawable.album_art)
-                    .diskCacheStrategy(DiskCacheStrategy.ALL)
-                    .into(mBackgroundImage);
+            mBackgroundImage.setImageResource(R.drawable.album_art);
+            mAlbumArtSubscription = albumArtCache
+                    .getAlbumArt(mm, AlbumArtCache.BUCKET_LARGE)
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(mBackgroundImage::setImageBitmap,
+                            error -> LogHelper.w(TAG, error, "Failed loading album art"));
         }
     }
 
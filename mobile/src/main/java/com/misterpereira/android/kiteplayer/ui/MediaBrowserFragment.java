@@ -35,12 +35,12 @@ import android.net.ConnectivityManager;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.widget.SwipeRefreshLayout;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ListView;
 
 import com.dropbox.client2.DropboxAPI;
 import com.dropbox.client2.android.AndroidAuthSession;
@@ -52,7 +52,6 @@ import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.MediaIDHelper;
 import com.misterpereira.android.kiteplayer.utils.NetworkHelper;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -66,7 +65,7 @@ import rx.schedulers.Schedulers;
  * <p/>
  * It uses a {@link MediaBrowser} to connect to the {@link com.misterpereira.android.kiteplayer.MusicService}.
  * Once connected, the fragment subscribes to get all the children.
- * All {@link MediaBrowser.MediaItem}'s that can be browsed are shown in a ListView.
+ * All {@link MediaBrowser.MediaItem}'s that can be browsed are shown in a RecyclerView.
  */
 public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout.OnRefreshListener {
 
@@ -115,7 +114,7 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
             }
             LogHelper.d(TAG, "Received metadata change to media ",
                     metadata.getDescription().getMediaId());
-            mBrowserAdapter.notifyDataSetChanged();
+            mBrowserAdapter.updatePlayingItem();
         }
 
         @Override
@@ -124,7 +123,7 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
             LogHelper.d(TAG, "Received state change: ", state);
 
             mMediaFragmentListener.checkForUserVisibleErrors(false);
-            mBrowserAdapter.notifyDataSetChanged();
+            mBrowserAdapter.updatePlayingItem();
         }
     };
 
@@ -140,9 +139,7 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
                     if (children.isEmpty() && DropboxHelper.isUnlinked(mDBApi.getSession())) {
                         mMediaFragmentListener.onDropboxSessionUnlinked();
                     } else {
-                        mBrowserAdapter.clear();
-                        mBrowserAdapter.addAll(children);
-                        mBrowserAdapter.notifyDataSetChanged();
+                        mBrowserAdapter.setItems(children);
 
                         mNoSongsMessage.setVisibility(children.isEmpty()?View.VISIBLE:View.GONE);
                     }
@@ -195,16 +192,16 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
             onRefresh();
         });
 
-        mBrowserAdapter = new BrowseAdapter(getActivity());
-
-        ListView listView = (ListView) rootView.findViewById(R.id.list_view);
-        listView.setAdapter(mBrowserAdapter);
-        listView.setOnItemClickListener((parent, view, position, id) -> {
+        mBrowserAdapter = new BrowseAdapter(getActivity(), item -> {
             mMediaFragmentListener.checkForUserVisibleErrors(false);
-            MediaBrowser.MediaItem item = mBrowserAdapter.getItem(position);
             mMediaFragmentListener.onMediaItemSelected(item);
         });
 
+        RecyclerView listView = (RecyclerView) rootView.findViewById(R.id.list_view);
+        listView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        listView.setHasFixedSize(true);
+        listView.setAdapter(mBrowserAdapter);
+
         return rootView;
     }
 
@@ -230,6 +227,7 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
     @Override
     public void onStop() {
         super.onStop();
+        mBrowserAdapter.cancelPendingUpdate();
         MediaBrowser mediaBrowser = mMediaFragmentListener.getMediaBrowser();
         if (mediaBrowser != null && mediaBrowser.isConnected() && mMediaId != null) {
             mediaBrowser.unsubscribe(mMediaId);
@@ -292,6 +290,7 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
             getActivity().getMediaController().unregisterCallback(mMediaControllerCallback);
             getActivity().getMediaController().registerCallback(mMediaControllerCallback);
         }
+        mBrowserAdapter.updatePlayingItem();
     }
 
     private void updateTitle() {
@@ -302,6 +301,20 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
 
         String[] parentHierarchy = MediaIDHelper.getHierarchy(mMediaId);
 
+        if (parentHierarchy.length == 1) {
+            switch (parentHierarchy[0]) {
+                case MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST:
+                    mMediaFragmentListener.setToolbarTitle(getString(R.string.browse_artists));
+                    return;
+                case MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM:
+                    mMediaFragmentListener.setToolbarTitle(getString(R.string.browse_albums));
+                    return;
+                case MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE:
+                    mMediaFragmentListener.setToolbarTitle(getString(R.string.browse_genres));
+                    return;
+            }
+        }
+
         mMediaFragmentListener.setToolbarTitle(parentHierarchy[parentHierarchy.length - 1]);
 
     }
@@ -326,50 +339,11 @@ public class MediaBrowserFragment extends Fragment implements SwipeRefreshLayout
                             mMediaFragmentListener.checkForUserVisibleErrors(true);
                             mSwipeLayout.setRefreshing(false);
                         }, () -> {
+                            // Changed folders are pushed to the subscription as they're synced
                             mSwipeLayout.setRefreshing(false);
-                            onConnected();
                         });
     }
 
-    // An adapter for showing the list of browsed MediaItem's
-    private static class BrowseAdapter extends ArrayAdapter<MediaBrowser.MediaItem> {
-
-        public BrowseAdapter(Activity context) {
-            super(context, R.layout.media_list_item, new ArrayList<>());
-        }
-
-        @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            MediaBrowser.MediaItem item = getItem(position);
-            int itemState = MediaItemViewHolder.STATE_NONE;
-            if (item.isPlayable()) {
-                itemState = MediaItemViewHolder.STATE_PLAYABLE;
-                MediaController controller = ((Activity) getContext()).getMediaController();
-                if (controller != null && controller.getMetadata() != null) {
-                    String currentPlaying = controller.getMetadata().getDescription().getMediaId();
-                    String musicId = MediaIDHelper.extractMusicIDFromMediaID(
-                            item.getDescription().getMediaId());
-                    if (currentPlaying != null && currentPlaying.equals(musicId)) {
-                        PlaybackState pbState = controller.getPlaybackState();
-                        if (pbState == null || pbState.getState() == PlaybackState.STATE_ERROR) {
-                            itemState = MediaItemViewHolder.STATE_NONE;
-                        } else if (pbState.getState() == PlaybackState.STATE_PLAYING) {
-                            itemState = MediaItemViewHolder.STATE_PLAYING;
-                        } else {
-                            itemState = MediaItemViewHolder.STATE_PAUSED;
-                        }
-                    }
-                }
-            } else if (item.isBrowsable()) {
-                itemState = MediaItemViewHolder.STATE_CLOSED_FOLDER;
-            }
-
-            return MediaItemViewHolder.setupView((Activity) getContext(), convertView, parent,
-                item.getDescription(), itemState);
-        }
-
-    }
-
     public interface MediaFragmentListener extends MediaBrowserProvider {
         void onMediaItemSelected(MediaBrowser.MediaItem item);
         void setToolbarTitle(CharSequence title);
@@ -28,6 +28,7 @@ import android.content.Context;
 import android.content.res.ColorStateList;
 import android.graphics.drawable.AnimationDrawable;
 import android.media.MediaDescription;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -37,7 +38,7 @@ import android.widget.TextView;
 import com.misterpereira.android.kiteplayer.R;
 import com.misterpereira.android.kiteplayer.utils.ResourceHelper;
 
-public class MediaItemViewHolder {
+public class MediaItemViewHolder extends RecyclerView.ViewHolder {
 
     static final int STATE_INVALID = -1;
     static final int STATE_NONE = 0;
@@ -49,84 +50,81 @@ public class MediaItemViewHolder {
     private static ColorStateList sColorStatePlaying;
     private static ColorStateList sColorStateNotPlaying;
 
-    ImageView mImageView;
-    TextView mTitleView;
-    TextView mDescriptionView;
+    final ImageView mImageView;
+    final TextView mTitleView;
+    final TextView mDescriptionView;
 
-    static View setupView(Activity activity, View convertView, ViewGroup parent,
-                                    MediaDescription description, int state) {
+    // State the view was last set up for
+    private int mCachedState = STATE_INVALID;
+
+    private MediaItemViewHolder(View itemView) {
+        super(itemView);
+        mImageView = (ImageView) itemView.findViewById(R.id.play_eq);
+        mTitleView = (TextView) itemView.findViewById(R.id.title);
+        mDescriptionView = (TextView) itemView.findViewById(R.id.description);
+    }
+
+    static MediaItemViewHolder create(Activity activity, ViewGroup parent) {
 
         if (sColorStatePlaying == null || sColorStateNotPlaying == null) {
             initializeColorStateLists(activity);
         }
 
-        MediaItemViewHolder holder;
-        Integer cachedState = STATE_INVALID;
-
-        if (convertView == null) {
-            convertView = LayoutInflater.from(activity)
-                    .inflate(R.layout.media_list_item, parent, false);
-            holder = new MediaItemViewHolder();
-            holder.mImageView = (ImageView) convertView.findViewById(R.id.play_eq);
-            holder.mTitleView = (TextView) convertView.findViewById(R.id.title);
-            holder.mDescriptionView = (TextView) convertView.findViewById(R.id.description);
-            convertView.setTag(holder);
-        } else {
-            holder = (MediaItemViewHolder) convertView.getTag();
-            cachedState = (Integer) convertView.getTag(R.id.tag_mediaitem_state_cache);
-        }
+        return new MediaItemViewHolder(LayoutInflater.from(activity)
+                .inflate(R.layout.media_list_item, parent, false));
+    }
 
-        holder.mTitleView.setText(description.getTitle());
+    void bind(Activity activity, MediaDescription description, int state) {
+
+        mTitleView.setText(description.getTitle());
         if (description.getSubtitle() != null && description.getSubtitle().length()>0) {
-            holder.mDescriptionView.setText(description.getSubtitle());
-            holder.mDescriptionView.setVisibility(View.VISIBLE);
+            mDescriptionView.setText(description.getSubtitle());
+            mDescriptionView.setVisibility(View.VISIBLE);
         } else {
-            holder.mDescriptionView.setVisibility(View.GONE);
+            mDescriptionView.setVisibility(View.GONE);
         }
 
-        // If the state of convertView is different, we need to adapt the view to the
+        // If the state of the recycled view is different, we need to adapt the view to the
         // new state.
-        if (cachedState == null || cachedState != state) {
+        if (mCachedState != state) {
 
-            holder.mTitleView.setEnabled(true);
-            holder.mDescriptionView.setEnabled(true);
+            mTitleView.setEnabled(true);
+            mDescriptionView.setEnabled(true);
 
             switch (state) {
                 case STATE_PLAYABLE:
-                    holder.mImageView.setImageDrawable(
+                    mImageView.setImageDrawable(
                         activity.getDrawable(R.drawable.ic_play_arrow_black_36dp));
-                    holder.mImageView.setImageTintList(sColorStateNotPlaying);
-                    holder.mImageView.setVisibility(View.VISIBLE);
+                    mImageView.setImageTintList(sColorStateNotPlaying);
+                    mImageView.setVisibility(View.VISIBLE);
                     break;
                 case STATE_PLAYING:
                     AnimationDrawable animation = (AnimationDrawable)
                         activity.getDrawable(R.drawable.ic_equalizer_white_36dp);
-                    holder.mImageView.setImageDrawable(animation);
-                    holder.mImageView.setImageTintList(sColorStatePlaying);
-                    holder.mImageView.setVisibility(View.VISIBLE);
+                    mImageView.setImageDrawable(animation);
+                    mImageView.setImageTintList(sColorStatePlaying);
+                    mImageView.setVisibility(View.VISIBLE);
                     if (animation != null) animation.start();
                     break;
                 case STATE_PAUSED:
-                    holder.mImageView.setImageDrawable(
+                    mImageView.setImageDrawable(
                         activity.getDrawable(R.drawable.ic_equalizer1_white_36dp));
-                    holder.mImageView.setImageTintList(sColorStateNotPlaying);
-                    holder.mImageView.setVisibility(View.VISIBLE);
+                    mImageView.setImageTintList(sColorStateNotPlaying);
+                    mImageView.setVisibility(View.VISIBLE);
                     break;
                 case STATE_CLOSED_FOLDER:
-                    holder.mImageView.setImageDrawable(
+                    mImageView.setImageDrawable(
                             activity.getDrawable(R.drawable.ic_folder_grey_52dp));
-                    holder.mImageView.setImageTintList(sColorStateNotPlaying);
-                    holder.mImageView.setVisibility(View.VISIBLE);
+                    mImageView.setImageTintList(sColorStateNotPlaying);
+                    mImageView.setVisibility(View.VISIBLE);
                     break;
                 default:
-                    holder.mDescriptionView.setEnabled(false);
-                    holder.mTitleView.setEnabled(false);
-                    holder.mImageView.setVisibility(View.GONE);
+                    mDescriptionView.setEnabled(false);
+                    mTitleView.setEnabled(false);
+                    mImageView.setVisibility(View.GONE);
             }
-            convertView.setTag(R.id.tag_mediaitem_state_cache, state);
+            mCachedState = state;
         }
-
-        return convertView;
     }
 
     static private void initializeColorStateLists(Context ctx) {
@@ -45,13 +45,16 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.misterpereira.android.kiteplayer.KiteApplication;
 import com.misterpereira.android.kiteplayer.MusicService;
 import com.misterpereira.android.kiteplayer.R;
+import com.misterpereira.android.kiteplayer.model.AlbumArtCache;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 import com.misterpereira.android.kiteplayer.utils.ResourceHelper;
 
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+
 /**
  * A class that shows the Media Queue to the user.
  */
@@ -66,6 +69,7 @@ public class PlaybackControlsFragment extends Fragment {
     private TextView mSubtitle;
     private TextView mExtraInfo;
     private ImageView mAlbumArt;
+    private Subscription mAlbumArtSubscription;
 
     // Receive callbacks from the MediaController. Here we update our state such as which queue
     // is being shown, the current title and description and the PlaybackState.
@@ -135,6 +139,9 @@ public class PlaybackControlsFragment extends Fragment {
         if (getActivity().getMediaController() != null) {
             getActivity().getMediaController().unregisterCallback(mCallback);
         }
+        if (mAlbumArtSubscription != null) {
+            mAlbumArtSubscription.unsubscribe();
+        }
     }
 
     public void onConnected() {
@@ -161,18 +168,26 @@ public class PlaybackControlsFragment extends Fragment {
         mTitle.setText(metadata.getDescription().getTitle());
         mSubtitle.setText(metadata.getDescription().getSubtitle());
 
+        if (mAlbumArtSubscription != null) {
+            mAlbumArtSubscription.unsubscribe();
+        }
+
+        AlbumArtCache albumArtCache = ((KiteApplication) getActivity().getApplication())
+                .getComponent()
+                .albumArtCache();
+
         Bitmap albumThumbnail =
-            metadata.getBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON);
+            albumArtCache.peekAlbumArt(metadata, AlbumArtCache.BUCKET_SMALL);
 
         if (albumThumbnail != null) {
             mAlbumArt.setImageBitmap(albumThumbnail);
         } else {
-            Glide
-                    .with(this)
-                    .load(metadata)
-                    .error(R.drawable.ic_album_art)
-                    .diskCacheStrategy(DiskCacheStrategy.ALL)
-                    .into(mAlbumArt);
+            mAlbumArt.setImageResource(R.drawable.ic_album_art);
+            mAlbumArtSubscription = albumArtCache
+                    .getAlbumArt(metadata, AlbumArtCache.BUCKET_SMALL)
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(mAlbumArt::setImageBitmap,
+                            error -> LogHelper.w(TAG, error, "Failed loading album art"));
         }
     }
 
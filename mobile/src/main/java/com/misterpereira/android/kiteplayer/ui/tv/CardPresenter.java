@@ -33,25 +33,48 @@ import android.support.v17.leanback.widget.Presenter;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.misterpereira.android.kiteplayer.KiteApplication;
+import com.misterpereira.android.kiteplayer.KiteApplicationComponent;
 import com.misterpereira.android.kiteplayer.R;
+import com.misterpereira.android.kiteplayer.model.AlbumArtCache;
+import com.misterpereira.android.kiteplayer.model.MusicProvider;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+
+/**
+ * Presents media items and queue items as cards. Album art is looked up by the item's icon Uri
+ * in the app's {@link AlbumArtCache} rather than carried as a bitmap by the description.
+ * <p>
+ * Art already decoded is shown right away, otherwise the small version is shown if decoded and
+ * the card's art is requested after a short delay, so cards flying by while scrolling quickly
+ * never start a decode. Requests are cancelled when the card is unbound.
+ */
 public class CardPresenter extends Presenter {
     private static final String TAG = LogHelper.makeLogTag(CardPresenter.class);
     private static final int CARD_WIDTH = 300;
     private static final int CARD_HEIGHT = 250;
 
-    private static Context mContext;
+    // Cards are 300x250, the medium bucket covers them
+    private static final int CARD_ART_BUCKET = AlbumArtCache.BUCKET_MEDIUM;
+
+    // Time a card has to stay bound before its art is requested
+    private static final long ART_REQUEST_DELAY_MS = 150;
 
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent) {
         LogHelper.d(TAG, "onCreateViewHolder");
-        mContext = parent.getContext();
+        Context context = parent.getContext();
 
-        ImageCardView cardView = new ImageCardView(mContext);
+        ImageCardView cardView = new ImageCardView(context);
         cardView.setFocusable(true);
         cardView.setFocusableInTouchMode(true);
-        cardView.setBackgroundColor(mContext.getResources().getColor(R.color.default_background));
+        cardView.setBackgroundColor(context.getResources().getColor(R.color.default_background));
         return new CardViewHolder(cardView);
     }
 
@@ -71,12 +94,43 @@ public class CardPresenter extends Presenter {
         }
 
         final CardViewHolder cardViewHolder = (CardViewHolder) viewHolder;
+        cardViewHolder.cancelArtRequest();
         cardViewHolder.mCardView.setTitleText(description.getTitle());
         cardViewHolder.mCardView.setContentText(description.getSubtitle());
         cardViewHolder.mCardView.setMainImageDimensions(CARD_WIDTH, CARD_HEIGHT);
 
-        setCardImage(cardViewHolder, description.getIconBitmap());
+        String musicId = description.getIconUri() != null ?
+                AlbumArtCache.getMusicIdFromUri(description.getIconUri()) : null;
 
+        if (musicId == null) {
+            setCardImage(cardViewHolder, description.getIconBitmap());
+            return;
+        }
+
+        KiteApplicationComponent component = getComponent(cardViewHolder);
+        AlbumArtCache albumArtCache = component.albumArtCache();
+
+        Bitmap art = albumArtCache.peekAlbumArt(musicId, CARD_ART_BUCKET);
+        if (art != null) {
+            setCardImage(cardViewHolder, art);
+            return;
+        }
+
+        // Low resolution placeholder until the card's art is decoded
+        setCardImage(cardViewHolder,
+                albumArtCache.peekAlbumArt(musicId, AlbumArtCache.BUCKET_SMALL));
+
+        MusicProvider musicProvider = component.musicProvider();
+        cardViewHolder.mArtSubscription = Observable
+                .timer(ART_REQUEST_DELAY_MS, TimeUnit.MILLISECONDS)
+                .observeOn(Schedulers.io())
+                .flatMap(tick -> musicProvider.getMusic(musicId))
+                .flatMap(mm -> albumArtCache.getAlbumArt(mm, CARD_ART_BUCKET))
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(
+                        bitmap -> setCardImage(cardViewHolder, bitmap),
+                        error -> LogHelper.w(TAG, error, "Failed loading album art of musicId=",
+                                musicId));
     }
 
     private void setCardImage(CardViewHolder cardViewHolder, Bitmap art) {
@@ -85,7 +139,7 @@ public class CardPresenter extends Presenter {
         }
         Drawable artDrawable = null;
         if (art != null) {
-            artDrawable = new BitmapDrawable(mContext.getResources(), art);
+            artDrawable = new BitmapDrawable(cardViewHolder.mCardView.getResources(), art);
         } else {
             CharSequence title = cardViewHolder.mCardView.getTitleText();
             if (title != null && title.length() > 0) {
@@ -98,6 +152,10 @@ public class CardPresenter extends Presenter {
     @Override
     public void onUnbindViewHolder(Presenter.ViewHolder viewHolder) {
         LogHelper.d(TAG, "onUnbindViewHolder");
+        CardViewHolder cardViewHolder = (CardViewHolder) viewHolder;
+        cardViewHolder.cancelArtRequest();
+        // Bitmaps belong to the album art cache, the card shouldn't keep them from being evicted
+        cardViewHolder.mCardView.setMainImage(null);
     }
 
     @Override
@@ -105,13 +163,26 @@ public class CardPresenter extends Presenter {
         LogHelper.d(TAG, "onViewAttachedToWindow");
     }
 
+    private static KiteApplicationComponent getComponent(CardViewHolder cardViewHolder) {
+        return ((KiteApplication) cardViewHolder.mCardView.getContext().getApplicationContext())
+                .getComponent();
+    }
+
     private static class CardViewHolder extends Presenter.ViewHolder {
         private final ImageCardView mCardView;
+        private Subscription mArtSubscription;
 
         public CardViewHolder(View view) {
             super(view);
             mCardView = (ImageCardView) view;
         }
+
+        void cancelArtRequest() {
+            if (mArtSubscription != null) {
+                mArtSubscription.unsubscribe();
+                mArtSubscription = null;
+            }
+        }
     }
 
     /**
@@ -29,6 +29,7 @@ import android.support.v17.leanback.widget.ArrayObjectAdapter;
 import android.support.v17.leanback.widget.HeaderItem;
 import android.support.v17.leanback.widget.ListRow;
 import android.support.v17.leanback.widget.ListRowPresenter;
+import android.util.SparseArray;
 
 import com.misterpereira.android.kiteplayer.R;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
@@ -54,9 +55,11 @@ import java.util.List;
  * <p/>
  * It uses a {@link MediaBrowser} to connect to the {@link com.misterpereira.android.kiteplayer.MusicService}.
  * Once connected, the fragment subscribes to get the children of level 1 and then, for each
- * children, it adds a ListRow and subscribes for its children, which, when received, are
- * added to the ListRow. These items (like "Rock"), when clicked, will open a
- * TvVerticalGridActivity that lists all songs of the specified category on a grid-like UI.
+ * children, it adds a ListRow. Only the rows around the selected one subscribe for their
+ * children, which, when received, are added to the ListRow, so startup doesn't depend on the
+ * number of rows. Rows scrolled away are unsubscribed and emptied. These items (like "Rock"),
+ * when clicked, will open a TvVerticalGridActivity that lists all songs of the specified
+ * category on a grid-like UI.
  * <p/>
  * This fragment also shows the MediaSession queue ("now playing" list), in case there is
  * something playing.
@@ -65,6 +68,11 @@ public class TvBrowseFragment extends BrowseFragment {
 
     private static final String TAG = LogHelper.makeLogTag(TvBrowseFragment.class);
 
+    // Rows loaded on each side of the selected one, ahead of scrolling
+    private static final int ROW_PREFETCH_MARGIN = 2;
+    // Rows waiting for their children at once, the others wait for their turn
+    private static final int MAX_PENDING_ROWS = 3;
+
     private ArrayObjectAdapter mRowsAdapter;
     private ArrayObjectAdapter mListRowAdapter;
     private MediaFragmentListener mMediaFragmentListener;
@@ -72,6 +80,10 @@ public class TvBrowseFragment extends BrowseFragment {
     private MediaBrowser mMediaBrowser;
     private HashSet<String> mSubscribedMediaIds;
 
+    // Rows of browsable items by position
+    private final SparseArray<FolderRow> mFolderRows = new SparseArray<>();
+    private int mSelectedRow;
+
     // Receive callbacks from the MediaController. Here we update our state such as which queue
     // is being shown, the current title and description and the PlaybackState.
     private final MediaController.Callback mMediaControllerCallback = new MediaController.Callback() {
@@ -129,6 +141,7 @@ public class TvBrowseFragment extends BrowseFragment {
                 public void onChildrenLoaded(@NonNull String parentId,
                                              @NonNull List<MediaBrowser.MediaItem> children) {
 
+                    releaseFolderRows();
                     mRowsAdapter.clear();
                     CardPresenter cardPresenter = new CardPresenter();
 
@@ -142,8 +155,8 @@ public class TvBrowseFragment extends BrowseFragment {
                         if (item.isPlayable()) {
                             listRowAdapter.add(item);
                         } else if (item.isBrowsable()) {
-                            subscribeToMediaId(item.getMediaId(),
-                                    new RowSubscriptionCallback(listRowAdapter));
+                            mFolderRows.put(i, new FolderRow(i, item.getMediaId(),
+                                    listRowAdapter));
                         } else {
                             LogHelper.e(TAG, "Item should be playable or browsable.");
                         }
@@ -169,6 +182,7 @@ public class TvBrowseFragment extends BrowseFragment {
                     }
 
                     mRowsAdapter.notifyArrayItemRangeChanged(0, children.size());
+                    updateFolderRows();
                 }
 
                 @Override
@@ -177,31 +191,123 @@ public class TvBrowseFragment extends BrowseFragment {
                 }
             };
 
+    /**
+     * A row of a browsable item, filled with its children only while it's near the selection.
+     */
+    private static class FolderRow {
+
+        static final int RELEASED = 0;
+        static final int PENDING = 1;
+        static final int LOADED = 2;
+
+        final int position;
+        final String mediaId;
+        final ArrayObjectAdapter adapter;
+
+        int state = RELEASED;
+        // Callback of the current subscription, results of released ones are dropped
+        RowSubscriptionCallback callback;
+
+        FolderRow(int position, String mediaId, ArrayObjectAdapter adapter) {
+            this.position = position;
+            this.mediaId = mediaId;
+            this.adapter = adapter;
+        }
+    }
+
     /**
      * This callback fills content for a single Row in the BrowseFragment.
      */
     private class RowSubscriptionCallback extends MediaBrowser.SubscriptionCallback {
 
-        private final ArrayObjectAdapter mListRowAdapter;
+        private final FolderRow mRow;
 
-        public RowSubscriptionCallback(ArrayObjectAdapter listRowAdapter) {
-            mListRowAdapter = listRowAdapter;
+        public RowSubscriptionCallback(FolderRow row) {
+            mRow = row;
         }
 
         @Override
         public void onChildrenLoaded(@NonNull String parentId,
                                      @NonNull List<MediaBrowser.MediaItem> children) {
-            mListRowAdapter.clear();
+            if (mRow.callback != this) {
+                return;
+            }
+            mRow.adapter.clear();
             for (MediaBrowser.MediaItem item : children) {
-                mListRowAdapter.add(item);
+                mRow.adapter.add(item);
+            }
+            mRow.adapter.notifyArrayItemRangeChanged(0, children.size());
+
+            if (mRow.state == FolderRow.PENDING) {
+                mRow.state = FolderRow.LOADED;
+                updateFolderRows();
             }
-            mListRowAdapter.notifyArrayItemRangeChanged(0, children.size());
         }
 
         @Override
         public void onError(@NonNull String id) {
             LogHelper.e(TAG, "RowSubscriptionCallback subscription onError, id=", id);
+            if (mRow.callback == this && mRow.state == FolderRow.PENDING) {
+                // Not retried until the row is scrolled away and back
+                mRow.state = FolderRow.LOADED;
+                updateFolderRows();
+            }
+        }
+    }
+
+    /**
+     * Subscribes the rows around the selected one, closest first and within the budget of
+     * pending rows, and releases the others.
+     */
+    private void updateFolderRows() {
+        if (mMediaBrowser == null || !mMediaBrowser.isConnected()) {
+            return;
         }
+
+        int pending = 0;
+        for (int i = 0; i < mFolderRows.size(); i++) {
+            FolderRow row = mFolderRows.valueAt(i);
+            if (Math.abs(row.position - mSelectedRow) > ROW_PREFETCH_MARGIN) {
+                releaseFolderRow(row);
+            } else if (row.state == FolderRow.PENDING) {
+                pending++;
+            }
+        }
+
+        for (int distance = 0; distance <= ROW_PREFETCH_MARGIN; distance++) {
+            for (int position : new int[]{mSelectedRow + distance, mSelectedRow - distance}) {
+                FolderRow row = mFolderRows.get(position);
+                if (pending >= MAX_PENDING_ROWS) {
+                    return;
+                }
+                if (row != null && row.state == FolderRow.RELEASED) {
+                    row.state = FolderRow.PENDING;
+                    row.callback = new RowSubscriptionCallback(row);
+                    subscribeToMediaId(row.mediaId, row.callback);
+                    pending++;
+                }
+            }
+        }
+    }
+
+    private void releaseFolderRow(FolderRow row) {
+        if (row.state == FolderRow.RELEASED) {
+            return;
+        }
+        if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
+            mMediaBrowser.unsubscribe(row.mediaId);
+        }
+        mSubscribedMediaIds.remove(row.mediaId);
+        row.state = FolderRow.RELEASED;
+        row.callback = null;
+        row.adapter.clear();
+    }
+
+    private void releaseFolderRows() {
+        for (int i = 0; i < mFolderRows.size(); i++) {
+            releaseFolderRow(mFolderRows.valueAt(i));
+        }
+        mFolderRows.clear();
     }
 
     @Override
@@ -224,6 +330,14 @@ public class TvBrowseFragment extends BrowseFragment {
     }
 
     private void setupEventListeners() {
+        setOnItemViewSelectedListener((itemViewHolder, item, rowViewHolder, row) -> {
+            int position = mRowsAdapter.indexOf(row);
+            if (position >= 0 && position != mSelectedRow) {
+                mSelectedRow = position;
+                updateFolderRows();
+            }
+        });
+
         setOnItemViewClickedListener((viewHolder, o, viewHolder2, row) -> {
             if (o instanceof MediaItem) {
                 MediaItem item = (MediaItem) o;
@@ -268,6 +382,7 @@ public class TvBrowseFragment extends BrowseFragment {
     @Override
     public void onStop() {
         super.onStop();
+        releaseFolderRows();
         if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
             for (String mediaId : mSubscribedMediaIds) {
                 mMediaBrowser.unsubscribe(mediaId);
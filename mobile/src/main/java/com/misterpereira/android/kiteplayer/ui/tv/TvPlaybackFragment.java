@@ -43,17 +43,15 @@ import android.support.v17.leanback.widget.Row;
 import android.support.v17.leanback.widget.RowPresenter;
 import android.text.TextUtils;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
-import com.bumptech.glide.load.resource.drawable.GlideDrawable;
-import com.bumptech.glide.request.animation.GlideAnimation;
-import com.bumptech.glide.request.target.SimpleTarget;
+import com.misterpereira.android.kiteplayer.KiteApplication;
 import com.misterpereira.android.kiteplayer.R;
+import com.misterpereira.android.kiteplayer.model.AlbumArtCache;
 import com.misterpereira.android.kiteplayer.utils.LogHelper;
 
 import java.util.List;
 
-import static com.misterpereira.android.kiteplayer.utils.SongCacheHelper.LARGE_ALBUM_ART_DIMENSIONS;
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
 
 /*
  * Show details of the currently playing song, along with playback controls and the playing queue.
@@ -80,6 +78,7 @@ public class TvPlaybackFragment extends android.support.v17.leanback.app.Playbac
     private long mLastPositionUpdateTime;
 
     private BackgroundManager mBackgroundManager;
+    private Subscription mAlbumArtSubscription;
     private ArrayObjectAdapter mListRowAdapter;
     private ListRow mListRow;
 
@@ -101,6 +100,14 @@ public class TvPlaybackFragment extends android.support.v17.leanback.app.Playbac
         setFadingEnabled(false);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mAlbumArtSubscription != null) {
+            mAlbumArtSubscription.unsubscribe();
+        }
+    }
+
     private void initializePlaybackControls(MediaMetadata metadata) {
         setupRows();
         addPlaybackControlsRow(metadata);
@@ -278,23 +285,23 @@ public class TvPlaybackFragment extends android.support.v17.leanback.app.Playbac
         mRowsAdapter.notifyArrayItemRangeChanged(
                 mRowsAdapter.indexOf(mPlaybackControlsRow), 1);
 
-        Glide
-                .with(this)
-                .load(metadata)
-                .error(R.drawable.ic_album_art)
-                .diskCacheStrategy(DiskCacheStrategy.ALL)
-                .into(new SimpleTarget<GlideDrawable>(LARGE_ALBUM_ART_DIMENSIONS[0], LARGE_ALBUM_ART_DIMENSIONS[1]) {
-
-                    @Override
-                    public void onResourceReady(GlideDrawable artDrawable, GlideAnimation glideAnimation) {
-                        if (artDrawable != null) {
-                            mPlaybackControlsRow.setImageDrawable(artDrawable);
-                            mBackgroundManager.setDrawable(artDrawable);
-                            mRowsAdapter.notifyArrayItemRangeChanged(
-                                    mRowsAdapter.indexOf(mPlaybackControlsRow), 1);
-                        }
+        if (mAlbumArtSubscription != null) {
+            mAlbumArtSubscription.unsubscribe();
+        }
+
+        mAlbumArtSubscription = ((KiteApplication) getActivity().getApplication())
+                .getComponent()
+                .albumArtCache()
+                .getAlbumArt(metadata, AlbumArtCache.BUCKET_LARGE)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(art -> {
+                    if (mPlaybackControlsRow != null) {
+                        mPlaybackControlsRow.setImageBitmap(getActivity(), art);
+                        mBackgroundManager.setBitmap(art);
+                        mRowsAdapter.notifyArrayItemRangeChanged(
+                                mRowsAdapter.indexOf(mPlaybackControlsRow), 1);
                     }
-                });
+                }, error -> LogHelper.w(TAG, error, "Failed loading album art"));
 
     }
 
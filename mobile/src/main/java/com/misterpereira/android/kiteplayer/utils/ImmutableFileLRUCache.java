@@ -14,10 +14,19 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
@@ -30,10 +39,19 @@ public class ImmutableFileLRUCache {
 
     public static final String TAG = LogHelper.makeLogTag(ImmutableFileLRUCache.class);
 
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Longest wait for a writer to make progress before a read fails
+    private static final long READ_TIMEOUT_MS = 30000;
+
     @Nullable
     private String mParentDirPath = null;
     private long mSizeLimitInBytes = 0;
     private Map<String, Lock> mWriters;
+    private final Map<String, WriteProgress> mProgress = new ConcurrentHashMap<>();
+
+    // Names of the cached files, read from disk once then kept up to date with the cache
+    private volatile Set<String> mIndex;
 
     public ImmutableFileLRUCache(@NonNull String parentDirPath, long sizeLimitInBytes) {
 
@@ -63,6 +81,18 @@ public class ImmutableFileLRUCache {
     public
     @Nullable
     File newFile(String filename, @NonNull ImmutableFileWriter writer) {
+        return newFile(filename, writer, null);
+    }
+
+    /**
+     * Same as {@link #newFile(String, ImmutableFileWriter)}, calling back once the file can be
+     * opened with {@link #openForReading(String)}, before the writer starts. Not called back
+     * if the file can't be created.
+     */
+    public
+    @Nullable
+    File newFile(String filename, @NonNull ImmutableFileWriter writer,
+                 @Nullable Runnable onWriteStarted) {
 
         // Filename must be defined
         if (filename == null || filename.trim().equals("")) return null;
@@ -87,6 +117,7 @@ public class ImmutableFileLRUCache {
         File newFile = new File(mParentDirPath, filename);
         File tmpFile = null;
         FileOutputStream tmpFOS = null;
+        WriteProgress progress = null;
 
         try {
 
@@ -95,15 +126,25 @@ public class ImmutableFileLRUCache {
                 return null;
             } else {
 
-                tmpFile = new File(mParentDirPath, filename + ".tmp");
+                tmpFile = new File(mParentDirPath, filename + TMP_SUFFIX);
                 tmpFOS = new FileOutputStream(tmpFile);
 
-                writer.write(tmpFOS);
+                progress = new WriteProgress();
+                mProgress.put(filename, progress);
+
+                if (onWriteStarted != null) {
+                    onWriteStarted.run();
+                }
+
+                writer.write(new ProgressOutputStream(tmpFOS, progress));
 
                 tmpFOS.flush();
                 CloseableHelper.closeQuietly(tmpFOS);
 
-                tmpFile.renameTo(newFile);
+                if (tmpFile.renameTo(newFile)) {
+                    getIndex().add(filename);
+                }
+                progress.finish(true);
             }
 
             startCleanupRoutine();
@@ -116,6 +157,12 @@ public class ImmutableFileLRUCache {
             if (newFile != null) newFile.delete();
             return null;
         } finally {
+            if (progress != null) {
+                // No-op if it already finished
+                progress.finish(false);
+                mProgress.remove(filename);
+            }
+
             writerLock.unlock();
             mWriters.remove(filename);
 
@@ -155,6 +202,7 @@ public class ImmutableFileLRUCache {
 
                             if (successfulDelete) {
                                 cummDeletedBytes += fileSize;
+                                getIndex().remove(file.getName());
                             }
 
                             if (cummDeletedBytes >= delta) break;
@@ -174,6 +222,8 @@ public class ImmutableFileLRUCache {
         Lock writerLock;
 
         if (!existingFile.exists()) {
+            // Deleted behind the cache's back
+            getIndex().remove(filename);
             return null;
         } else {
 
@@ -201,6 +251,112 @@ public class ImmutableFileLRUCache {
         }
     }
 
+    /**
+     * Looks a file up in the index only, without touching the disk. Unlike
+     * {@link #get(String, long)} it doesn't wait for writers nor count as a use of the file.
+     *
+     * @return the file if it's in the cache
+     */
+    public
+    @Nullable
+    File peek(String filename) {
+
+        if (filename == null || !getIndex().contains(filename)) {
+            return null;
+        }
+
+        return new File(mParentDirPath, filename);
+    }
+
+    /**
+     * @return whether the file lies directly in the cache directory, once links and relative
+     * parts of its path are resolved
+     */
+    public boolean isInCache(@NonNull File file) {
+        try {
+            File parentDir = file.getCanonicalFile().getParentFile();
+            return parentDir != null &&
+                    parentDir.equals(new File(mParentDirPath).getCanonicalFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a file for reading, even while it's still being written. Reads past the bytes
+     * written so far wait for the writer, and fail if it fails or stalls.
+     *
+     * @return the file's data, or null if it's neither cached nor being written
+     */
+    public
+    @Nullable
+    InputStream openForReading(String filename) {
+
+        if (filename == null || filename.trim().equals("")) return null;
+
+        WriteProgress progress = mProgress.get(filename);
+        if (progress != null) {
+            try {
+                // The descriptor stays valid once the file is renamed into place
+                return new ProgressInputStream(
+                        new FileInputStream(new File(mParentDirPath, filename + TMP_SUFFIX)),
+                        progress);
+            } catch (FileNotFoundException e) {
+                // Finished or failed in the meantime
+            }
+        }
+
+        File file = get(filename, 0);
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            return new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            LogHelper.w(TAG, e, "openForReading - Evicted while opening: ", filename);
+            return null;
+        }
+    }
+
+    /**
+     * @return snapshot of the names of all the cached files
+     */
+    @NonNull
+    public List<String> getFileNames() {
+        return new ArrayList<>(getIndex());
+    }
+
+    private Set<String> getIndex() {
+
+        Set<String> index = mIndex;
+
+        if (index == null) {
+            synchronized (this) {
+                index = mIndex;
+                if (index == null) {
+                    index = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+                    @SuppressWarnings("ConstantConditions")
+                    File[] cachedFiles = new File(mParentDirPath).listFiles();
+
+                    if (cachedFiles != null) {
+                        for (File file : cachedFiles) {
+                            // Files still being written are added once complete
+                            if (!file.getName().endsWith(TMP_SUFFIX)) {
+                                index.add(file.getName());
+                            }
+                        }
+                    }
+
+                    mIndex = index;
+                }
+            }
+        }
+
+        return index;
+    }
+
     public static class ImmutableFileLRUCacheException extends RuntimeException {
         public ImmutableFileLRUCacheException(String message) {
             super(message);
@@ -210,5 +366,136 @@ public class ImmutableFileLRUCache {
     public interface ImmutableFileWriter {
         void write(OutputStream os) throws Exception;
     }
+
+    /**
+     * Number of bytes written to a file being created, and whether its writer is done.
+     */
+    private static final class WriteProgress {
+
+        private long mWritten;
+        private boolean mFinished;
+        private boolean mSucceeded;
+
+        synchronized void add(long count) {
+            mWritten += count;
+            notifyAll();
+        }
+
+        synchronized void finish(boolean succeeded) {
+            if (!mFinished) {
+                mFinished = true;
+                mSucceeded = succeeded;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until more than the given number of bytes are written or the writer is done.
+         *
+         * @return number of bytes written
+         */
+        synchronized long await(long position) throws IOException {
+            long deadline = System.currentTimeMillis() + READ_TIMEOUT_MS;
+            while (mWritten <= position && !mFinished) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for the writer");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted waiting for the writer");
+                }
+            }
+            if (mFinished && !mSucceeded) {
+                throw new IOException("Writer failed");
+            }
+            return mWritten;
+        }
+    }
+
+    private static final class ProgressOutputStream extends FilterOutputStream {
+
+        private final WriteProgress mProgress;
+
+        ProgressOutputStream(OutputStream out, WriteProgress progress) {
+            super(out);
+            mProgress = progress;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mProgress.add(1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mProgress.add(len);
+        }
+    }
+
+    /**
+     * Reads a file while it's being written, never past the bytes written so far.
+     */
+    private static final class ProgressInputStream extends InputStream {
+
+        private final FileInputStream mIn;
+        private final WriteProgress mProgress;
+        private long mPosition;
+
+        ProgressInputStream(FileInputStream in, WriteProgress progress) {
+            mIn = in;
+            mProgress = progress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            long written = mProgress.await(mPosition);
+            if (written <= mPosition) {
+                return -1;
+            }
+
+            int read = mIn.read(b, off, (int) Math.min(len, written - mPosition));
+            if (read > 0) {
+                mPosition += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = mPosition;
+            long target = mPosition + n;
+            while (mPosition < target) {
+                long written = mProgress.await(mPosition);
+                if (written <= mPosition) {
+                    break;
+                }
+                long skipped = mIn.skip(Math.min(target, written) - mPosition);
+                if (skipped <= 0) {
+                    break;
+                }
+                mPosition += skipped;
+            }
+            return mPosition - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
 }
 
@@ -42,6 +42,9 @@ public class MediaIDHelper {
     // Media IDs used on browseable items of MediaBrowser
     public static final String MEDIA_ID_ROOT = "__ROOT__";
     public static final String MEDIA_ID_MUSICS_BY_SEARCH = "__BY_SEARCH__";
+    public static final String MEDIA_ID_MUSICS_BY_ARTIST = "__BY_ARTIST__";
+    public static final String MEDIA_ID_MUSICS_BY_ALBUM = "__BY_ALBUM__";
+    public static final String MEDIA_ID_MUSICS_BY_GENRE = "__BY_GENRE__";
 
     private static final String CATEGORY_SEPARATOR = "~";
     private static final String LEAF_SEPARATOR = "|";
@@ -50,12 +50,12 @@ public class NetworkHelper {
     }
 
     public static boolean canStream(Context context) {
-        return isOnline(context) &&
+        return !PrefUtils.isOfflineModeEnabled(context) && isOnline(context) &&
                 (PrefUtils.isStreamingOverCellularAllowed(context) || !isNetworkMetered(context));
     }
 
     public static boolean canSync(Context context) {
-        return isOnline(context) &&
+        return !PrefUtils.isOfflineModeEnabled(context) && isOnline(context) &&
                 (PrefUtils.isSyncOverCellularAllowed(context) || !isNetworkMetered(context));
     }
 }
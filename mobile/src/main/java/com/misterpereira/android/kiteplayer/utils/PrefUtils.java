@@ -41,6 +41,11 @@ public class PrefUtils {
     private static final String DROPBOX_UID = "db_uid";
     private static final String LATEST_MEDIA_ID_BROWSED = "latest_media_id";
 
+    // Values of the ReplayGain setting
+    public static final String REPLAY_GAIN_OFF = "off";
+    public static final String REPLAY_GAIN_TRACK = "track";
+    public static final String REPLAY_GAIN_ALBUM = "album";
+
     public static SharedPreferences getPreferences(Context context) {
         return context.getSharedPreferences(PREF_NAMESPACE, Context.MODE_PRIVATE);
     }
@@ -97,6 +102,39 @@ public class PrefUtils {
         return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(prefKey, false);
     }
 
+    public static boolean isOfflineModeEnabled(Context context) {
+        String prefKey = context.getResources().getString(R.string.pref_offline_mode_key);
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(prefKey, false);
+    }
+
+    /**
+     * @return crossfade duration in milliseconds, 0 if songs aren't crossfaded
+     */
+    public static int getCrossfadeDuration(Context context) {
+
+        String prefKey = context.getResources().getString(R.string.pref_crossfade_key);
+        String prefDefault = context.getResources().getString(R.string.pref_crossfade_default);
+
+        String seconds = PreferenceManager.getDefaultSharedPreferences(context).getString(prefKey, prefDefault);
+        try {
+            return Integer.parseInt(seconds) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return one of {@link #REPLAY_GAIN_OFF}, {@link #REPLAY_GAIN_TRACK} or
+     * {@link #REPLAY_GAIN_ALBUM}
+     */
+    public static String getReplayGainMode(Context context) {
+
+        String prefKey = context.getResources().getString(R.string.pref_replay_gain_key);
+        String prefDefault = context.getResources().getString(R.string.pref_replay_gain_default);
+
+        return PreferenceManager.getDefaultSharedPreferences(context).getString(prefKey, prefDefault);
+    }
+
     public static String getCacheSize(Context context) {
 
         String prefKey = context.getResources().getString(R.string.pref_cache_size_key);
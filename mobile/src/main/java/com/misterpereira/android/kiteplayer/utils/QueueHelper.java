@@ -26,17 +26,17 @@ package com.misterpereira.android.kiteplayer.utils;
 
 import android.content.Context;
 import android.media.MediaMetadata;
-import android.media.session.MediaSession;
-import android.media.session.MediaSession.QueueItem;
 import android.os.Bundle;
 
 import com.misterpereira.android.kiteplayer.VoiceSearchParams;
 import com.misterpereira.android.kiteplayer.model.MusicProvider;
 
-import java.util.List;
 
 import rx.Observable;
 
+import static com.misterpereira.android.kiteplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
+import static com.misterpereira.android.kiteplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
+import static com.misterpereira.android.kiteplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
 import static com.misterpereira.android.kiteplayer.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
 import static com.misterpereira.android.kiteplayer.utils.MediaIDHelper.MEDIA_ID_ROOT;
 
@@ -46,10 +46,11 @@ import static com.misterpereira.android.kiteplayer.utils.MediaIDHelper.MEDIA_ID_
 public class QueueHelper {
 
     private static final String TAG = LogHelper.makeLogTag(QueueHelper.class);
-    private static final Observable<Integer> mIndexSequence =
-            Observable.just(1).repeat().scan(0,(first,second) -> first+second);
 
-    public static Observable<QueueItem> getPlayingQueue(String mediaId,
+    /**
+     * Music ids of the playing queue for a hierarchy-aware mediaId, in queue order.
+     */
+    public static Observable<Long> getPlayingQueue(String mediaId,
             MusicProvider musicProvider, Context ctx) {
 
         final String categoryType = MediaIDHelper.extractBrowserCategoryFromMediaID(mediaId);
@@ -74,20 +75,53 @@ public class QueueHelper {
                 mmObservable = musicProvider
                         .getMusicByFolder(folder);
                 break;
+            case MEDIA_ID_MUSICS_BY_ARTIST:
+            case MEDIA_ID_MUSICS_BY_ALBUM:
+            case MEDIA_ID_MUSICS_BY_GENRE:
+                mmObservable = musicProvider
+                        .getMusicByCategory(categoryType, categories[0]);
+                break;
             default:
                 LogHelper.e(TAG, "Unrecognized category type: ", categoryType, " for media ", mediaId);
                 return null;
         }
 
-        return mmObservable
-                .filter(mm -> MusicProvider.willBePlayable(ctx,mm))
-                .zipWith(mIndexSequence, (mm, index) ->
-                        convertToQueueItem(mm, index, categoryType, categories));
+        return toMusicIds(filterPlayable(mmObservable, ctx));
     }
 
+    /**
+     * Hierarchy shared by the items of the playing queue built for a hierarchy-aware mediaId.
+     */
+    public static String[] getQueueHierarchy(String mediaId) {
+        String[] hierarchy = MediaIDHelper.getHierarchy(mediaId);
+        return hierarchy.length > 0 ? hierarchy : new String[]{MEDIA_ID_ROOT};
+    }
 
+    /**
+     * Hierarchy shared by the items of the playing queue built for a search.
+     */
+    public static String[] getSearchQueueHierarchy(String query) {
+        return new String[]{MEDIA_ID_MUSICS_BY_SEARCH, query};
+    }
 
-    public static Observable<QueueItem> getPlayingQueueFromSearch(String query,
+    /**
+     * Splits the music ids of a queue in pages to be appended to it as they come, every
+     * emission holding only the music ids of its page.
+     */
+    public static Observable<long[]> buildQueueInPages(Observable<Long> musicIds, int pageSize) {
+
+        return musicIds
+                .buffer(pageSize)
+                .map(page -> {
+                    long[] items = new long[page.size()];
+                    for (int i = 0; i < items.length; i++) {
+                        items[i] = page.get(i);
+                    }
+                    return items;
+                });
+    }
+
+    public static Observable<Long> getPlayingQueueFromSearch(String query,
             Bundle queryParams, MusicProvider musicProvider, Context ctx) {
 
         LogHelper.d(TAG, "Creating playing queue for musics from search: ", query,
@@ -106,88 +140,52 @@ public class QueueHelper {
         Observable<MediaMetadata> result =
                 musicProvider.searchMusicByVoiceParams(params);
 
-        return result
+        return toMusicIds(filterPlayable(result
                 .switchIfEmpty(musicProvider.searchMusicByVoiceParams(
-                        new VoiceSearchParams(query, new Bundle())))
-                .filter(mm -> MusicProvider.willBePlayable(ctx,mm))
-                .zipWith(mIndexSequence, (mm, index) ->
-                        convertToQueueItem(
-                                mm, index,
-                                MEDIA_ID_MUSICS_BY_SEARCH, new String[]{query}));
-    }
-
-
-    public static int getMusicIndexOnQueue(Iterable<QueueItem> queue,
-             String mediaId) {
-        int index = 0;
-        for (QueueItem item : queue) {
-            if (mediaId.equals(item.getDescription().getMediaId())) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
-    }
-
-    public static int getMusicIndexOnQueue(Iterable<QueueItem> queue,
-             long queueId) {
-        int index = 0;
-        for (QueueItem item : queue) {
-            if (queueId == item.getQueueId()) {
-                return index;
-            }
-            index++;
-        }
-        return -1;
-    }
-
-    private static QueueItem convertToQueueItem(MediaMetadata track, int index, String categoryType, String[] categories) {
-
-        String[] combined = new String[categories.length+1];
-        combined[0] = categoryType;
-        System.arraycopy(categories, 0, combined, 1, categories.length);
-
-        return convertToQueueItem(track, index, combined);
-    }
-
-    private static QueueItem convertToQueueItem(
-            MediaMetadata track, int index, String[] categories) {
-
-        // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
-        // at the QueueItem media IDs.
-        String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                track.getDescription().getMediaId(), categories);
-
-        MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                .build();
-
-        // We don't expect queues to change after created, so we use the item index as the
-        // queueId. Any other number unique in the queue would work.
-
-        return new QueueItem(
-                trackCopy.getDescription(), index);
+                        new VoiceSearchParams(query, new Bundle()))), ctx));
     }
 
     /**
      * Create a random queue.
      *
      * @param musicProvider the provider used for fetching music.
-     * @return list containing {@link MediaSession.QueueItem}'s
+     * @return music ids of the queue
      */
-    public static Observable<QueueItem> getRandomQueue(MusicProvider musicProvider, Context ctx) {
+    public static Observable<Long> getRandomQueue(MusicProvider musicProvider, Context ctx) {
         Observable<MediaMetadata> mmObservable =
                 musicProvider.getMusicAtRandom(30);
 
+        return toMusicIds(filterPlayable(mmObservable, ctx));
+    }
 
-        return mmObservable
-                .filter(mm -> MusicProvider.willBePlayable(ctx, mm))
-                .zipWith(mIndexSequence, (mm, index) ->
-                        convertToQueueItem(
-                                mm, index, MEDIA_ID_MUSICS_BY_SEARCH, new String[]{"random"}));
+    /**
+     * Collects music ids into the array a {@link com.misterpereira.android.kiteplayer.PlayingQueue}
+     * is made of.
+     */
+    public static Observable<long[]> toArray(Observable<Long> musicIds) {
+        return musicIds
+                .toList()
+                .map(list -> {
+                    long[] array = new long[list.size()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = list.get(i);
+                    }
+                    return array;
+                });
     }
 
-    public static boolean isIndexValid(int index, List<QueueItem> queue) {
-        return (queue != null && index >= 0 && index < queue.size());
+    private static Observable<Long> toMusicIds(Observable<MediaMetadata> tracks) {
+        return tracks.map(mm -> Long.parseLong(mm.getDescription().getMediaId()));
+    }
+
+    /**
+     * Streaming availability is checked once per queue rather than once per track.
+     */
+    private static Observable<MediaMetadata> filterPlayable(Observable<MediaMetadata> tracks,
+            Context ctx) {
+        return Observable.defer(() -> {
+            boolean canStream = NetworkHelper.canStream(ctx);
+            return tracks.filter(mm -> MusicProvider.willBePlayable(mm, canStream));
+        });
     }
 }
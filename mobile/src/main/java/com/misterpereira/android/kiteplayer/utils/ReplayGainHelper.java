@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.utils;
+
+import android.support.annotation.NonNull;
+
+import com.misterpereira.android.kiteplayer.database.DropboxDBSong;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads ReplayGain tags, which {@link android.media.MediaMetadataRetriever} doesn't expose.
+ * Only the TXXX frames of ID3v2 tags are supported, other frames are skipped without being
+ * read so large embedded pictures cost nothing.
+ */
+public class ReplayGainHelper {
+
+    private static final String TAG = LogHelper.makeLogTag(ReplayGainHelper.class);
+
+    private static final String TRACK_GAIN = "REPLAYGAIN_TRACK_GAIN";
+    private static final String ALBUM_GAIN = "REPLAYGAIN_ALBUM_GAIN";
+
+    private static final int HEADER_SIZE = 10;
+    private static final int FLAG_UNSYNCHRONISATION = 0x80;
+    private static final int FLAG_EXTENDED_HEADER = 0x40;
+
+    // Text frames are small, anything larger isn't a gain
+    private static final int MAX_TEXT_FRAME_SIZE = 1024;
+
+    private static final Pattern GAIN_PATTERN = Pattern.compile("^\\s*([+-]?\\d+(\\.\\d+)?)");
+
+    private static final Charset[] ENCODINGS = {
+            Charset.forName("ISO-8859-1"),
+            Charset.forName("UTF-16"),
+            Charset.forName("UTF-16BE"),
+            Charset.forName("UTF-8")
+    };
+
+    /**
+     * Sets the track and album gain of the song from the tags of its file, clearing the ones
+     * the file doesn't have.
+     */
+    public static void readReplayGain(@NonNull File songFile, @NonNull DropboxDBSong song) {
+
+        song.setReplayGainTrack(null);
+        song.setReplayGainAlbum(null);
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(songFile, "r");
+            readId3v2(file, song);
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "readReplayGain - Unable to read tags of file=", songFile);
+        } finally {
+            CloseableHelper.closeQuietly(file);
+        }
+    }
+
+    private static void readId3v2(RandomAccessFile file, DropboxDBSong song) throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE];
+        if (file.read(header) != HEADER_SIZE ||
+                header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            return;
+        }
+
+        int version = header[3];
+        int flags = header[5] & 0xff;
+
+        if (version < 2 || version > 4 || (flags & FLAG_UNSYNCHRONISATION) != 0) {
+            return;
+        }
+
+        long tagEnd = HEADER_SIZE + readSyncsafe(header, 6);
+        long position = HEADER_SIZE;
+
+        if ((flags & FLAG_EXTENDED_HEADER) != 0 && version > 2) {
+            byte[] size = new byte[4];
+            file.readFully(size);
+            // v2.4 counts the size field in, v2.3 doesn't
+            position += version == 4 ? readSyncsafe(size, 0) : 4 + readInt(size, 0);
+        }
+
+        int idLength = version == 2 ? 3 : 4;
+        int frameHeaderSize = version == 2 ? 6 : 10;
+        byte[] frameHeader = new byte[frameHeaderSize];
+
+        while (position + frameHeaderSize <= tagEnd) {
+
+            file.seek(position);
+            file.readFully(frameHeader);
+
+            if (frameHeader[0] == 0) {
+                // Padding
+                return;
+            }
+
+            String id = new String(frameHeader, 0, idLength, ENCODINGS[0]);
+            int size = version == 2 ? readInt24(frameHeader, 3) :
+                    version == 4 ? readSyncsafe(frameHeader, 4) : readInt(frameHeader, 4);
+
+            if (size <= 0 || position + frameHeaderSize + size > tagEnd) {
+                return;
+            }
+
+            if ((id.equals("TXX") || id.equals("TXXX")) && size <= MAX_TEXT_FRAME_SIZE) {
+                byte[] frame = new byte[size];
+                file.readFully(frame);
+                readGainFrame(frame, song);
+            }
+
+            position += frameHeaderSize + size;
+        }
+    }
+
+    private static void readGainFrame(byte[] frame, DropboxDBSong song) {
+
+        int encoding = frame[0];
+        if (encoding < 0 || encoding >= ENCODINGS.length) {
+            return;
+        }
+
+        // Description and value are separated by a terminator as wide as a character
+        int width = encoding == 1 || encoding == 2 ? 2 : 1;
+        int separator = -1;
+        for (int i = 1; i + width <= frame.length; i += width) {
+            if (frame[i] == 0 && frame[i + width - 1] == 0) {
+                separator = i;
+                break;
+            }
+        }
+
+        if (separator < 0) {
+            return;
+        }
+
+        Charset charset = ENCODINGS[encoding];
+        String description = new String(frame, 1, separator - 1, charset)
+                .trim().toUpperCase(Locale.US);
+        String value = new String(frame, separator + width, frame.length - separator - width,
+                charset);
+
+        if (TRACK_GAIN.equals(description)) {
+            song.setReplayGainTrack(parseGain(value));
+        } else if (ALBUM_GAIN.equals(description)) {
+            song.setReplayGainAlbum(parseGain(value));
+        }
+    }
+
+    /**
+     * @return the gain in dB of values like "-6.48 dB", or null if there's none
+     */
+    private static Float parseGain(String value) {
+        Matcher matcher = GAIN_PATTERN.matcher(value);
+        if (!matcher.find()) {
+            return null;
+        }
+        try {
+            return Float.valueOf(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int readSyncsafe(byte[] bytes, int offset) {
+        return (bytes[offset] & 0x7f) << 21 | (bytes[offset + 1] & 0x7f) << 14 |
+                (bytes[offset + 2] & 0x7f) << 7 | (bytes[offset + 3] & 0x7f);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 |
+                (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static int readInt24(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 16 | (bytes[offset + 1] & 0xff) << 8 |
+                (bytes[offset + 2] & 0xff);
+    }
+}
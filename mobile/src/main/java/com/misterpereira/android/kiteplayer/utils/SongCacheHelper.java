@@ -10,11 +10,19 @@
 
 package com.misterpereira.android.kiteplayer.utils;
 
+import android.media.MediaMetadata;
+
 import com.misterpereira.android.kiteplayer.database.DropboxDBEntry;
+import com.misterpereira.android.kiteplayer.model.AlbumArtLoader;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class SongCacheHelper {
 
     public static final int[] LARGE_ALBUM_ART_DIMENSIONS = {480,800};
+    public static final int[] MEDIUM_ALBUM_ART_DIMENSIONS = {320, 320};
     public static final int[] SMALL_ALBUM_ART_DIMENSIONS = {128, 128};
 
     public static String makeLRUCacheFileName(DropboxDBEntry entry) {
@@ -26,4 +34,45 @@ public class SongCacheHelper {
 
         return fileName+fileExtension;
     }
+
+    /**
+     * @return the entry id a file was named after by {@link #makeLRUCacheFileName}, or -1 if
+     * it wasn't
+     */
+    public static long getEntryIdFromLRUCacheFileName(String fileName) {
+
+        int extensionStart = fileName.indexOf('.');
+
+        try {
+            return Long.parseLong(extensionStart < 0 ? fileName : fileName.substring(0, extensionStart));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Album art is stored once per album, named after a digest of its {@link AlbumArtLoader.Key}
+     */
+    public static String makeAlbumArtFileName(MediaMetadata mm) {
+
+        String key = new AlbumArtLoader.Key(mm).toString();
+
+        // Untagged songs don't share an album
+        if (key.isEmpty()) {
+            key = "#" + mm.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+
+            StringBuilder fileName = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                fileName.append(String.format("%02x", b & 0xff));
+            }
+            return fileName.toString();
+
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
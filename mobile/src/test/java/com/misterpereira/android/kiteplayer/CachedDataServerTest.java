@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import com.misterpereira.android.kiteplayer.utils.ImmutableFileLRUCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several receivers, as concurrent HTTP clients reusing their connections, reading a cached
+ * song in ranges.
+ */
+public class CachedDataServerTest {
+
+    private static final int SONG_SIZE = 512 * 1024;
+
+    private static final int CLIENTS = 6;
+    private static final int REQUESTS_PER_CLIENT = 40;
+
+    private File mDirectory;
+    private File mSong;
+    private byte[] mSongData;
+    private CachedDataServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("songs").toFile();
+        ImmutableFileLRUCache cachedSongs =
+                new ImmutableFileLRUCache(mDirectory.getPath(), 2L * SONG_SIZE);
+
+        mSongData = new byte[SONG_SIZE];
+        new Random(11).nextBytes(mSongData);
+        mSong = cachedSongs.newFile("song.mp3", os -> os.write(mSongData));
+        assertNotNull(mSong);
+
+        mServer = new CachedDataServer(null, null, cachedSongs);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(mDirectory.delete());
+    }
+
+    @Test
+    public void servesConcurrentRangeRequests() throws Exception {
+
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        CountDownLatch start = new CountDownLatch(1);
+
+        Future<?>[] results = new Future<?>[CLIENTS];
+        for (int c = 0; c < CLIENTS; c++) {
+            Random random = new Random(c);
+            results[c] = clients.submit((Callable<Void>) () -> {
+                start.await();
+                for (int i = 0; i < REQUESTS_PER_CLIENT; i++) {
+                    requestRandomRange(random);
+                }
+                return null;
+            });
+        }
+
+        start.countDown();
+        for (Future<?> result : results) {
+            // Rethrows what failed on the client
+            result.get();
+        }
+        clients.shutdown();
+    }
+
+    @Test
+    public void servesRanges() throws IOException {
+        assertServed(null, 200, 0, SONG_SIZE - 1);
+        assertServed("bytes=0-", 206, 0, SONG_SIZE - 1);
+        assertServed("bytes=100-199", 206, 100, 199);
+        assertServed("bytes=1000-", 206, 1000, SONG_SIZE - 1);
+        // Suffix range
+        assertServed("bytes=-500", 206, SONG_SIZE - 500, SONG_SIZE - 1);
+        // End past the song
+        assertServed("bytes=10-" + (SONG_SIZE * 2), 206, 10, SONG_SIZE - 1);
+        // Unsupported ranges are ignored
+        assertServed("bytes=-", 200, 0, SONG_SIZE - 1);
+        assertServed("bytes=0-1,5-6", 200, 0, SONG_SIZE - 1);
+    }
+
+    @Test
+    public void refusesUnsatisfiableRanges() throws IOException {
+        assertNotSatisfiable("bytes=" + SONG_SIZE + "-");
+        assertNotSatisfiable("bytes=200-100");
+    }
+
+    @Test
+    public void refusesFilesOutsideTheCache() throws IOException {
+        HttpURLConnection connection = open(mDirectory.getPath() + "/../" +
+                mDirectory.getName() + "/song.mp3", null);
+        assertEquals(200, connection.getResponseCode());
+        drain(connection.getInputStream());
+
+        connection = open(mDirectory.getParent() + "/passwd", null);
+        assertEquals(404, connection.getResponseCode());
+        drain(connection.getErrorStream());
+    }
+
+    private void requestRandomRange(Random random) throws IOException {
+        switch (random.nextInt(5)) {
+            case 0:
+                assertServed(null, 200, 0, SONG_SIZE - 1);
+                break;
+            case 1: {
+                int first = random.nextInt(SONG_SIZE);
+                int last = first + random.nextInt(SONG_SIZE - first);
+                assertServed("bytes=" + first + "-" + last, 206, first, last);
+                break;
+            }
+            case 2: {
+                // Seeking, as media players do
+                int first = random.nextInt(SONG_SIZE);
+                assertServed("bytes=" + first + "-", 206, first, SONG_SIZE - 1);
+                break;
+            }
+            case 3: {
+                int count = 1 + random.nextInt(SONG_SIZE);
+                assertServed("bytes=-" + count, 206, SONG_SIZE - count, SONG_SIZE - 1);
+                break;
+            }
+            default:
+                assertNotSatisfiable("bytes=" + (SONG_SIZE + random.nextInt(1000)) + "-");
+                break;
+        }
+    }
+
+    private void assertServed(String range, int status, int first, int last) throws IOException {
+
+        HttpURLConnection connection = open(mSong.getPath(), range);
+        assertEquals(range, status, connection.getResponseCode());
+
+        int count = last - first + 1;
+        assertEquals(range, Integer.toString(count), connection.getHeaderField("Content-Length"));
+        assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+        assertEquals("audio/mpeg", connection.getContentType());
+        if (status == 206) {
+            assertEquals(range, "bytes " + first + "-" + last + "/" + SONG_SIZE,
+                    connection.getHeaderField("Content-Range"));
+        }
+
+        byte[] body = drain(connection.getInputStream());
+        assertArrayEquals(range, Arrays.copyOfRange(mSongData, first, last + 1), body);
+    }
+
+    private void assertNotSatisfiable(String range) throws IOException {
+        HttpURLConnection connection = open(mSong.getPath(), range);
+        assertEquals(range, 416, connection.getResponseCode());
+        assertEquals(range, "bytes */" + SONG_SIZE, connection.getHeaderField("Content-Range"));
+        drain(connection.getErrorStream());
+    }
+
+    private HttpURLConnection open(String path, String range) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + mServer.getListeningPort() +
+                CachedDataServer.SONG_FILE_PATH + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    /**
+     * Reads the body to the end, so the connection can be reused.
+     */
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in == null) {
+            return out.toByteArray();
+        }
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
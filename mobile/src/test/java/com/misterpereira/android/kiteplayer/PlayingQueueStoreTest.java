@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import rx.schedulers.Schedulers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlayingQueueStoreTest {
+
+    private static final String[] HIERARCHY = {"__BY_FOLDER__", "/Música"};
+    private static final int QUEUE_SIZE = 5000;
+
+    private static final int RESTORE_RUNS = 50;
+    // Restoring is on the way to playing from a cold start
+    private static final long RESTORE_BUDGET_MS = 50;
+
+    private File mDirectory;
+    private PlayingQueueStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("playing-queue").toFile();
+        // Writes happen right away
+        mStore = new PlayingQueueStore(mDirectory, Schedulers.immediate());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(mDirectory.delete());
+    }
+
+    @Test
+    public void restoresLargeQueueQuickly() {
+        long[] musicIds = createMusicIds(QUEUE_SIZE);
+        PlayingQueue queue = new PlayingQueue("Queue", HIERARCHY, musicIds);
+        queue.skipToQueueId(musicIds[4321]);
+
+        mStore.saveQueue(queue);
+        mStore.savePosition(queue, 98765);
+
+        long best = Long.MAX_VALUE;
+        PlayingQueueStore.Snapshot snapshot = null;
+        for (int i = 0; i < RESTORE_RUNS; i++) {
+            long start = System.nanoTime();
+            snapshot = new PlayingQueueStore(mDirectory, Schedulers.immediate()).restore();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        assertNotNull(snapshot);
+        assertArrayEquals(musicIds, snapshot.queue.getMusicIds());
+        assertEquals("Queue", snapshot.queue.getTitle());
+        assertArrayEquals(HIERARCHY, snapshot.queue.getHierarchy());
+        assertEquals(musicIds[4321], snapshot.queue.getCurrentQueueId());
+        assertEquals(98765, snapshot.position);
+
+        long bestMs = best / 1000000;
+        assertTrue("restoring " + QUEUE_SIZE + " items took " + bestMs + "ms",
+                bestMs < RESTORE_BUDGET_MS);
+    }
+
+    @Test
+    public void restoresRepeatAndShuffle() {
+        long[] musicIds = createMusicIds(100);
+        PlayingQueue queue = new PlayingQueue(null, HIERARCHY, musicIds);
+        queue.setRepeatMode(PlayingQueue.REPEAT_ONE);
+        queue.setShuffle(true);
+        queue.skipToNext();
+        queue.skipToNext();
+
+        mStore.saveQueue(queue);
+        mStore.savePosition(queue, 1000);
+
+        PlayingQueueStore.Snapshot snapshot = mStore.restore();
+
+        assertNotNull(snapshot);
+        assertNull(snapshot.queue.getTitle());
+        assertEquals(PlayingQueue.REPEAT_ONE, snapshot.queue.getRepeatMode());
+        assertTrue(snapshot.queue.isShuffled());
+        // Same play order, on the same item
+        assertArrayEquals(queue.getMusicIds(), snapshot.queue.getMusicIds());
+        assertEquals(queue.getCurrentQueueId(), snapshot.queue.getCurrentQueueId());
+        assertEquals(2, snapshot.queue.getCurrentPosition());
+    }
+
+    @Test
+    public void positionUpdatesOnlyTouchTheHeader() {
+        long[] musicIds = createMusicIds(10);
+        PlayingQueue queue = new PlayingQueue("Queue", HIERARCHY, musicIds);
+        mStore.saveQueue(queue);
+
+        File file = new File(mDirectory, "playing_queue");
+        long length = file.length();
+
+        for (int i = 0; i < musicIds.length; i++) {
+            queue.skipToQueueId(musicIds[i]);
+            mStore.savePosition(queue, i * 1000);
+        }
+
+        assertEquals(length, file.length());
+
+        PlayingQueueStore.Snapshot snapshot = mStore.restore();
+        assertNotNull(snapshot);
+        assertEquals(musicIds[9], snapshot.queue.getCurrentQueueId());
+        assertEquals(9000, snapshot.position);
+    }
+
+    @Test
+    public void savesQueuesBuiltInPages() {
+        long[] musicIds = createMusicIds(300);
+        PlayingQueue queue = new PlayingQueue("Queue", HIERARCHY, new long[]{musicIds[250]});
+        queue.startGrowing();
+        mStore.saveQueue(queue);
+
+        queue.appendMusicIds(Arrays.copyOfRange(musicIds, 0, 200));
+        queue.appendMusicIds(Arrays.copyOfRange(musicIds, 200, 300));
+        queue.finishGrowing();
+
+        PlayingQueueStore.Snapshot snapshot = mStore.restore();
+        assertNotNull(snapshot);
+        assertArrayEquals(new long[]{musicIds[250]}, snapshot.queue.getMusicIds());
+
+        mStore.saveQueue(queue);
+        snapshot = mStore.restore();
+        assertNotNull(snapshot);
+        assertArrayEquals(musicIds, snapshot.queue.getMusicIds());
+        assertEquals(musicIds[250], snapshot.queue.getCurrentQueueId());
+    }
+
+    @Test
+    public void ignoresMissingAndDamagedSnapshots() throws IOException {
+        assertNull(mStore.restore());
+
+        mStore.saveQueue(new PlayingQueue("Queue", HIERARCHY, createMusicIds(1000)));
+        File file = new File(mDirectory, "playing_queue");
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        // Cut in the middle of the music ids
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(mStore.restore());
+
+        // Another format
+        bytes[0]++;
+        Files.write(file.toPath(), bytes);
+        assertNull(mStore.restore());
+    }
+
+    @Test
+    public void clearDeletesTheSnapshot() {
+        PlayingQueue queue = new PlayingQueue("Queue", HIERARCHY, createMusicIds(10));
+        mStore.saveQueue(queue);
+        assertNotNull(mStore.restore());
+
+        mStore.clear();
+        assertNull(mStore.restore());
+
+        // Position updates don't bring it back
+        mStore.savePosition(queue, 1000);
+        assertNull(mStore.restore());
+        assertFalse(new File(mDirectory, "playing_queue").exists());
+    }
+
+    private static long[] createMusicIds(int count) {
+        long[] musicIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            musicIds[i] = 100000 + i * 7;
+        }
+        return musicIds;
+    }
+}
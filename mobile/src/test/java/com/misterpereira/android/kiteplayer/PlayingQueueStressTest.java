@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.misterpereira.android.kiteplayer.PlayingQueue.REPEAT_ALL;
+import static com.misterpereira.android.kiteplayer.PlayingQueue.REPEAT_NONE;
+import static com.misterpereira.android.kiteplayer.PlayingQueue.REPEAT_ONE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fires random command sequences at {@link PlayingQueue}, checking its state after every one
+ * against what the command should have done.
+ */
+public class PlayingQueueStressTest {
+
+    private static final String[] HIERARCHY = {"__BY_FOLDER__", "/Music"};
+
+    private static final int RUNS = 200;
+    private static final int COMMANDS_PER_RUN = 500;
+
+    private static final int THREADS = 4;
+    private static final int COMMANDS_PER_THREAD = 5000;
+
+    @Test
+    public void randomCommandsKeepConsistentState() {
+        Random random = new Random(42);
+
+        for (int run = 0; run < RUNS; run++) {
+            long[] musicIds = createMusicIds(1 + random.nextInt(40));
+            PlayingQueue queue = new PlayingQueue("Queue", HIERARCHY, musicIds);
+
+            for (int i = 0; i < COMMANDS_PER_RUN; i++) {
+                runAndCheck(queue, musicIds, random);
+            }
+        }
+    }
+
+    @Test
+    public void commandsWhileGrowingKeepTheCurrentItem() {
+        Random random = new Random(7);
+
+        for (int run = 0; run < RUNS; run++) {
+            long[] musicIds = createMusicIds(1 + random.nextInt(300));
+            long selected = musicIds[random.nextInt(musicIds.length)];
+
+            PlayingQueue queue = new PlayingQueue("Queue", HIERARCHY, new long[]{selected});
+            queue.setShuffle(random.nextBoolean());
+            queue.startGrowing();
+
+            int appended = 0;
+            while (appended < musicIds.length) {
+                int pageSize = Math.min(1 + random.nextInt(50), musicIds.length - appended);
+
+                long current = queue.getCurrentQueueId();
+                queue.appendMusicIds(Arrays.copyOfRange(musicIds, appended, appended + pageSize));
+                appended += pageSize;
+                assertEquals("append moved off the current item", current,
+                        queue.getCurrentQueueId());
+
+                for (int i = 0; i < 20; i++) {
+                    runGrowingCommand(queue, random);
+                    assertValidPosition(queue);
+                }
+            }
+
+            boolean shuffled = queue.isShuffled();
+            long current = queue.getCurrentQueueId();
+            queue.finishGrowing();
+
+            // Once every page is in, the held item is back in its place
+            assertArrayEquals(musicIds, queue.getMusicIdsInQueueOrder());
+            assertEquals(current, queue.getCurrentQueueId());
+            if (shuffled) {
+                assertEquals(0, queue.getCurrentPosition());
+                assertPermutation(musicIds, queue.getMusicIds());
+            } else {
+                assertArrayEquals(musicIds, queue.getMusicIds());
+            }
+        }
+    }
+
+    /**
+     * Commands from several threads serialized on a single thread, the way the playback
+     * thread serializes them, while other threads read the queue. The result must be the one
+     * of running the same commands in the order they ran.
+     */
+    @Test
+    public void concurrentCommandsMatchTheirSequentialReplay() throws Exception {
+        long[] musicIds = createMusicIds(64);
+        PlayingQueue queue = new PlayingQueue("Queue", HIERARCHY, musicIds);
+
+        ExecutorService playbackThread = Executors.newSingleThreadExecutor();
+        ExecutorService clients = Executors.newFixedThreadPool(THREADS * 2);
+
+        List<long[]> log = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            clients.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < COMMANDS_PER_THREAD; i++) {
+                        long[] command = randomCommand(musicIds, random);
+                        playbackThread.execute(() -> {
+                            log.add(command);
+                            run(queue, command);
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            });
+
+            // Readers, as the session and the saved queue read it
+            clients.execute(() -> {
+                try {
+                    start.await();
+                    while (done.getCount() > 0) {
+                        long current = queue.getCurrentQueueId();
+                        assertTrue("unknown current item " + current,
+                                indexOf(musicIds, current) >= 0);
+                        int position = queue.getCurrentPosition();
+                        assertTrue(position >= 0 && position < musicIds.length);
+                        assertPermutation(musicIds, queue.getMusicIds());
+                        assertArrayEquals(musicIds, queue.getMusicIdsInQueueOrder());
+                        queue.hasNext();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        playbackThread.shutdown();
+        assertTrue(playbackThread.awaitTermination(30, TimeUnit.SECONDS));
+        clients.shutdown();
+        assertTrue(clients.awaitTermination(30, TimeUnit.SECONDS));
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertEquals(THREADS * COMMANDS_PER_THREAD, log.size());
+
+        PlayingQueue replay = new PlayingQueue("Queue", HIERARCHY, musicIds);
+        for (long[] command : log) {
+            run(replay, command);
+        }
+
+        assertEquals(replay.getCurrentQueueId(), queue.getCurrentQueueId());
+        assertEquals(replay.getCurrentPosition(), queue.getCurrentPosition());
+        assertEquals(replay.getRepeatMode(), queue.getRepeatMode());
+        assertArrayEquals(replay.getMusicIds(), queue.getMusicIds());
+    }
+
+    private static void runAndCheck(PlayingQueue queue, long[] musicIds, Random random) {
+
+        long[] order = queue.getMusicIds();
+        int position = queue.getCurrentPosition();
+        long current = queue.getCurrentQueueId();
+        int repeatMode = queue.getRepeatMode();
+        int last = order.length - 1;
+
+        switch (random.nextInt(8)) {
+            case 0: {
+                int expected = position < last ? position + 1 :
+                        repeatMode == REPEAT_NONE ? -1 : 0;
+                assertEquals(expected >= 0 && expected != position, queue.hasNext());
+                assertEquals(expected >= 0, queue.skipToNext());
+                assertEquals(expected >= 0 ? expected : position, queue.getCurrentPosition());
+                break;
+            }
+            case 1: {
+                int expected = repeatMode == REPEAT_ONE ? position :
+                        position < last ? position + 1 : repeatMode == REPEAT_ALL ? 0 : -1;
+                assertEquals(expected >= 0, queue.moveToNextOnCompletion());
+                assertEquals(expected >= 0 ? expected : position, queue.getCurrentPosition());
+                break;
+            }
+            case 2:
+                assertEquals(position > 0, queue.hasPrevious());
+                assertTrue(queue.skipToPrevious());
+                assertEquals(Math.max(0, position - 1), queue.getCurrentPosition());
+                break;
+            case 3: {
+                // Seeking to another item, sometimes one that's not in the queue
+                long musicId = random.nextInt(4) == 0 ?
+                        -1 : musicIds[random.nextInt(musicIds.length)];
+                boolean found = queue.skipToQueueId(musicId);
+                assertEquals(musicId != -1, found);
+                assertEquals(found ? musicId : current, queue.getCurrentQueueId());
+                break;
+            }
+            case 4:
+                queue.setRepeatMode(random.nextInt(3));
+                assertArrayEquals(order, queue.getMusicIds());
+                assertEquals(current, queue.getCurrentQueueId());
+                break;
+            case 5:
+                queue.setShuffle(true);
+                assertTrue(queue.isShuffled());
+                assertEquals(current, queue.getCurrentQueueId());
+                assertEquals(0, queue.getCurrentPosition());
+                assertPermutation(musicIds, queue.getMusicIds());
+                break;
+            case 6:
+                queue.setShuffle(false);
+                assertFalse(queue.isShuffled());
+                assertEquals(current, queue.getCurrentQueueId());
+                assertArrayEquals(musicIds, queue.getMusicIds());
+                break;
+            default: {
+                // As restored from a saved queue
+                long seed = random.nextLong();
+                int firstIndex = random.nextInt(musicIds.length);
+                queue.shuffle(seed, firstIndex);
+                long[] shuffled = queue.getMusicIds();
+                assertEquals(musicIds[firstIndex], shuffled[0]);
+                assertEquals(current, queue.getCurrentQueueId());
+                assertPermutation(musicIds, shuffled);
+                assertEquals(seed, queue.getShuffleSeed());
+                assertEquals(firstIndex, queue.getShuffleFirstIndex());
+                break;
+            }
+        }
+
+        assertValidPosition(queue);
+    }
+
+    private static void runGrowingCommand(PlayingQueue queue, Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                queue.skipToNext();
+                break;
+            case 1:
+                queue.skipToPrevious();
+                break;
+            case 2:
+                queue.moveToNextOnCompletion();
+                break;
+            case 3:
+                queue.setRepeatMode(random.nextInt(3));
+                break;
+            default:
+                boolean shuffle = random.nextBoolean();
+                queue.setShuffle(shuffle);
+                // Waits for the queue to be complete
+                assertEquals(shuffle, queue.isShuffled());
+                assertArrayEquals(queue.getMusicIdsInQueueOrder(), queue.getMusicIds());
+                break;
+        }
+    }
+
+    /**
+     * @return a command for {@link #run(PlayingQueue, long[])}, as its code and argument
+     */
+    private static long[] randomCommand(long[] musicIds, Random random) {
+        int code = random.nextInt(7);
+        long argument;
+        switch (code) {
+            case 3:
+                argument = musicIds[random.nextInt(musicIds.length)];
+                break;
+            case 4:
+                argument = random.nextInt(3);
+                break;
+            case 5:
+                argument = random.nextInt(musicIds.length);
+                break;
+            default:
+                argument = 0;
+        }
+        return new long[]{code, argument};
+    }
+
+    private static void run(PlayingQueue queue, long[] command) {
+        switch ((int) command[0]) {
+            case 0:
+                queue.skipToNext();
+                break;
+            case 1:
+                queue.moveToNextOnCompletion();
+                break;
+            case 2:
+                queue.skipToPrevious();
+                break;
+            case 3:
+                queue.skipToQueueId(command[1]);
+                break;
+            case 4:
+                queue.setRepeatMode((int) command[1]);
+                break;
+            case 5:
+                // Seeded, so the replay shuffles the same way
+                queue.shuffle(command[1] * 31, (int) command[1]);
+                break;
+            default:
+                queue.setShuffle(false);
+                break;
+        }
+    }
+
+    private static void assertValidPosition(PlayingQueue queue) {
+        long[] order = queue.getMusicIds();
+        int position = queue.getCurrentPosition();
+        assertTrue("position " + position + " out of " + order.length,
+                position >= 0 && position < order.length);
+        assertEquals(order[position], queue.getCurrentQueueId());
+    }
+
+    private static void assertPermutation(long[] expected, long[] actual) {
+        long[] sortedExpected = expected.clone();
+        long[] sortedActual = actual.clone();
+        Arrays.sort(sortedExpected);
+        Arrays.sort(sortedActual);
+        assertArrayEquals(sortedExpected, sortedActual);
+    }
+
+    private static long[] createMusicIds(int count) {
+        long[] musicIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            musicIds[i] = 1000 + i;
+        }
+        return musicIds;
+    }
+
+    private static int indexOf(long[] musicIds, long musicId) {
+        for (int i = 0; i < musicIds.length; i++) {
+            if (musicIds[i] == musicId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
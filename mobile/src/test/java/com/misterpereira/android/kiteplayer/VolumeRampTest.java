@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VolumeRampTest {
+
+    private static final float DELTA = 1e-6f;
+    private static final int STEPS = 20;
+
+    @Test
+    public void fadeStartsSilentAndEndsAtFullVolume() {
+        assertEquals(0f, VolumeRamp.fadeIn(0, STEPS), DELTA);
+        assertEquals(1f, VolumeRamp.fadeIn(STEPS, STEPS), DELTA);
+        assertEquals(1f, VolumeRamp.fadeOut(0, STEPS), DELTA);
+        assertEquals(0f, VolumeRamp.fadeOut(STEPS, STEPS), DELTA);
+    }
+
+    @Test
+    public void fadeKeepsTotalPower() {
+        for (int step = 0; step <= STEPS; step++) {
+            float in = VolumeRamp.fadeIn(step, STEPS);
+            float out = VolumeRamp.fadeOut(step, STEPS);
+            assertEquals("step " + step, 1f, in * in + out * out, 1e-5f);
+        }
+    }
+
+    @Test
+    public void fadeClampsOutOfRangeSteps() {
+        assertEquals(0f, VolumeRamp.fadeIn(-5, STEPS), DELTA);
+        assertEquals(1f, VolumeRamp.fadeIn(STEPS + 5, STEPS), DELTA);
+        assertEquals(0f, VolumeRamp.fadeOut(STEPS + 5, STEPS), DELTA);
+        // Without steps the fade is already over
+        assertEquals(1f, VolumeRamp.fadeIn(0, 0), DELTA);
+        assertEquals(1f, VolumeRamp.fadeIn(3, -1), DELTA);
+        assertEquals(0f, VolumeRamp.fadeOut(0, 0), DELTA);
+    }
+
+    @Test
+    public void gainToVolume() {
+        assertEquals(1f, VolumeRamp.gainToVolume(0f), DELTA);
+        assertEquals(0.501187f, VolumeRamp.gainToVolume(-6f), 1e-5f);
+        // MediaPlayer can't amplify
+        assertEquals(1f, VolumeRamp.gainToVolume(3f), DELTA);
+        assertEquals(1f, VolumeRamp.gainToVolume(12f), DELTA);
+    }
+}
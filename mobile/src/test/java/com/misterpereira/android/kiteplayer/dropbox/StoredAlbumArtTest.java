@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 Rafael Pereira
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ *     https://mozilla.org/MPL/2.0/.
+ */
+
+package com.misterpereira.android.kiteplayer.dropbox;
+
+import com.misterpereira.android.kiteplayer.utils.ImmutableFileLRUCache;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StoredAlbumArtTest {
+
+    private static final String FILE_NAME = "0123456789abcdef0123456789abcdef";
+
+    // Large embedded pictures are a few megabytes
+    private static final int ART_SIZE = 4 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private File mDirectory;
+    private ImmutableFileLRUCache mStore;
+    private byte[] mDigest;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("albumart").toFile();
+        mStore = new ImmutableFileLRUCache(mDirectory.getPath(), 2L * ART_SIZE);
+
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        Random random = new Random(3);
+        assertNotNull(mStore.newFile(FILE_NAME, os -> {
+            byte[] chunk = new byte[READ_BUFFER_SIZE];
+            for (int written = 0; written < ART_SIZE; written += chunk.length) {
+                random.nextBytes(chunk);
+                digest.update(chunk);
+                os.write(chunk);
+            }
+        }));
+        mDigest = digest.digest();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(mDirectory.delete());
+    }
+
+    @Test
+    public void streamsStoredArtWithoutCopyingIt() throws Exception {
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        long threadId = Thread.currentThread().getId();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+
+        // Loads the classes involved first
+        load(buffer, digest);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        byte[] loaded = load(buffer, digest);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertArrayEquals(mDigest, loaded);
+        // Streams, and their buffers, but nothing the size of the art
+        assertTrue("allocated " + allocated + " bytes loading " + ART_SIZE + " bytes of art",
+                allocated < ART_SIZE / 16);
+    }
+
+    @Test
+    public void missingArtIsNotOpened() {
+        assertNull(DropboxSyncService.openStoredAlbumArt(mStore, "fedcba9876543210"));
+        assertNull(DropboxSyncService.openStoredAlbumArt(null, FILE_NAME));
+    }
+
+    private byte[] load(byte[] buffer, MessageDigest digest) throws IOException {
+        InputStream albumArt = DropboxSyncService.openStoredAlbumArt(mStore, FILE_NAME);
+        assertNotNull(albumArt);
+        try {
+            int read;
+            while ((read = albumArt.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            albumArt.close();
+        }
+        return digest.digest();
+    }
+}